@@ -0,0 +1,285 @@
+package net.bigpoint.jira.plugins.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.atlassian.jira.issue.CustomFieldManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueManager;
+import com.atlassian.jira.issue.MutableIssue;
+import com.atlassian.jira.issue.fields.CustomField;
+import com.atlassian.jira.issue.status.Status;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.project.ProjectManager;
+
+/**
+ * In-memory stand-ins for the JIRA managers used by the plugin, holding generated projects and issues. Only the
+ * methods called by the plugin are implemented, every other call fails. The issues are generated from a fixed seed,
+ * so each benchmark run sees the same data.
+ *
+ * @author jschweizer
+ *
+ */
+public class JiraStandIns {
+
+	/**
+	 * Values of the custom field "Severity" for the levels 1 to 5.
+	 */
+	private static final String[] SEVERITY_VALUES = { "1 - Blocker", "2 - Critical", "3 - Major", "4 - Minor",
+			"5 - Trivial" };
+
+	/**
+	 * Issues are created within this many days before now.
+	 */
+	private static final int HISTORY_DAYS = 3 * 365;
+
+	//24 * 60 * 60 * 1000L, 1 day in milliseconds
+	private static final long DAYS_TO_MILLISECONDS_MULTIPLIER = 86400000L;
+
+	private final List<Project> projects = new ArrayList<Project>();
+
+	private final Map<Long, Project> projectsById = new HashMap<Long, Project>();
+
+	private final Map<Long, List<Long>> issueIdsByProject = new HashMap<Long, List<Long>>();
+
+	private final Map<Long, MutableIssue> issues = new HashMap<Long, MutableIssue>();
+
+	private final Map<Long, String> severities = new HashMap<Long, String>();
+
+	private final Status openStatus = newStatus("Open");
+
+	private final Status closedStatus = newStatus("Closed");
+
+	/**
+	 * Generates the projects and their issues.
+	 *
+	 * @param projectCount
+	 *            number of projects
+	 * @param issuesPerProject
+	 *            number of issues of each project
+	 * @param severityShares
+	 *            relative shares of the issues without severity, with a severity without weight, and with the severity
+	 *            levels 1 to 5, i.e. "10,0,5,10,30,30,15"
+	 * @param closedPercent
+	 *            percentage of closed issues
+	 */
+	public JiraStandIns(int projectCount, int issuesPerProject, String severityShares, int closedPercent) {
+		int[] shares = parseShares(severityShares);
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		long historyStart = now - HISTORY_DAYS * DAYS_TO_MILLISECONDS_MULTIPLIER;
+		long issueId = 10000;
+
+		for(int p = 0; p < projectCount; p++) {
+			long projectId = 10000 + p;
+			Project project = newProject(projectId, "BENCH" + p);
+			projects.add(project);
+			projectsById.put(projectId, project);
+
+			List<Long> issueIds = new ArrayList<Long>(issuesPerProject);
+			for(int i = 0; i < issuesPerProject; i++) {
+				long created = historyStart + (long) (random.nextDouble() * (now - historyStart));
+				Timestamp resolved = null;
+				if(random.nextInt(100) < closedPercent) {
+					resolved = new Timestamp(created + (long) (random.nextDouble() * (now - created)));
+				}
+				Long id = issueId++;
+				issueIds.add(id);
+				issues.put(id, newIssue(id, project, new Timestamp(created), resolved));
+
+				String severity = pickSeverity(shares, random);
+				if(severity != null) {
+					severities.put(id, severity);
+				}
+			}
+			issueIdsByProject.put(projectId, issueIds);
+		}
+	}
+
+	/**
+	 * @return the ids of all projects
+	 */
+	public List<Long> getProjectIds() {
+		List<Long> ids = new ArrayList<Long>();
+		for(Project p : projects) {
+			ids.add(p.getId());
+		}
+		return ids;
+	}
+
+	public IssueManager getIssueManager() {
+		return newProxy(IssueManager.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if(name.equals("getIssueIdsForProject")) {
+					List<Long> ids = issueIdsByProject.get(args[0]);
+					return ids == null ? new ArrayList<Long>() : ids;
+				} else if(name.equals("getIssueObject")) {
+					return issues.get(args[0]);
+				}
+				return unsupported(proxy, method, args);
+			}
+		});
+	}
+
+	public ProjectManager getProjectManager() {
+		return newProxy(ProjectManager.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if(name.equals("getProjectObjects")) {
+					return projects;
+				} else if(name.equals("getProjectObj")) {
+					return projectsById.get(args[0]);
+				}
+				return unsupported(proxy, method, args);
+			}
+		});
+	}
+
+	public CustomFieldManager getCustomFieldManager() {
+		final CustomField severityField = newProxy(CustomField.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if(name.equals("getName")) {
+					return "Severity";
+				} else if(name.equals("isAllProjects")) {
+					return true;
+				} else if(name.equals("getValueFromIssue")) {
+					return severities.get(((Issue) args[0]).getId());
+				}
+				return unsupported(proxy, method, args);
+			}
+		});
+		return newProxy(CustomFieldManager.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("getCustomFieldObjectsByName")) {
+					return "Severity".equals(args[0]) ? Collections.singletonList(severityField) : null;
+				}
+				return unsupported(proxy, method, args);
+			}
+		});
+	}
+
+	private MutableIssue newIssue(final Long id, final Project project, final Timestamp created,
+			final Timestamp resolved) {
+		final String key = project.getKey() + "-" + id;
+		return newProxy(MutableIssue.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if(name.equals("getId")) {
+					return id;
+				} else if(name.equals("getKey")) {
+					return key;
+				} else if(name.equals("getCreated")) {
+					return created;
+				} else if(name.equals("getUpdated")) {
+					return resolved == null ? created : resolved;
+				} else if(name.equals("getResolutionDate")) {
+					return resolved;
+				} else if(name.equals("getStatusObject")) {
+					return resolved == null ? openStatus : closedStatus;
+				} else if(name.equals("getProjectObject")) {
+					return project;
+				} else if(name.equals("getProjectId")) {
+					return project.getId();
+				}
+				return unsupported(proxy, method, args);
+			}
+		});
+	}
+
+	private Project newProject(final Long id, final String key) {
+		return newProxy(Project.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if(name.equals("getId")) {
+					return id;
+				} else if(name.equals("getKey") || name.equals("getName")) {
+					return key;
+				}
+				return unsupported(proxy, method, args);
+			}
+		});
+	}
+
+	private Status newStatus(final String statusName) {
+		return newProxy(Status.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("getName")) {
+					return statusName;
+				}
+				return unsupported(proxy, method, args);
+			}
+		});
+	}
+
+	/**
+	 * @return the value of the custom field "Severity" for a random issue, null for no value
+	 */
+	private static String pickSeverity(int[] shares, Random random) {
+		int total = 0;
+		for(int share : shares) {
+			total += share;
+		}
+		int pick = random.nextInt(total);
+		int slot = 0;
+		while(pick >= shares[slot]) {
+			pick -= shares[slot];
+			slot++;
+		}
+		if(slot == 0) {
+			return null;
+		} else if(slot == 1) {
+			return "7 - Cosmetic";
+		}
+		return SEVERITY_VALUES[slot - 2];
+	}
+
+	private static int[] parseShares(String severityShares) {
+		String[] strings = severityShares.split(",");
+		if(strings.length != SEVERITY_VALUES.length + 2) {
+			throw new IllegalArgumentException("Expected " + (SEVERITY_VALUES.length + 2) + " severity shares: "
+					+ severityShares);
+		}
+		int[] shares = new int[strings.length];
+		int total = 0;
+		for(int i = 0; i < strings.length; i++) {
+			shares[i] = Integer.parseInt(strings[i].trim());
+			total += shares[i];
+		}
+		if(total <= 0) {
+			throw new IllegalArgumentException("No positive severity share: " + severityShares);
+		}
+		return shares;
+	}
+
+	/**
+	 * Answers the methods of Object, every other method is not supported by the stand-ins.
+	 */
+	private static Object unsupported(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if(name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if(name.equals("equals")) {
+			return proxy == args[0];
+		} else if(name.equals("toString")) {
+			return "StandIn@" + Integer.toHexString(System.identityHashCode(proxy));
+		}
+		throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "." + name
+				+ " is not supported by the stand-ins");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T newProxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(JiraStandIns.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+}
@@ -0,0 +1,137 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.bigpoint.jira.plugins.benchmark.JiraStandIns;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.jira.config.util.JiraHome;
+
+/**
+ * Measures the KPI calculation of {@link KpiDataProvider} for all projects at the end of the last days. The caching db
+ * is not configured, so the values are either calculated from the issues or taken from the memory cache.
+ *
+ * @author jschweizer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class KpiCalculationBenchmark {
+
+	@Param({ "1", "20" })
+	public int projects;
+
+	@Param({ "1000", "10000", "100000" })
+	public int issuesPerProject;
+
+	/**
+	 * Shares of the issues without severity, with a severity without weight, and with the levels 1 to 5.
+	 */
+	@Param({ "10,5,5,10,30,30,10", "0,0,20,20,20,20,20" })
+	public String severityShares;
+
+	@Param({ "80" })
+	public int closedPercent;
+
+	@Param({ "30", "365" })
+	public int days;
+
+	private KpiDataProvider dataProvider;
+
+	private KpiPointCache memoryCache;
+
+	private KpiCacheDataSource dataSource;
+
+	private KpiComputationExecutor executor;
+
+	private KpiCacheWriter cacheWriter;
+
+	private List<Long> projectIds;
+
+	private List<Timestamp> stamps;
+
+	@Setup
+	public void setUp() {
+		JiraStandIns jira = new JiraStandIns(projects, issuesPerProject, severityShares, closedPercent);
+		projectIds = jira.getProjectIds();
+		stamps = getLastDays(days);
+
+		KpiMetrics metrics = new KpiMetrics();
+		dataSource = new KpiCacheDataSource();
+		executor = new KpiComputationExecutor();
+		memoryCache = new KpiPointCache(projects * days);
+		// the default backend without configured caching db, so values are kept in memory only
+		KpiCacheBackend cacheStore = new KpiCacheBackend(new KpiCacheDBMapper(dataSource, metrics), new KpiLocalStore(
+				(JiraHome) null, metrics));
+		cacheWriter = new KpiCacheWriter(cacheStore, metrics);
+		cacheWriter.afterPropertiesSet();
+		SeverityLevelCache severityLevels = new SeverityLevelCache(jira.getCustomFieldManager());
+		dataProvider = new KpiDataProvider(jira.getProjectManager(), jira.getIssueManager(), severityLevels, cacheStore,
+				cacheWriter, memoryCache, executor, new KpiChangeTracker(), metrics, new KpiIndexCounter(null,
+						severityLevels, null, metrics));
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.destroy();
+		cacheWriter.destroy();
+		dataSource.destroy();
+	}
+
+	/**
+	 * All values are calculated from the issues. The severity levels stay cached, like on a running node.
+	 */
+	@Benchmark
+	public Map<Long, double[]> calculateUncached() throws KpiComputationException {
+		memoryCache.clear();
+		return dataProvider.calculateKpis(projectIds, stamps);
+	}
+
+	/**
+	 * All values are taken from the memory cache.
+	 */
+	@Benchmark
+	public Map<Long, double[]> calculateCached() throws KpiComputationException {
+		return dataProvider.calculateKpis(projectIds, stamps);
+	}
+
+	/**
+	 * @return the end of each of the last days, in ascending order
+	 */
+	private static List<Timestamp> getLastDays(int days) {
+		Calendar c = Calendar.getInstance();
+		c.set(Calendar.HOUR_OF_DAY, 23);
+		c.set(Calendar.MINUTE, 59);
+		c.set(Calendar.SECOND, 59);
+		c.set(Calendar.MILLISECOND, 999);
+		c.add(Calendar.DAY_OF_MONTH, -days);
+
+		List<Timestamp> stamps = new ArrayList<Timestamp>();
+		for(int i = 0; i < days; i++) {
+			stamps.add(new Timestamp(c.getTimeInMillis()));
+			c.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		return stamps;
+	}
+}
@@ -0,0 +1,62 @@
+package net.bigpoint.jira.plugins.service;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.bigpoint.jira.plugins.data.KpiBucketCalendar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the generation of the timestamps of a request in {@link KeyPerformanceResource}, memoized by the
+ * {@link KpiBucketCalendar} and calculated from scratch.
+ *
+ * @author jschweizer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TimestampGenerationBenchmark {
+
+	@Param({ "30", "365", "7300" })
+	public String period;
+
+	@Param({ "hourly", "daily", "weekly", "monthly" })
+	public String interval;
+
+	private KpiBucketCalendar calendar;
+
+	private KeyPerformanceResource resource;
+
+	@Setup
+	public void setUp() {
+		calendar = new KpiBucketCalendar();
+		// the timestamps don't depend on the managers
+		resource = new KeyPerformanceResource(null, null, null, calendar, null, null);
+	}
+
+	@Benchmark
+	public List<Timestamp> getBuckets() {
+		return resource.getBuckets(period, interval, KpiBucketCalendar.TODAY).getStamps();
+	}
+
+	@Benchmark
+	public List<Timestamp> calculateStamps() {
+		return calendar.getStamps(Integer.parseInt(period), interval, System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,145 @@
+package net.bigpoint.jira.plugins.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.xc.JaxbAnnotationIntrospector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the serialization of a KPI timeline: the {@link KpiTimelineRepresentation} as JSON through its JAXB
+ * annotations, like the REST module does, the same as XML, and the streamed {@link KpiJsonWriter}. The output is
+ * only counted, each benchmark returns the number of bytes written.
+ *
+ * @author jschweizer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class KpiSerializationBenchmark {
+
+	@Param({ "30", "365" })
+	public int buckets;
+
+	@Param({ "1", "20", "200" })
+	public int projects;
+
+	private KpiTimelineRepresentation timeline;
+
+	private String[] labels;
+
+	private String[] projectKeys;
+
+	private long[] projectIds;
+
+	private double[][] kpiNumbers;
+
+	private int[][] issueCounts;
+
+	private ObjectMapper jsonMapper;
+
+	private JAXBContext jaxbContext;
+
+	@Setup
+	public void setUp() throws JAXBException {
+		labels = new String[buckets];
+		projectKeys = new String[projects];
+		projectIds = new long[projects];
+		kpiNumbers = new double[buckets][projects];
+		issueCounts = new int[buckets][projects];
+		long day = 86400000L;
+		long first = System.currentTimeMillis() - buckets * day;
+		for(int p = 0; p < projects; p++) {
+			projectKeys[p] = "BENCH" + p;
+			projectIds[p] = 10000 + p;
+		}
+
+		List<KpiAtTimeRepresentation> kpisAtTime = new ArrayList<KpiAtTimeRepresentation>();
+		for(int b = 0; b < buckets; b++) {
+			labels[b] = new Timestamp(first + b * day).toString().substring(0, "1970-01-01".length());
+			List<KPIRepresentation> kpis = new ArrayList<KPIRepresentation>();
+			for(int p = 0; p < projects; p++) {
+				kpiNumbers[b][p] = (b * 31 + p * 17) % 500 / 10.0;
+				issueCounts[b][p] = (b * 13 + p * 7) % 200;
+				kpis.add(new KPIRepresentation(projectKeys[p], projectIds[p], kpiNumbers[b][p], issueCounts[b][p]));
+			}
+			kpisAtTime.add(new KpiAtTimeRepresentation(labels[b], kpis));
+		}
+		timeline = new KpiTimelineRepresentation(kpisAtTime);
+
+		jsonMapper = new ObjectMapper();
+		jsonMapper.setAnnotationIntrospector(new JaxbAnnotationIntrospector());
+		jaxbContext = JAXBContext.newInstance(KpiTimelineRepresentation.class);
+	}
+
+	@Benchmark
+	public long writeJaxbJson() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		jsonMapper.writeValue(out, timeline);
+		return out.count;
+	}
+
+	@Benchmark
+	public long writeJaxbXml() throws JAXBException {
+		CountingOutputStream out = new CountingOutputStream();
+		Marshaller marshaller = jaxbContext.createMarshaller();
+		marshaller.marshal(timeline, out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long writeStreamedJson() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		KpiJsonWriter json = new KpiJsonWriter(writer);
+		json.beginTimeline();
+		for(int b = 0; b < buckets; b++) {
+			json.writeKpisAtTime(labels[b], projectKeys, projectIds, kpiNumbers[b], issueCounts[b]);
+		}
+		json.endTimeline(null);
+		return out.count;
+	}
+
+	/**
+	 * Discards the output, only its length is kept.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
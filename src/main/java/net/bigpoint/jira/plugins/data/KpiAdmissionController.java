@@ -0,0 +1,180 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of expensive KPI requests running at once, so a few users requesting all projects can't starve the
+ * JIRA node. A request is expensive, if the estimated number of issues to read for it reaches a threshold; cheap
+ * requests, i.e. the ones answered from the memory cache, are always admitted. Expensive requests are limited per node
+ * and per user. Excess requests wait in line for a short time and are rejected with a retry hint afterwards, or at
+ * once if the line is too long.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiAdmissionController {
+
+	/**
+	 * Estimated number of issues to read, from which on a request is expensive.
+	 */
+	private static final long EXPENSIVE_COST = Long.getLong("kpi.admission.expensiveCost", 10000L);
+
+	/**
+	 * Maximum number of expensive requests running at once on the node.
+	 */
+	private static final int MAX_CONCURRENT = Integer.getInteger("kpi.admission.maxConcurrent", 4);
+
+	/**
+	 * Maximum number of expensive requests of one user running at once.
+	 */
+	private static final int MAX_PER_USER = Integer.getInteger("kpi.admission.maxPerUser", 1);
+
+	/**
+	 * Maximum number of expensive requests waiting to be admitted on the node.
+	 */
+	private static final int MAX_QUEUED = Integer.getInteger("kpi.admission.maxQueued", 16);
+
+	/**
+	 * Milliseconds an expensive request waits to be admitted.
+	 */
+	private static final long QUEUE_TIMEOUT = Long.getLong("kpi.admission.queueTimeout", 5000L);
+
+	/**
+	 * Seconds a rejected client should wait before retrying.
+	 */
+	private static final int RETRY_AFTER = Integer.getInteger("kpi.admission.retryAfter", 10);
+
+	private final KpiMetrics metrics;
+
+	private final Semaphore nodePermits = new Semaphore(MAX_CONCURRENT, true);
+
+	/**
+	 * Number of running expensive requests by user, users without running request are removed.
+	 */
+	private final Map<String, Integer> runningByUser = new HashMap<String, Integer>();
+
+	public KpiAdmissionController(KpiMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Admits a request, waiting in line if it is expensive and the limits are reached. The returned permit must be
+	 * released, when the request has been answered.
+	 *
+	 * @param user
+	 *            the name of the user, or another key of an anonymous client
+	 * @param cost
+	 *            the estimated number of issues to read
+	 * @return the permit of the request
+	 * @throws KpiAdmissionException
+	 *             if the request was not admitted in time
+	 */
+	public Permit admit(String user, long cost) throws KpiAdmissionException {
+		metrics.requestCost.record(cost);
+		if(cost < EXPENSIVE_COST) {
+			return new Permit(null);
+		}
+
+		long started = System.nanoTime();
+		long deadline = System.currentTimeMillis() + QUEUE_TIMEOUT;
+		if(nodePermits.availablePermits() == 0 && nodePermits.getQueueLength() >= MAX_QUEUED) {
+			throw reject("Too many expensive KPI requests, please try again later");
+		}
+		acquireUser(user, deadline);
+		boolean admitted = false;
+		try {
+			if(nodePermits.tryAcquire() == false) {
+				metrics.admissionQueued.incrementAndGet();
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0 || nodePermits.tryAcquire(wait, TimeUnit.MILLISECONDS) == false) {
+					throw reject("Too many expensive KPI requests, please try again later");
+				}
+			}
+			admitted = true;
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw reject("Waiting for the KPI request to be admitted was interrupted");
+		} finally {
+			if(admitted == false) {
+				releaseUser(user);
+			}
+		}
+		metrics.admissionWait.record(KpiMetrics.microsSince(started));
+		return new Permit(user);
+	}
+
+	/**
+	 * Waits until the user has less than the maximum number of expensive requests running and counts the request.
+	 */
+	private void acquireUser(String user, long deadline) throws KpiAdmissionException {
+		synchronized(runningByUser) {
+			boolean queued = false;
+			while(true) {
+				Integer running = runningByUser.get(user);
+				if(running == null || running < MAX_PER_USER) {
+					runningByUser.put(user, running == null ? 1 : running + 1);
+					return;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) {
+					throw reject("Too many expensive KPI requests of user " + user + ", please try again later");
+				}
+				if(queued == false) {
+					metrics.admissionQueued.incrementAndGet();
+					queued = true;
+				}
+				try {
+					runningByUser.wait(wait);
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw reject("Waiting for the KPI request to be admitted was interrupted");
+				}
+			}
+		}
+	}
+
+	private void releaseUser(String user) {
+		synchronized(runningByUser) {
+			Integer running = runningByUser.get(user);
+			if(running == null || running <= 1) {
+				runningByUser.remove(user);
+			} else {
+				runningByUser.put(user, running - 1);
+			}
+			runningByUser.notifyAll();
+		}
+	}
+
+	private KpiAdmissionException reject(String message) {
+		metrics.admissionRejected.incrementAndGet();
+		KpiDataProvider.LOGGER.warn(message);
+		return new KpiAdmissionException(message, RETRY_AFTER);
+	}
+
+	/**
+	 * Admission of one request. Releasing it more than once has no effect.
+	 */
+	public final class Permit {
+
+		private String user;
+
+		private Permit(String user) {
+			this.user = user;
+		}
+
+		/**
+		 * Ends the admission, so the next waiting request can run.
+		 */
+		public synchronized void release() {
+			if(user == null) {
+				return;
+			}
+			releaseUser(user);
+			nodePermits.release();
+			user = null;
+		}
+	}
+}
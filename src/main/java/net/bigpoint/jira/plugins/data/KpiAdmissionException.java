@@ -0,0 +1,27 @@
+package net.bigpoint.jira.plugins.data;
+
+/**
+ * Thrown if an expensive KPI request is not admitted, because too many of them are running on the node or for the
+ * user. The client should retry after the given time.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiAdmissionException extends KpiComputationException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int retryAfter;
+
+	public KpiAdmissionException(String message, int retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return the seconds the client should wait before retrying the request
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,383 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Divides time into the buckets of the kpi timelines. A bucket is one hour, day, week (Monday to Sunday) or month in
+ * the time zone of the system property kpi.calendar.timeZone, by default the one of the JVM. Its kpi value is the one
+ * at its last millisecond, so the same bucket always has the same timestamp, no matter when a timeline is requested,
+ * and the cached values are shared by all requests. Daylight saving time changes don't shift the boundaries, as they
+ * are calculated on the calendar of the time zone. The buckets of a request are memoized by period, interval and end.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiBucketCalendar {
+
+	public static final String HOURLY = "hourly";
+
+	public static final String DAILY = "daily";
+
+	public static final String WEEKLY = "weekly";
+
+	public static final String MONTHLY = "monthly";
+
+	/**
+	 * End of a timeline, that ends with the current bucket and moves on with time.
+	 */
+	public static final String TODAY = "today";
+
+	private static final String TIME_ZONE = System.getProperty("kpi.calendar.timeZone");
+
+	/**
+	 * Maximum number of memoized bucket sets.
+	 */
+	private static final int MEMO_SIZE = Integer.getInteger("kpi.calendar.memoSize", 256);
+
+	private static final String DATE_PATTERN = "yyyy-MM-dd";
+
+	private static final String HOUR_PATTERN = "yyyy-MM-dd HH:00";
+
+	private final TimeZone timeZone;
+
+	/**
+	 * The bucket sets by period, interval, the step of their end and whether they move on.
+	 */
+	private final Map<String, Buckets> memo = new LinkedHashMap<String, Buckets>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Buckets> eldest) {
+			return size() > MEMO_SIZE;
+		}
+	};
+
+	public KpiBucketCalendar() {
+		this(TIME_ZONE == null ? TimeZone.getDefault() : TimeZone.getTimeZone(TIME_ZONE));
+	}
+
+	public KpiBucketCalendar(TimeZone timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	public TimeZone getTimeZone() {
+		return timeZone;
+	}
+
+	/**
+	 * @param interval
+	 *            the requested interval
+	 * @return true, if buckets of the interval can be calculated
+	 */
+	public boolean isInterval(String interval) {
+		return HOURLY.equals(interval) || DAILY.equals(interval) || WEEKLY.equals(interval) || MONTHLY.equals(interval);
+	}
+
+	/**
+	 * Returns the buckets of a timeline. The timeline covers the given number of days, ending with the given day. For
+	 * hourly buckets, it covers that many times 24 hours, ending with the current hour of today. Every bucket
+	 * overlapping it is part of the timeline.
+	 *
+	 * @param period
+	 *            the number of days
+	 * @param interval
+	 *            hourly, daily, weekly or monthly
+	 * @param end
+	 *            "today" or the last day in the format yyyy-MM-dd, which must not be after today
+	 * @return the buckets, null if a parameter is not valid
+	 */
+	public Buckets getBuckets(String period, String interval, String end) {
+		int days;
+		try {
+			days = Integer.parseInt(period);
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+		if(days < 0 || isInterval(interval) == false || end == null) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		long endTime;
+		boolean moving = TODAY.equals(end);
+		if(moving) {
+			endTime = now;
+		} else {
+			long day = parseDay(end);
+			if(day == Long.MIN_VALUE) {
+				return null;
+			}
+			endTime = getBucketEnd(day, DAILY);
+			if(endTime > getBucketEnd(now, DAILY)) {
+				return null;
+			}
+		}
+
+		// the timeline moves on every hour for hourly buckets, else every day
+		long step = getBucketStart(endTime, HOURLY.equals(interval) ? HOURLY : DAILY);
+		String key = days + "|" + interval + "|" + step + "|" + moving;
+		synchronized(memo) {
+			Buckets buckets = memo.get(key);
+			if(buckets != null) {
+				return buckets;
+			}
+		}
+		Buckets buckets = new Buckets(getStamps(days, interval, endTime), interval, moving ? step : 0);
+		synchronized(memo) {
+			memo.put(key, buckets);
+		}
+		return buckets;
+	}
+
+	/**
+	 * Calculates the ends of all buckets of a timeline, without memoizing them.
+	 *
+	 * @param days
+	 *            the number of days covered by the timeline
+	 * @param interval
+	 *            hourly, daily, weekly or monthly
+	 * @param endTime
+	 *            a time in the last bucket, in milliseconds
+	 * @return the ends of the buckets, in ascending order
+	 */
+	public List<Timestamp> getStamps(int days, String interval, long endTime) {
+		Calendar c = newCalendar(endTime);
+		if(HOURLY.equals(interval)) {
+			truncate(c, HOURLY);
+			c.add(Calendar.HOUR_OF_DAY, 1 - days * 24);
+		} else {
+			truncate(c, DAILY);
+			c.add(Calendar.DAY_OF_MONTH, 1 - days);
+		}
+		long last = getBucketEnd(endTime, interval);
+
+		List<Timestamp> stamps = new ArrayList<Timestamp>();
+		truncate(c, interval);
+		while(true) {
+			next(c, interval);
+			long stamp = c.getTimeInMillis() - 1;
+			if(stamp > last) {
+				return stamps;
+			}
+			stamps.add(new Timestamp(stamp));
+		}
+	}
+
+	/**
+	 * Calculates the ends of the buckets after a time, without memoizing them. Long timelines can be walked through in
+	 * windows this way, without holding all of their timestamps.
+	 *
+	 * @param after
+	 *            the time in milliseconds, the buckets end after
+	 * @param last
+	 *            a time in the last bucket, in milliseconds
+	 * @param interval
+	 *            hourly, daily, weekly or monthly
+	 * @param limit
+	 *            the maximum number of buckets
+	 * @return the ends of the buckets, in ascending order, empty if the last bucket ends before the time
+	 */
+	public List<Timestamp> getStampsAfter(long after, long last, String interval, int limit) {
+		long lastEnd = getBucketEnd(last, interval);
+		List<Timestamp> stamps = new ArrayList<Timestamp>();
+		if(after >= lastEnd) {
+			return stamps;
+		}
+		Calendar c = newCalendar(after + 1);
+		truncate(c, interval);
+		while(stamps.size() < limit) {
+			next(c, interval);
+			long stamp = c.getTimeInMillis() - 1;
+			if(stamp > lastEnd) {
+				break;
+			}
+			stamps.add(new Timestamp(stamp));
+		}
+		return stamps;
+	}
+
+	/**
+	 * @param day
+	 *            a day in the format yyyy-MM-dd
+	 * @return the first millisecond of the day, Long.MIN_VALUE if it is not a valid day
+	 */
+	public long parseDay(String day) {
+		if(day == null) {
+			return Long.MIN_VALUE;
+		}
+		SimpleDateFormat format = newFormat(DATE_PATTERN);
+		format.setLenient(false);
+		try {
+			return format.parse(day).getTime();
+		} catch(ParseException pe) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * @param interval
+	 *            hourly, daily, weekly or monthly
+	 * @return a new format of the bucket labels of the interval, labeling a bucket by its end
+	 */
+	public SimpleDateFormat newLabelFormat(String interval) {
+		return newFormat(HOURLY.equals(interval) ? HOUR_PATTERN : DATE_PATTERN);
+	}
+
+	/**
+	 * @param time
+	 *            a time in milliseconds
+	 * @param interval
+	 *            hourly, daily, weekly or monthly
+	 * @return the first millisecond of the bucket containing the time
+	 */
+	public long getBucketStart(long time, String interval) {
+		Calendar c = newCalendar(time);
+		truncate(c, interval);
+		return c.getTimeInMillis();
+	}
+
+	/**
+	 * @param time
+	 *            a time in milliseconds
+	 * @param interval
+	 *            hourly, daily, weekly or monthly
+	 * @return the last millisecond of the bucket containing the time
+	 */
+	public long getBucketEnd(long time, String interval) {
+		Calendar c = newCalendar(time);
+		truncate(c, interval);
+		next(c, interval);
+		return c.getTimeInMillis() - 1;
+	}
+
+	/**
+	 * Sets a calendar to the start of its bucket.
+	 */
+	private void truncate(Calendar c, String interval) {
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		if(HOURLY.equals(interval)) {
+			return;
+		}
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		if(WEEKLY.equals(interval)) {
+			// weeks start on Monday, independent of the locale
+			int daysSinceMonday = (c.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+			c.add(Calendar.DAY_OF_MONTH, -daysSinceMonday);
+		} else if(MONTHLY.equals(interval)) {
+			c.set(Calendar.DAY_OF_MONTH, 1);
+		}
+	}
+
+	/**
+	 * Moves a calendar from the start of its bucket to the start of the next one.
+	 */
+	private void next(Calendar c, String interval) {
+		if(HOURLY.equals(interval)) {
+			c.add(Calendar.HOUR_OF_DAY, 1);
+		} else if(WEEKLY.equals(interval)) {
+			c.add(Calendar.DAY_OF_MONTH, 7);
+		} else if(MONTHLY.equals(interval)) {
+			c.add(Calendar.MONTH, 1);
+		} else {
+			c.add(Calendar.DAY_OF_MONTH, 1);
+		}
+	}
+
+	private Calendar newCalendar(long time) {
+		Calendar c = Calendar.getInstance(timeZone);
+		c.setTimeInMillis(time);
+		return c;
+	}
+
+	private SimpleDateFormat newFormat(String pattern) {
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(timeZone);
+		return format;
+	}
+
+	/**
+	 * The buckets of one timeline, with their labels. Instances are shared by all requests of the same timeline and
+	 * must not be modified.
+	 */
+	public final class Buckets {
+
+		private final List<Timestamp> stamps;
+
+		private final List<String> labels;
+
+		private final long validFrom;
+
+		private final String firstLabel;
+
+		private Buckets(List<Timestamp> stamps, String interval, long validFrom) {
+			SimpleDateFormat format = newLabelFormat(interval);
+			List<String> bucketLabels = new ArrayList<String>(stamps.size());
+			for(Timestamp stamp : stamps) {
+				bucketLabels.add(format.format(stamp));
+			}
+			this.stamps = Collections.unmodifiableList(stamps);
+			this.labels = Collections.unmodifiableList(bucketLabels);
+			this.validFrom = validFrom;
+			this.firstLabel = bucketLabels.isEmpty() ? null : bucketLabels.get(0);
+		}
+
+		private Buckets(List<Timestamp> stamps, List<String> labels, long validFrom, String firstLabel) {
+			this.stamps = stamps;
+			this.labels = labels;
+			this.validFrom = validFrom;
+			this.firstLabel = firstLabel;
+		}
+
+		/**
+		 * Returns the last buckets of the timeline, i.e. the ones a client doesn't have yet.
+		 *
+		 * @param from
+		 *            the index of the first bucket
+		 * @return the buckets from the index on, sharing the timestamps and labels of these buckets
+		 */
+		public Buckets from(int from) {
+			return from <= 0 ? this : new Buckets(stamps.subList(from, stamps.size()), labels.subList(from, labels
+					.size()), validFrom, firstLabel);
+		}
+
+		/**
+		 * @return the ends of the buckets, in ascending order
+		 */
+		public List<Timestamp> getStamps() {
+			return stamps;
+		}
+
+		/**
+		 * @return the label of each bucket, in the same order
+		 */
+		public List<String> getLabels() {
+			return labels;
+		}
+
+		/**
+		 * @return the label of the first bucket of the whole timeline, null if it has no bucket
+		 */
+		public String getFirstLabel() {
+			return firstLabel;
+		}
+
+		/**
+		 * @return the time in milliseconds, since which the timeline consists of these buckets, 0 if it never changes
+		 */
+		public long getValidFrom() {
+			return validFrom;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The persistent store behind the memory cache, selected by the system property kpi.cache.backend: "mysql" for the
+ * external caching db (default), "local" for the embedded {@link KpiLocalStore} in the JIRA home, "none" to keep the
+ * values in memory only.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiCacheBackend implements KpiCacheStore {
+
+	private static final String BACKEND = System.getProperty("kpi.cache.backend", "mysql");
+
+	private final KpiCacheStore store;
+
+	public KpiCacheBackend(KpiCacheDBMapper cacheDB, KpiLocalStore localStore) {
+		if(BACKEND.equals("local")) {
+			this.store = localStore;
+		} else if(BACKEND.equals("none")) {
+			this.store = new NoStore();
+		} else {
+			if(BACKEND.equals("mysql") == false) {
+				KpiDataProvider.LOGGER.warn("Unknown KPI cache backend " + BACKEND + ", using mysql");
+			}
+			this.store = cacheDB;
+		}
+		KpiDataProvider.LOGGER.info("KPI cache backend: " + store.getClass().getSimpleName());
+	}
+
+	public Map<Long, SeverityCounts[]> getCachedValues(Collection<Long> ids, List<Timestamp> stamps) {
+		return store.getCachedValues(ids, stamps);
+	}
+
+	public void cacheValues(Collection<KpiPoint> points) {
+		store.cacheValues(points);
+	}
+
+	public void deleteValues(long id, Timestamp from) {
+		store.deleteValues(id, from);
+	}
+
+	/**
+	 * Stores nothing, every value is missing.
+	 */
+	private static class NoStore implements KpiCacheStore {
+
+		public Map<Long, SeverityCounts[]> getCachedValues(Collection<Long> ids, List<Timestamp> stamps) {
+			Map<Long, SeverityCounts[]> values = new HashMap<Long, SeverityCounts[]>();
+			for(Long id : ids) {
+				values.put(id, new SeverityCounts[stamps.size()]);
+			}
+			return values;
+		}
+
+		public void cacheValues(Collection<KpiPoint> points) {
+		}
+
+		public void deleteValues(long id, Timestamp from) {
+		}
+	}
+}
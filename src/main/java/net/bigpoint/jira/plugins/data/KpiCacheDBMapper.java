@@ -3,138 +3,291 @@
  */
 package net.bigpoint.jira.plugins.data;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.bigpoint.jira.plugins.data.KpiCacheDataSource.CacheConnection;
 
 /**
- * @author jschweizer Mapper class for connection to caching db.
+ * @author jschweizer Mapper class for connection to caching db. The connections are borrowed from the shared
+ *         {@link KpiCacheDataSource} for each query. The numbers of open issues per severity level are kept in the
+ *         table cachedKpiCounts, see {@link #CREATE_TABLE}, which is created on the first connection. It replaces
+ *         the weighted values of cachedKpiNumbers. That table is left in place, so a former version can still be
+ *         rolled back to. Once this is not needed anymore, it can be dropped manually with
+ *         <code>DROP TABLE `jira_kpi`.`cachedKpiNumbers`;</code>
  *
  */
-public class KpiCacheDBMapper {
+public class KpiCacheDBMapper implements KpiCacheStore {
 
 	/**
-	 * If db connection is OK, caching is enabled, else not. Default: enabled.
+	 * Creates the cache table, unless it exists. The time is stored in milliseconds since the epoch, so it is exact,
+	 * independent of the time zone of the session and never changed by the db.
 	 */
-	private boolean m_cacheEnabled = true;
+	static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS `jira_kpi`.`cachedKpiCounts` ("
+			+ "`timeForKpi` BIGINT NOT NULL, `projectId` BIGINT NOT NULL, "
+			+ "`issuesNone` INT NOT NULL, `issuesOther` INT NOT NULL, `issuesLevel1` INT NOT NULL, "
+			+ "`issuesLevel2` INT NOT NULL, `issuesLevel3` INT NOT NULL, `issuesLevel4` INT NOT NULL, "
+			+ "`issuesLevel5` INT NOT NULL, PRIMARY KEY (`projectId`, `timeForKpi`));";
 
 	/**
-	 * Database connection to caching DB.
+	 * Maximum number of rows sent to the db in one batch.
 	 */
-	private Connection con;
+	private static final int MAXIMUM_BATCH_SIZE = 500;
 
-	private final File configFile = new File("/home/jira/cfg/app.conf");
+	/**
+	 * Finest interval of the cached points, in milliseconds. The table may hold a row per hour of a project.
+	 */
+	private static final long FINEST_INTERVAL = 3600L * 1000L;
 
-	private String[] configStrings;
+	/**
+	 * The count columns, in the order of the severity slots.
+	 */
+	private static final String[] COUNT_COLUMNS = { "issuesNone", "issuesOther", "issuesLevel1", "issuesLevel2",
+			"issuesLevel3", "issuesLevel4", "issuesLevel5" };
 
 	/**
-	 * Default constructor that sets up the default connection.
+	 * Pool of connections to the caching DB.
 	 */
-	public KpiCacheDBMapper() {
+	private final KpiCacheDataSource m_dataSource;
 
-		configStrings = // Add here String array containing in that order: DB host, name, user, password
+	private final KpiMetrics m_metrics;
 
-		this.initDB();
+	/**
+	 * True, once the cache table has been created.
+	 */
+	private volatile boolean m_tableReady = false;
 
+	public KpiCacheDBMapper(KpiCacheDataSource dataSource, KpiMetrics metrics) {
+		this.m_dataSource = dataSource;
+		this.m_metrics = metrics;
+	}
+
+	/**
+	 * Borrows a connection from the pool, after the cache table has been created. The table is only created, when the
+	 * caching db is actually used, i.e. it is the selected cache backend.
+	 *
+	 * @return the connection, null if caching is disabled or the table could not be created
+	 */
+	private CacheConnection borrow() {
+		CacheConnection con = m_dataSource.borrow();
+		if(con == null || m_tableReady) {
+			return con;
+		}
+		try {
+			con.prepare(CREATE_TABLE).execute();
+			m_tableReady = true;
+			return con;
+		} catch(SQLException e) {
+			m_metrics.dbErrors.incrementAndGet();
+			KpiDataProvider.LOGGER.error("SQL Exception creating cache table: " + e.getMessage());
+			m_dataSource.release(con, true);
+			return null;
+		}
 	}
 
 	/**
-	 * Inititalizes a new db connection if there's is none. Configs are read from app.conf @see{lookupConfigs} This is
-	 * done by calling php because integrating an external config file in Maven is not a better solution due to
-	 * maintenance of config data.
+	 * Retrieves all cached counts of the given projects at the given times from the dedicated jira_kpi table. The
+	 * counts are read with one query over the whole time range. If the times are sparse, e.g. monthly ones over a table
+	 * holding hourly rows, the query selects the times themselves instead, so the rows in between are not read.
+	 *
+	 * @param ids
+	 *            the project ids
+	 * @param stamps
+	 *            the timestamps the values are requested for, in ascending order
+	 * @return for each project id the counts in the order of the timestamps, null for each value that could not be
+	 *         found
 	 */
-	private void initDB() {
+	public Map<Long, SeverityCounts[]> getCachedValues(Collection<Long> ids, List<Timestamp> stamps) {
+		Map<Long, SeverityCounts[]> values = new HashMap<Long, SeverityCounts[]>();
+		for(Long id : ids) {
+			values.put(id, new SeverityCounts[stamps.size()]);
+		}
+		if(ids.isEmpty() || stamps.isEmpty()) {
+			return values;
+		}
+		CacheConnection con = borrow();
+		if(con == null) {
+			return values;
+		}
+
+		Map<Long, Integer> indexOfTime = new HashMap<Long, Integer>();
+		for(int i = 0; i < stamps.size(); i++) {
+			indexOfTime.put(stamps.get(i).getTime(), i);
+		}
+
+		StringBuilder sql = new StringBuilder("Select projectId, timeForKpi");
+		for(String column : COUNT_COLUMNS) {
+			sql.append(", ").append(column);
+		}
+		sql.append(" From cachedKpiCounts Where projectId IN (");
+		for(int i = 0; i < ids.size(); i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		if(isSparse(stamps)) {
+			sql.append(") AND timeForKpi IN (");
+			for(int i = 0; i < stamps.size(); i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			sql.append(");");
+		} else {
+			sql.append(") AND timeForKpi BETWEEN ? AND ?;");
+		}
 
+		long started = System.nanoTime();
+		int rows = 0;
+		boolean broken = false;
 		try {
-			if((con == null || con.isClosed()) && configStrings != null && configStrings.length >= 4 ) {
-
-				String host = configStrings[0];
-				String name = configStrings[1];
-				String user = configStrings[2];
-				String pass = configStrings[3];
-				KpiDataProvider.LOGGER.debug("Trying to establish DB connection");
-				Class.forName("com.mysql.jdbc.Driver");
-				con = DriverManager.getConnection("jdbc:mysql://" + host + "/" + name, user, pass);
+			PreparedStatement stmt = con.prepare(sql.toString());
+			int param = 1;
+			for(Long id : ids) {
+				stmt.setLong(param++, id);
+			}
+			if(isSparse(stamps)) {
+				for(Timestamp stamp : stamps) {
+					stmt.setLong(param++, stamp.getTime());
+				}
+			} else {
+				stmt.setLong(param++, stamps.get(0).getTime());
+				stmt.setLong(param++, stamps.get(stamps.size() - 1).getTime());
 			}
-		} catch(SQLException se) {
-			m_cacheEnabled = false;
-			KpiDataProvider.LOGGER.error("SQL Connection problem: " + se.getMessage());
+			ResultSet rs = stmt.executeQuery();
+			while(rs.next()) {
+				rows++;
+				Integer index = indexOfTime.get(rs.getLong("timeForKpi"));
+				SeverityCounts[] projectValues = values.get(rs.getLong("projectId"));
+				if(index != null && projectValues != null) {
+					int[] counts = new int[SeverityCounts.SLOTS];
+					for(int slot = 0; slot < counts.length; slot++) {
+						counts[slot] = rs.getInt(COUNT_COLUMNS[slot]);
+					}
+					projectValues[index] = new SeverityCounts(counts);
+				}
+			}
+			rs.close();
+		} catch(SQLException e) {
+			broken = true;
+			m_metrics.dbErrors.incrementAndGet();
+			KpiDataProvider.LOGGER.error("SQL Exception retrieving cached values: " + e.getMessage());
 		} catch(Exception e) {
-			m_cacheEnabled = false;
-			KpiDataProvider.LOGGER.error("Exception while connecting to database: " + e.getMessage());
+			m_metrics.dbErrors.incrementAndGet();
+			KpiDataProvider.LOGGER.error("Exception retrieving cached values: " + e.getMessage());
+		} finally {
+			m_dataSource.release(con, broken);
+			m_metrics.dbRowsRead.addAndGet(rows);
+			m_metrics.dbReadLatency.record(KpiMetrics.microsSince(started));
 		}
-
+		return values;
 	}
 
 	/**
-	 * Retrieves the cached value from the dedicated jira_kpi table
+	 * Caches the counts of several projects at several times with batched inserts. Concurrent calculations may cache
+	 * the same point, so existing rows are overwritten instead of failing the batch.
 	 *
-	 * @param id
-	 *            the project id
-	 * @param end
-	 *            the timestamp the value is requested for
-	 * @return the kpi value, retrieved from the DB, -1, if no value could be found
+	 * @param points
+	 *            the counts to cache
 	 */
-	protected double getCachedValue(long id, Timestamp end) {
-		initDB();
-		if(m_cacheEnabled) {
-			double value = -1;
-			try {
-				String sql = "Select kpiValue From cachedKpiNumbers Where projectId=" + id + " AND timeForKpi= '" + end + "';";
-				PreparedStatement stmt = con.prepareStatement(sql);
-				ResultSet rs = stmt.executeQuery();
-				while(rs.next()) {
-					value = rs.getDouble("kpiValue");
+	public void cacheValues(Collection<KpiPoint> points) {
+		if(points.isEmpty()) {
+			return;
+		}
+		CacheConnection con = borrow();
+		if(con == null) {
+			return;
+		}
+		StringBuilder sql = new StringBuilder("INSERT INTO `jira_kpi`.`cachedKpiCounts` (`timeForKpi` ,`projectId`");
+		for(String column : COUNT_COLUMNS) {
+			sql.append(" ,`").append(column).append('`');
+		}
+		sql.append(") VALUES (?, ?");
+		for(int slot = 0; slot < COUNT_COLUMNS.length; slot++) {
+			sql.append(", ?");
+		}
+		sql.append(") ON DUPLICATE KEY UPDATE");
+		for(int slot = 0; slot < COUNT_COLUMNS.length; slot++) {
+			sql.append(slot == 0 ? " `" : ", `").append(COUNT_COLUMNS[slot]).append("` = VALUES(`").append(
+					COUNT_COLUMNS[slot]).append("`)");
+		}
+		sql.append(';');
+		long started = System.nanoTime();
+		boolean broken = false;
+		try {
+			PreparedStatement stmt = con.prepare(sql.toString());
+			int batchSize = 0;
+			for(KpiPoint point : points) {
+				stmt.setLong(1, point.getTime().getTime());
+				stmt.setLong(2, point.getProjectId());
+				for(int slot = 0; slot < SeverityCounts.SLOTS; slot++) {
+					stmt.setInt(3 + slot, point.getCounts().getSlot(slot));
+				}
+				stmt.addBatch();
+				if(++batchSize == MAXIMUM_BATCH_SIZE) {
+					stmt.executeBatch();
+					batchSize = 0;
 				}
-				rs.close();
-			} catch(SQLException e) {
-				System.out.println("SQL exception : " + e.getMessage());
-				KpiDataProvider.LOGGER.error("SQL Exception retrieving cached value: " + e.getMessage());
-				return -1;
-			} catch(Exception e) {
-				KpiDataProvider.LOGGER.error("Exception retrieving cached value: " + e.getMessage());
-				return -1;
 			}
-
-			return value;
-		} else {
-			return -1;
+			if(batchSize > 0) {
+				stmt.executeBatch();
+			}
+			m_metrics.dbRowsWritten.addAndGet(points.size());
+		} catch(SQLException e) {
+			broken = true;
+			m_metrics.dbErrors.incrementAndGet();
+			KpiDataProvider.LOGGER.error("SQL Exception while caching values: " + e.getMessage());
+		} catch(Exception e) {
+			m_metrics.dbErrors.incrementAndGet();
+			KpiDataProvider.LOGGER.error("Exception while caching values: " + e.getMessage());
+		} finally {
+			m_dataSource.release(con, broken);
+			m_metrics.dbWriteLatency.record(KpiMetrics.microsSince(started));
 		}
+
 	}
 
 	/**
-	 * Caches the kpi value of one specific project at one specific time.
+	 * Deletes the cached values of one project, starting at the given time.
 	 *
-	 * @author jschweizer
 	 * @param id
 	 *            the project id
-	 * @param end
-	 *            the timestamp, the value needs to be calculated for
-	 * @param value
-	 *            the kpi value
+	 * @param from
+	 *            the first time, that is not valid anymore
 	 */
-	protected void cacheValue(long id, Timestamp end, double value) {
-		initDB();
-		if(m_cacheEnabled) {
-			String sql = "INSERT INTO `jira_kpi`.`cachedKpiNumbers` " + "(`id` ,`timeForKpi` ,`projectId` ,`kpiValue`)"
-					+ " VALUES (NULL , '" + end + "', '" + id + "', '" + value + "');";
-			try {
-				PreparedStatement stmt = con.prepareStatement(sql);
-				stmt.executeUpdate();
-			} catch(SQLException e) {
-				KpiDataProvider.LOGGER.error("SQL Exception while caching value: " + e.getMessage());
-			} catch(Exception e) {
-				KpiDataProvider.LOGGER.error("Exception while caching value: " + e.getMessage());
-			}
+	public void deleteValues(long id, Timestamp from) {
+		CacheConnection con = borrow();
+		if(con == null) {
+			return;
+		}
+		String sql = "DELETE FROM `jira_kpi`.`cachedKpiCounts` WHERE `projectId` = ? AND `timeForKpi` >= ?;";
+		long started = System.nanoTime();
+		boolean broken = false;
+		try {
+			PreparedStatement stmt = con.prepare(sql);
+			stmt.setLong(1, id);
+			stmt.setLong(2, from.getTime());
+			stmt.executeUpdate();
+		} catch(SQLException e) {
+			broken = true;
+			m_metrics.dbErrors.incrementAndGet();
+			KpiDataProvider.LOGGER.error("SQL Exception while deleting cached values: " + e.getMessage());
+		} finally {
+			m_dataSource.release(con, broken);
+			m_metrics.dbWriteLatency.record(KpiMetrics.microsSince(started));
 		}
+	}
 
+	/**
+	 * @param stamps
+	 *            the requested times, in ascending order
+	 * @return true, if the range of the times holds more than twice as many hourly rows as times
+	 */
+	static boolean isSparse(List<Timestamp> stamps) {
+		long span = stamps.get(stamps.size() - 1).getTime() - stamps.get(0).getTime();
+		return span / FINEST_INTERVAL + 1 > 2L * stamps.size();
 	}
 
 }
@@ -0,0 +1,286 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Bounded pool of connections to the caching db, shared by all requests. The pool lives as long as the plugin is
+ * enabled, it is set up by the component module in atlassian-plugin.xml and closes all connections when the plugin is
+ * disabled.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiCacheDataSource implements DisposableBean {
+
+	/**
+	 * Maximum number of open connections to the caching db.
+	 */
+	private static final int POOL_SIZE = Integer.getInteger("kpi.cache.poolSize", 8);
+
+	/**
+	 * Maximum time a request waits for a free connection, in milliseconds.
+	 */
+	private static final long BORROW_TIMEOUT = Long.getLong("kpi.cache.borrowTimeout", 2000L);
+
+	/**
+	 * Idle connections are validated before they are handed out again, if they have been idle for longer than this, in
+	 * milliseconds.
+	 */
+	private static final long VALIDATION_INTERVAL = 5000L;
+
+	/**
+	 * After the db could not be reached, caching is disabled for this time, in milliseconds.
+	 */
+	private static final long RETRY_INTERVAL = 60000L;
+
+	/**
+	 * Maximum number of prepared statements kept open per connection.
+	 */
+	private static final int STATEMENT_CACHE_SIZE = 32;
+
+	private final BlockingQueue<CacheConnection> idleConnections = new LinkedBlockingQueue<CacheConnection>();
+
+	/**
+	 * One permit for each connection, that may be opened.
+	 */
+	private final Semaphore permits = new Semaphore(POOL_SIZE);
+
+	private final String[] configStrings;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * If db connection is OK, caching is enabled, else not until this time has passed.
+	 */
+	private volatile long disabledUntil = 0;
+
+	public KpiCacheDataSource() {
+		this.configStrings = lookupConfigs();
+		try {
+			Class.forName("com.mysql.jdbc.Driver");
+		} catch(ClassNotFoundException e) {
+			KpiDataProvider.LOGGER.error("MySQL driver not found, caching disabled: " + e.getMessage());
+			this.closed = true;
+		}
+	}
+
+	/**
+	 * Reads the connection configs from /home/jira/cfg/app.conf.
+	 *
+	 * @return String array containing in that order: DB host, name, user, password
+	 */
+	private String[] lookupConfigs() {
+		return null; // Add here String array containing in that order: DB host, name, user, password
+	}
+
+	/**
+	 * @return true, if connections to the caching db can be handed out
+	 */
+	public boolean isCacheEnabled() {
+		return closed == false && configStrings != null && configStrings.length >= 4
+				&& System.currentTimeMillis() >= disabledUntil;
+	}
+
+	/**
+	 * Hands out a validated connection. Each borrowed connection has to be given back by {@link #release}.
+	 *
+	 * @return a connection to the caching db, null if caching is disabled or no connection is available in time
+	 */
+	public CacheConnection borrow() {
+		if(isCacheEnabled() == false) {
+			return null;
+		}
+
+		long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+		CacheConnection con = idleConnections.poll();
+		try {
+			while(true) {
+				if(con != null) {
+					if(con.validate()) {
+						return con;
+					}
+					discard(con);
+				} else if(permits.tryAcquire()) {
+					return openConnection();
+				} else {
+					// all connections are in use, wait for one to be released
+					con = idleConnections.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+					if(con == null) {
+						KpiDataProvider.LOGGER.warn("No free connection to caching db within " + BORROW_TIMEOUT + "ms");
+						return null;
+					}
+					continue;
+				}
+				con = idleConnections.poll();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a new connection. The caller holds the permit for it.
+	 */
+	private CacheConnection openConnection() {
+		String host = configStrings[0];
+		String name = configStrings[1];
+		String user = configStrings[2];
+		String pass = configStrings[3];
+		try {
+			KpiDataProvider.LOGGER.debug("Trying to establish DB connection");
+			// let the driver send each batch as one multi row insert
+			Connection con = DriverManager.getConnection("jdbc:mysql://" + host + "/" + name
+					+ "?rewriteBatchedStatements=true", user, pass);
+			return new CacheConnection(con);
+		} catch(SQLException se) {
+			permits.release();
+			disabledUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+			KpiDataProvider.LOGGER.error("SQL Connection problem, caching disabled for " + RETRY_INTERVAL + "ms: "
+					+ se.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Gives a borrowed connection back to the pool.
+	 *
+	 * @param con
+	 *            the borrowed connection, may be null
+	 * @param broken
+	 *            true, if using the connection failed. It is closed instead of being reused.
+	 */
+	public void release(CacheConnection con, boolean broken) {
+		if(con == null) {
+			return;
+		}
+		if(broken || closed) {
+			discard(con);
+		} else {
+			con.lastUsed = System.currentTimeMillis();
+			idleConnections.offer(con);
+			// the plugin may have been disabled meanwhile
+			if(closed && idleConnections.remove(con)) {
+				discard(con);
+			}
+		}
+	}
+
+	private void discard(CacheConnection con) {
+		con.close();
+		permits.release();
+	}
+
+	/**
+	 * Closes all idle connections, when the plugin is disabled. Borrowed connections are closed on release.
+	 */
+	public void destroy() {
+		closed = true;
+		CacheConnection con;
+		while((con = idleConnections.poll()) != null) {
+			discard(con);
+		}
+	}
+
+	/**
+	 * One pooled connection to the caching db, together with its prepared statements. A connection is used by one
+	 * thread at a time only.
+	 */
+	public static final class CacheConnection {
+
+		private final Connection con;
+
+		private long lastUsed = System.currentTimeMillis();
+
+		/**
+		 * The prepared statements of this connection by their SQL, the least recently used is closed first.
+		 */
+		private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16,
+				0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if(size() > STATEMENT_CACHE_SIZE) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+
+		private CacheConnection(Connection con) {
+			this.con = con;
+		}
+
+		/**
+		 * Returns the prepared statement for the given SQL, which is only created on first use.
+		 *
+		 * @param sql
+		 *            the SQL with ? placeholders
+		 * @return the prepared statement, with cleared parameters
+		 * @throws SQLException
+		 *             if the statement can't be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stmt = statements.get(sql);
+			if(stmt == null) {
+				stmt = con.prepareStatement(sql);
+				statements.put(sql, stmt);
+			} else {
+				stmt.clearParameters();
+				stmt.clearBatch();
+			}
+			return stmt;
+		}
+
+		/**
+		 * @return true, if the connection is still usable
+		 */
+		private boolean validate() {
+			if(System.currentTimeMillis() - lastUsed < VALIDATION_INTERVAL) {
+				return true;
+			}
+			try {
+				prepare("SELECT 1;").executeQuery().close();
+				return true;
+			} catch(SQLException e) {
+				KpiDataProvider.LOGGER.debug("Discarding invalid DB connection: " + e.getMessage());
+				return false;
+			}
+		}
+
+		private void close() {
+			for(PreparedStatement stmt : statements.values()) {
+				closeQuietly(stmt);
+			}
+			statements.clear();
+			try {
+				con.close();
+			} catch(SQLException e) {
+				KpiDataProvider.LOGGER.debug("Exception while closing DB connection: " + e.getMessage());
+			}
+		}
+
+		private static void closeQuietly(Statement stmt) {
+			try {
+				stmt.close();
+			} catch(SQLException e) {
+				KpiDataProvider.LOGGER.debug("Exception while closing statement: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent store of the calculated open issues per severity level, behind the memory cache. Implementations must be
+ * thread safe and must not throw on storage failures: a value that cannot be read counts as missing and is calculated
+ * again.
+ *
+ * @author jschweizer
+ *
+ */
+public interface KpiCacheStore {
+
+	/**
+	 * Retrieves all stored values of the given projects at the given times.
+	 *
+	 * @param ids
+	 *            the project ids
+	 * @param stamps
+	 *            the timestamps the values are requested for, in ascending order
+	 * @return for each project id the counts in the order of the timestamps, null for each value that could not be
+	 *         found
+	 */
+	Map<Long, SeverityCounts[]> getCachedValues(Collection<Long> ids, List<Timestamp> stamps);
+
+	/**
+	 * Stores the counts of several projects at several times.
+	 *
+	 * @param points
+	 *            the counts to store
+	 */
+	void cacheValues(Collection<KpiPoint> points);
+
+	/**
+	 * Deletes the stored values of one project, starting at the given time.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param from
+	 *            the first time, that is not valid anymore
+	 */
+	void deleteValues(long id, Timestamp from);
+}
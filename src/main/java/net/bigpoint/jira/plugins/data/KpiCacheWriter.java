@@ -0,0 +1,353 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Write-behind queue in front of the persistent cache store: calculated values are queued by the request and written
+ * in batches by a background thread. If the queue is full, the request waits a short time for space and drops the
+ * remaining values afterwards, they are calculated again when needed. Deletions remove the queued values they affect
+ * and are queued as tombstones, in order with the values, so the thread saving an issue never waits for the store.
+ * Until a tombstone is written, the stored values it deletes must be ignored, see {@link #getPendingDeletion(long)}.
+ * The queue is flushed when the plugin is disabled.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiCacheWriter implements InitializingBean, DisposableBean {
+
+	/**
+	 * Maximum number of queued values.
+	 */
+	private static final int QUEUE_SIZE = Integer.getInteger("kpi.writeBehind.queueSize", 10000);
+
+	/**
+	 * Maximum number of values written at once.
+	 */
+	private static final int BATCH_SIZE = Integer.getInteger("kpi.writeBehind.batchSize", 500);
+
+	/**
+	 * Milliseconds a request waits for space in a full queue.
+	 */
+	private static final long OFFER_TIMEOUT = Long.getLong("kpi.writeBehind.offerTimeout", 1000L);
+
+	/**
+	 * Milliseconds the background thread gets to write the queue, when the plugin is disabled.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10000L;
+
+	private final KpiCacheStore store;
+
+	private final KpiMetrics metrics;
+
+	/**
+	 * The queued values and tombstones. A tombstone has no counts, its time is the first deleted one.
+	 */
+	private final LinkedList<KpiPoint> queue = new LinkedList<KpiPoint>();
+
+	/**
+	 * The earliest time deleted by the queued tombstones of each project, guarded by the queue lock.
+	 */
+	private final Map<Long, Long> pendingFrom = new HashMap<Long, Long>();
+
+	/**
+	 * The number of queued tombstones of each project, guarded by the queue lock.
+	 */
+	private final Map<Long, Integer> pendingCount = new HashMap<Long, Integer>();
+
+	private final ReentrantLock queueLock = new ReentrantLock();
+
+	private final Condition notEmpty = queueLock.newCondition();
+
+	private final Condition notFull = queueLock.newCondition();
+
+	/**
+	 * Held while a batch is taken from the queue and written.
+	 */
+	private final Object writeLock = new Object();
+
+	private volatile Thread worker;
+
+	private volatile boolean running;
+
+	public KpiCacheWriter(KpiCacheBackend store, KpiMetrics metrics) {
+		this.store = store;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts the background thread, when the plugin is enabled.
+	 */
+	public void afterPropertiesSet() {
+		running = true;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				writeQueue();
+			}
+		}, "kpi-cache-writer");
+		thread.setDaemon(true);
+		thread.start();
+		worker = thread;
+	}
+
+	/**
+	 * Stops the background thread and writes the remaining values, when the plugin is disabled.
+	 */
+	public void destroy() {
+		Thread thread = worker;
+		running = false;
+		queueLock.lock();
+		try {
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			queueLock.unlock();
+		}
+		if(thread != null) {
+			try {
+				thread.join(SHUTDOWN_TIMEOUT);
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// values queued from now on are written at once
+		worker = null;
+		while(writeBatch()) {
+			// until the queue is empty
+		}
+	}
+
+	/**
+	 * Queues values to be written to the store. Without running background thread they are written at once.
+	 *
+	 * @param points
+	 *            the values of closed buckets
+	 */
+	public void write(Collection<KpiPoint> points) {
+		write(points, null, 0);
+	}
+
+	/**
+	 * Queues values to be written to the store, unless the values of their project are evicted meanwhile. The eviction
+	 * counter is checked while the queue is locked, so each value is either queued before the eviction removes the
+	 * queued values, or not at all. The caller doesn't need to hold a lock while the request waits for space.
+	 *
+	 * @param points
+	 *            the values of closed buckets, all of one project
+	 * @param evictions
+	 *            the eviction counter of the project, null to queue the values in any case
+	 * @param evictionsBefore
+	 *            the value of the counter, when the values were calculated
+	 */
+	public void write(Collection<KpiPoint> points, AtomicLong evictions, long evictionsBefore) {
+		if(points.isEmpty()) {
+			return;
+		}
+		if(worker == null) {
+			if(evictions == null || evictions.get() == evictionsBefore) {
+				store.cacheValues(points);
+			}
+			return;
+		}
+
+		long deadline = System.currentTimeMillis() + OFFER_TIMEOUT;
+		int queued = 0;
+		queueLock.lock();
+		try {
+			for(KpiPoint point : points) {
+				while(queue.size() >= QUEUE_SIZE) {
+					long wait = deadline - System.currentTimeMillis();
+					if(wait <= 0 || running == false) {
+						drop(points.size() - queued);
+						return;
+					}
+					notFull.await(wait, TimeUnit.MILLISECONDS);
+				}
+				if(evictions != null && evictions.get() != evictionsBefore) {
+					return;
+				}
+				queue.add(point);
+				queued++;
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			drop(points.size() - queued);
+		} finally {
+			notEmpty.signal();
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the stored values of one project, starting at the given time. Queued values of the project from this
+	 * time on are dropped and a tombstone is queued, which deletes the stored ones in the background. Tombstones are
+	 * queued even if the queue is full, so the caller never waits. Without running background thread the values are
+	 * deleted at once.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param from
+	 *            the first time, that is not valid anymore
+	 */
+	public void deleteValues(long id, Timestamp from) {
+		queueLock.lock();
+		try {
+			for(Iterator<KpiPoint> it = queue.iterator(); it.hasNext();) {
+				KpiPoint point = it.next();
+				if(point.getProjectId() == id && point.getCounts() != null
+						&& point.getTime().getTime() >= from.getTime()) {
+					it.remove();
+				}
+			}
+			notFull.signalAll();
+			if(worker != null) {
+				queue.add(new KpiPoint(id, from, null));
+				Long earliest = pendingFrom.get(id);
+				if(earliest == null || from.getTime() < earliest) {
+					pendingFrom.put(id, from.getTime());
+				}
+				Integer count = pendingCount.get(id);
+				pendingCount.put(id, count == null ? 1 : count + 1);
+				notEmpty.signal();
+				return;
+			}
+		} finally {
+			queueLock.unlock();
+		}
+		synchronized(writeLock) {
+			store.deleteValues(id, from);
+		}
+	}
+
+	/**
+	 * Returns the earliest time, from which on stored values of a project are deleted by a queued tombstone. Values
+	 * read from the store from this time on may be outdated. It must be read before the store is, as the tombstone may
+	 * be written meanwhile.
+	 *
+	 * @param id
+	 *            the project id
+	 * @return the time in milliseconds, Long.MAX_VALUE if no deletion of the project is queued
+	 */
+	public long getPendingDeletion(long id) {
+		queueLock.lock();
+		try {
+			Long earliest = pendingFrom.get(id);
+			return earliest == null ? Long.MAX_VALUE : earliest;
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Loop of the background thread, writes batches until the plugin is disabled and the queue is empty.
+	 */
+	private void writeQueue() {
+		while(true) {
+			queueLock.lock();
+			try {
+				while(queue.isEmpty() && running) {
+					notEmpty.await();
+				}
+				if(queue.isEmpty()) {
+					return;
+				}
+			} catch(InterruptedException ie) {
+				return;
+			} finally {
+				queueLock.unlock();
+			}
+			writeBatch();
+		}
+	}
+
+	/**
+	 * Takes the next batch from the queue and writes it. Values are written in batches up to the next tombstone, which
+	 * is written after them.
+	 *
+	 * @return true, if values were written or deleted
+	 */
+	private boolean writeBatch() {
+		synchronized(writeLock) {
+			List<KpiPoint> batch = new ArrayList<KpiPoint>();
+			queueLock.lock();
+			try {
+				while(batch.size() < BATCH_SIZE && queue.isEmpty() == false) {
+					batch.add(queue.removeFirst());
+				}
+				notFull.signalAll();
+			} finally {
+				queueLock.unlock();
+			}
+			if(batch.isEmpty()) {
+				return false;
+			}
+			List<KpiPoint> values = new ArrayList<KpiPoint>();
+			for(KpiPoint point : batch) {
+				if(point.getCounts() != null) {
+					values.add(point);
+					continue;
+				}
+				cacheValues(values);
+				values.clear();
+				try {
+					store.deleteValues(point.getProjectId(), point.getTime());
+				} catch(RuntimeException re) {
+					KpiDataProvider.LOGGER.error("Exception while deleting cached values: " + re.getMessage(), re);
+				} finally {
+					tombstoneWritten(point.getProjectId());
+				}
+			}
+			cacheValues(values);
+			return true;
+		}
+	}
+
+	private void cacheValues(List<KpiPoint> values) {
+		if(values.isEmpty()) {
+			return;
+		}
+		try {
+			store.cacheValues(values);
+		} catch(RuntimeException re) {
+			// keep the thread running, the values are calculated again when needed
+			KpiDataProvider.LOGGER.error("Exception while writing cached values: " + re.getMessage(), re);
+		}
+	}
+
+	/**
+	 * Forgets a written tombstone. The earliest deleted time of the project is kept, until all of its tombstones are
+	 * written.
+	 */
+	private void tombstoneWritten(long id) {
+		queueLock.lock();
+		try {
+			int count = pendingCount.get(id) - 1;
+			if(count == 0) {
+				pendingCount.remove(id);
+				pendingFrom.remove(id);
+			} else {
+				pendingCount.put(id, count);
+			}
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	private void drop(int count) {
+		metrics.writeBehindDropped.addAndGet(count);
+		KpiDataProvider.LOGGER.warn("Write-behind queue full, " + count + " values not cached");
+	}
+}
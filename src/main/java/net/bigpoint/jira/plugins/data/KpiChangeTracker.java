@@ -0,0 +1,127 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the last time the kpi values of each project changed, so clients can be told cheaply whether their copy
+ * is still valid. Projects without a recorded change count as changed when the plugin was enabled, because changes
+ * made before that time are unknown. The last changes of each project are kept with the first time they affected, so
+ * clients can be told which part of their copy is still valid.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiChangeTracker {
+
+	/**
+	 * Number of changes kept per project. Clients with a copy older than the oldest kept change get all values.
+	 */
+	private static final int HISTORY_SIZE = Integer.getInteger("kpi.changes.historySize", 100);
+
+	private final long started = System.currentTimeMillis();
+
+	private final ConcurrentMap<Long, ChangeHistory> histories = new ConcurrentHashMap<Long, ChangeHistory>();
+
+	/**
+	 * Records a change of the kpi values of a project.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @param from
+	 *            the first time, whose value changed, in milliseconds
+	 */
+	public void markChanged(long projectId, long from) {
+		ChangeHistory history = histories.get(projectId);
+		if(history == null) {
+			history = new ChangeHistory();
+			ChangeHistory existing = histories.putIfAbsent(projectId, history);
+			if(existing != null) {
+				history = existing;
+			}
+		}
+		history.add(System.currentTimeMillis(), from);
+	}
+
+	/**
+	 * @param projectIds
+	 *            the project ids
+	 * @return the time of the last change of any of the projects, in milliseconds
+	 */
+	public long getLastChange(Collection<Long> projectIds) {
+		long lastChange = started;
+		for(Long id : projectIds) {
+			ChangeHistory history = histories.get(id);
+			if(history != null && history.getLastChange() > lastChange) {
+				lastChange = history.getLastChange();
+			}
+		}
+		return lastChange;
+	}
+
+	/**
+	 * Returns the first time, whose value changed after a client got its copy.
+	 *
+	 * @param projectIds
+	 *            the project ids
+	 * @param changedAfter
+	 *            the time of the last change of the client's copy, in milliseconds
+	 * @return the first changed time in milliseconds, Long.MAX_VALUE if nothing changed, Long.MIN_VALUE if the changes
+	 *         are not known anymore
+	 */
+	public long getChangedFrom(Collection<Long> projectIds, long changedAfter) {
+		if(changedAfter < started) {
+			return Long.MIN_VALUE;
+		}
+		long changedFrom = Long.MAX_VALUE;
+		for(Long id : projectIds) {
+			ChangeHistory history = histories.get(id);
+			if(history != null) {
+				changedFrom = Math.min(changedFrom, history.getChangedFrom(changedAfter));
+			}
+		}
+		return changedFrom;
+	}
+
+	/**
+	 * The last changes of one project, as pairs of the time of the change and the first time it affected.
+	 */
+	private static class ChangeHistory {
+
+		private final LinkedList<long[]> changes = new LinkedList<long[]>();
+
+		/**
+		 * The time of the last change, that is not kept anymore.
+		 */
+		private long forgottenUntil = Long.MIN_VALUE;
+
+		private volatile long lastChange;
+
+		synchronized void add(long changedAt, long from) {
+			changes.add(new long[] { changedAt, from });
+			if(changes.size() > HISTORY_SIZE) {
+				forgottenUntil = changes.removeFirst()[0];
+			}
+			lastChange = Math.max(lastChange, changedAt);
+		}
+
+		long getLastChange() {
+			return lastChange;
+		}
+
+		synchronized long getChangedFrom(long changedAfter) {
+			if(changedAfter < forgottenUntil) {
+				return Long.MIN_VALUE;
+			}
+			long changedFrom = Long.MAX_VALUE;
+			for(long[] change : changes) {
+				if(change[0] > changedAfter) {
+					changedFrom = Math.min(changedFrom, change[1]);
+				}
+			}
+			return changedFrom;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package net.bigpoint.jira.plugins.data;
+
+/**
+ * Thrown if KPIs could not be calculated in time, i.e. the request deadline passed or the server is too busy.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiComputationException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public KpiComputationException(String message) {
+		super(message);
+	}
+}
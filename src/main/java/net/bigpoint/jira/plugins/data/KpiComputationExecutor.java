@@ -0,0 +1,165 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Bounded worker pool of the plugin, calculating independent projects in parallel. The number of threads, the number
+ * of waiting tasks, the number of tasks one request may have in the pool at a time and the deadline of one request can
+ * be configured by system properties to protect the JIRA node. Workers are never interrupted, as they may be reading
+ * the issues or the search index: tasks are cancelled by a flag they check between issues and searches. The pool is
+ * shut down, when the plugin is disabled.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiComputationExecutor implements DisposableBean {
+
+	/**
+	 * Number of worker threads, default: half of the available processors.
+	 */
+	private static final int POOL_SIZE = Integer.getInteger("kpi.compute.threads", Math.max(1, Runtime.getRuntime()
+			.availableProcessors() / 2));
+
+	/**
+	 * Maximum number of tasks waiting for a worker.
+	 */
+	private static final int QUEUE_SIZE = Integer.getInteger("kpi.compute.queueSize", 1000);
+
+	/**
+	 * Maximum number of tasks of one request, that are running or waiting for a worker at a time. The others are
+	 * submitted as these finish, so a request for many projects doesn't fill the queue on its own.
+	 */
+	private static final int TASKS_PER_REQUEST = Integer.getInteger("kpi.compute.tasksPerRequest", 2 * POOL_SIZE);
+
+	/**
+	 * Maximum time one request may spend waiting for its calculations, in milliseconds.
+	 */
+	private static final long DEADLINE = Long.getLong("kpi.compute.deadline", 60000L);
+
+	private final ThreadPoolExecutor executor;
+
+	public KpiComputationExecutor() {
+		executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+				QUEUE_SIZE), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kpi-compute-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs all tasks in parallel and waits for their results until the request deadline. At most
+	 * {@link #TASKS_PER_REQUEST} tasks are in the pool at a time, the next one is submitted when one finishes. If the
+	 * deadline passes, the pool is saturated or a task fails, the cancellation flag is set for the running tasks and the
+	 * waiting ones are removed.
+	 *
+	 * @param tasks
+	 *            the tasks
+	 * @param cancelled
+	 *            the cancellation flag the tasks check
+	 * @return the results of the tasks, in the same order
+	 * @throws KpiComputationException
+	 *             if the deadline passed, the pool is saturated or a task failed
+	 */
+	public <T> List<T> invokeAll(List<Callable<T>> tasks, AtomicBoolean cancelled) throws KpiComputationException {
+		long deadline = System.currentTimeMillis() + DEADLINE;
+		CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+		Map<Future<T>, Integer> running = new HashMap<Future<T>, Integer>();
+		List<T> results = new ArrayList<T>(Collections.<T> nCopies(tasks.size(), null));
+		int submitted = 0;
+		try {
+			while(submitted < tasks.size() || running.isEmpty() == false) {
+				while(submitted < tasks.size() && running.size() < TASKS_PER_REQUEST) {
+					running.put(completion.submit(tasks.get(submitted)), submitted);
+					submitted++;
+				}
+				Future<T> done = completion.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				if(done == null) {
+					cancel(running.keySet(), cancelled);
+					throw new KpiComputationException("Calculating the KPIs took longer than " + DEADLINE / 1000
+							+ " seconds, please reduce the period, interval or the number of projects");
+				}
+				results.set(running.remove(done), done.get());
+			}
+			return results;
+		} catch(RejectedExecutionException ree) {
+			cancel(running.keySet(), cancelled);
+			throw new KpiComputationException("The server is too busy calculating KPIs, please try again later");
+		} catch(CancellationException ce) {
+			cancel(running.keySet(), cancelled);
+			throw new KpiComputationException("Calculating the KPIs was stopped");
+		} catch(InterruptedException ie) {
+			cancel(running.keySet(), cancelled);
+			Thread.currentThread().interrupt();
+			throw new KpiComputationException("Calculating the KPIs was interrupted");
+		} catch(ExecutionException ee) {
+			cancel(running.keySet(), cancelled);
+			KpiDataProvider.LOGGER.error("Exception while calculating KPIs: " + ee.getCause(), ee.getCause());
+			throw new KpiComputationException("Calculating the KPIs failed: " + ee.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Cancels the tasks of a request without interrupting the workers: waiting tasks are not started anymore, running
+	 * ones stop at their next check of the flag.
+	 */
+	private void cancel(Collection<? extends Future<?>> futures, AtomicBoolean cancelled) {
+		cancelled.set(true);
+		for(Future<?> future : futures) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * @param cancelled
+	 *            the cancellation flag of the request
+	 * @param what
+	 *            the cancelled calculation, for the message
+	 * @throws InterruptedException
+	 *             if the request was cancelled or the thread was interrupted
+	 */
+	public static void checkCancelled(AtomicBoolean cancelled, String what) throws InterruptedException {
+		if(cancelled.get() || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException(what + " cancelled");
+		}
+	}
+
+	/**
+	 * Stops all workers, when the plugin is disabled. Waiting tasks are cancelled, running ones are not interrupted and
+	 * finish their current project.
+	 */
+	public void destroy() {
+		executor.shutdown();
+		List<Runnable> waiting = new ArrayList<Runnable>();
+		executor.getQueue().drainTo(waiting);
+		for(Runnable task : waiting) {
+			if(task instanceof Future<?>) {
+				((Future<?>) task).cancel(false);
+			}
+		}
+	}
+}
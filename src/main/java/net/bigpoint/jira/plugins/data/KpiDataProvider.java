@@ -2,20 +2,31 @@ package net.bigpoint.jira.plugins.data;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.ofbiz.core.entity.GenericEntityException;
 
-import com.atlassian.jira.issue.CustomFieldManager;
 import com.atlassian.jira.issue.IssueManager;
 import com.atlassian.jira.issue.MutableIssue;
-import com.atlassian.jira.issue.fields.CustomField;
 import com.atlassian.jira.project.ProjectManager;
 
 /**
- * Internal DataProvider for the Key performance indicator plugin.
+ * Internal DataProvider for the Key performance indicator plugin. One instance is shared by all requests, it is set up
+ * by the component module in atlassian-plugin.xml.
  *
  * @author jschweizer
  *
@@ -23,16 +34,42 @@ import com.atlassian.jira.project.ProjectManager;
 public class KpiDataProvider {
 
 	/**
-	 * The name of the custom filed, used by the plugin.
+	 * status description of the issue status: closed.
 	 */
-	private final String CUSTOM_FIELD_SEVERITY = "Severity";
+	static final String STRING_ISSUE_CLOSED = "Closed";
+
+	protected static final Logger LOGGER = Logger.getLogger(KpiDataProvider.class);
 
 	/**
-	 * status description of the issue status: closed.
+	 * Milliseconds the counts of buckets, that are still open, are kept in the memory cache. They are never stored
+	 * persistently, because they change until the bucket is closed.
 	 */
-	private final String STRING_ISSUE_CLOSED = "Closed";
+	private static final long OPEN_BUCKET_TTL = Long.getLong("kpi.memoryCache.openBucketTtl", 60000L);
 
-	protected static final Logger LOGGER = Logger.getLogger(KpiDataProvider.class);
+	/**
+	 * How values are calculated: "entities" loads every issue of a project, "index" counts the issues with the search
+	 * index, "auto" uses the index for projects with at least {@link #INDEX_THRESHOLD} issues, if the values need at
+	 * most {@link #INDEX_MAX_SEARCHES} searches.
+	 */
+	private static final String COMPUTATION_MODE = System.getProperty("kpi.computation.mode", "entities");
+
+	private static final int INDEX_THRESHOLD = Integer.getInteger("kpi.computation.indexThreshold", 100000);
+
+	/**
+	 * Maximum number of searches of one project in mode "auto". The index costs one search per time and severity slot,
+	 * so long timelines are calculated faster by loading the issues once.
+	 */
+	private static final int INDEX_MAX_SEARCHES = Integer.getInteger("kpi.computation.indexMaxSearches", 250);
+
+	/**
+	 * Maximum number of cached aggregated values of project categories.
+	 */
+	private static final int CATEGORY_CACHE_CAPACITY = Integer.getInteger("kpi.categoryCache.capacity", 20000);
+
+	/**
+	 * Number of issues assumed for a project, whose issues were never read and can't be counted by the index.
+	 */
+	private static final int UNKNOWN_PROJECT_ISSUES = Integer.getInteger("kpi.admission.unknownProjectIssues", 10000);
 
 	// multiplicator determined by PO fregel
 	private final double MULTIPLICATOR_TYPE_ONE = 0.5; // 1 * 0.5
@@ -41,16 +78,103 @@ public class KpiDataProvider {
 	private final double MULTIPLICATOR_TYPE_FOUR = 6; // 4 * 1.5
 	private final double MULTIPLICATOR_TYPE_FIVE = 9; // 5*1.8
 
+	/**
+	 * The multiplicators indexed by severity level, level 0 collects all other severities. They are applied to the
+	 * cached counts on each request, so a change does not invalidate the cache.
+	 */
+	private final double[] levelWeights = { 0, MULTIPLICATOR_TYPE_ONE, MULTIPLICATOR_TYPE_TWO, MULTIPLICATOR_TYPE_THREE,
+			MULTIPLICATOR_TYPE_FOUR, MULTIPLICATOR_TYPE_FIVE };
+
 	private IssueManager issueManager;
-	private CustomFieldManager cfManager;
 
-	private KpiCacheDBMapper m_cacheDB;
+	/**
+	 * Severity level of each issue, the multiplicator is looked up by level.
+	 */
+	private SeverityLevelCache m_severityLevels;
+
+	/**
+	 * Persistent store behind the memory cache.
+	 */
+	private KpiCacheStore m_cacheStore;
+
+	/**
+	 * Writes calculated values to the persistent cache store in the background.
+	 */
+	private KpiCacheWriter m_cacheWriter;
+
+	/**
+	 * Memory cache in front of the persistent cache store.
+	 */
+	private KpiPointCache m_memoryCache;
+
+	/**
+	 * Worker pool calculating projects in parallel.
+	 */
+	private KpiComputationExecutor m_executor;
+
+	/**
+	 * Last change of the kpi values of each project.
+	 */
+	private KpiChangeTracker m_changeTracker;
+
+	private KpiMetrics m_metrics;
+
+	/**
+	 * Counts issues with the search index, for the computation modes "index" and "auto".
+	 */
+	private KpiIndexCounter m_indexCounter;
+
+	/**
+	 * Aggregated counts of the member projects of each category, keyed by category id.
+	 */
+	private final KpiPointCache m_categoryCache = new KpiPointCache(CATEGORY_CACHE_CAPACITY);
+
+	/**
+	 * The member projects of each category with cached aggregates, as they were when the aggregates were calculated.
+	 * Guards all changes of the category cache.
+	 */
+	private final Map<Long, Set<Long>> m_categoryMembers = new HashMap<Long, Set<Long>>();
+
+	/**
+	 * Counts the evictions of category aggregates. Aggregates calculated while one happened are not cached.
+	 */
+	private long m_categoryEvictions = 0;
+
+	/**
+	 * Counts the evictions of each project. Values calculated while one happened are not cached. Each counter guards
+	 * caching and evicting the values of its project.
+	 */
+	private final ConcurrentMap<Long, AtomicLong> m_projectEvictions = new ConcurrentHashMap<Long, AtomicLong>();
+
+	/**
+	 * Number of issues of each project, as they were last read or counted. Only used to estimate the cost of requests.
+	 */
+	private final Map<Long, Integer> m_issueCounts = new ConcurrentHashMap<Long, Integer>();
+
+	/**
+	 * Running calculations of whole requests, by project ids and timestamps.
+	 */
+	private final SingleFlight<List<Object>, Map<Long, SeverityCounts[]>> m_requestFlights = new SingleFlight<List<Object>, Map<Long, SeverityCounts[]>>();
+
+	/**
+	 * Running calculations of single projects, by project id and timestamps.
+	 */
+	private final SingleFlight<List<Object>, SeverityCounts[]> m_projectFlights = new SingleFlight<List<Object>, SeverityCounts[]>();
 
-	public KpiDataProvider(ProjectManager pm, IssueManager im, CustomFieldManager cfManager) {
+	public KpiDataProvider(ProjectManager pm, IssueManager im, SeverityLevelCache severityLevels,
+			KpiCacheBackend cacheStore, KpiCacheWriter cacheWriter, KpiPointCache memoryCache,
+			KpiComputationExecutor executor, KpiChangeTracker changeTracker, KpiMetrics metrics,
+			KpiIndexCounter indexCounter) {
 		this.issueManager = im;
-		this.cfManager = cfManager;
+		this.m_severityLevels = severityLevels;
 
-		this.m_cacheDB = new KpiCacheDBMapper();
+		this.m_cacheStore = cacheStore;
+		this.m_cacheWriter = cacheWriter;
+		this.m_memoryCache = memoryCache;
+		this.m_executor = executor;
+		this.m_changeTracker = changeTracker;
+		this.m_metrics = metrics;
+		this.m_indexCounter = indexCounter;
 
 	}
 
@@ -62,126 +186,671 @@ public class KpiDataProvider {
 	 * @param end
 	 *            the timestamp, the value is requested for
 	 * @return the kpi value of the project
+	 * @throws KpiComputationException
+	 *             if the value could not be calculated in time
 	 */
-	public double calculateKpiForProjectAtTime(long id, Timestamp end) {
-		double cachedVlaue = this.m_cacheDB.getCachedValue(id, end);
-		if(cachedVlaue == -1) {
-			KpiDataProvider.LOGGER.info("No cached value: Calculating and caching for project: " + id + " at " + end);
-			double kpiNumber = -1;
-			kpiNumber = this.calculateKpi(getUnclosedIssuesFromManager(id, end));
-			this.m_cacheDB.cacheValue(id, end, kpiNumber);
-			return kpiNumber;
-		} else {
-			return cachedVlaue;
-		}
+	public double calculateKpiForProjectAtTime(long id, Timestamp end) throws KpiComputationException {
+		return calculateKpisForProject(id, Collections.singletonList(end))[0];
 	}
 
 	/**
-	 * Returns all issues, not closed. These influence the KPI.
+	 * Calculates or returns the cached kpi values for one project at several times.
 	 *
 	 * @param id
 	 *            the project id
-	 * @param tsEnd
-	 *            the timestamp of the last date considered
-	 * @return a list containing all MutableIssues objects, which are not closed
+	 * @param stamps
+	 *            the timestamps the values are requested for, in ascending order
+	 * @return the kpi value of the project for each timestamp, in the same order
+	 * @throws KpiComputationException
+	 *             if the values could not be calculated in time
+	 */
+	public double[] calculateKpisForProject(long id, List<Timestamp> stamps) throws KpiComputationException {
+		return calculateKpis(Collections.singletonList(id), stamps).get(id);
+	}
+
+	/**
+	 * Calculates or returns the cached kpi values for several projects at several times.
+	 *
+	 * @param ids
+	 *            the project ids
+	 * @param stamps
+	 *            the timestamps the values are requested for, in ascending order
+	 * @return for each project id the kpi values in the order of the timestamps
+	 * @throws KpiComputationException
+	 *             if the values could not be calculated before the request deadline
 	 */
-	private List<Long> getUnclosedIssuesFromManager(long id, Timestamp tsEnd) {
+	public Map<Long, double[]> calculateKpis(Collection<Long> ids, List<Timestamp> stamps)
+			throws KpiComputationException {
+		Map<Long, double[]> values = new HashMap<Long, double[]>();
+		for(Map.Entry<Long, SeverityCounts[]> entry : calculateSeverityCounts(ids, stamps).entrySet()) {
+			values.put(entry.getKey(), getKpiValues(entry.getValue()));
+		}
+		return values;
+	}
 
+	/**
+	 * Calculates or returns the cached numbers of open issues per severity level for several projects at several times.
+	 * Identical concurrent requests are calculated only once, later callers wait for the result of the first one. If
+	 * the first one fails, they calculate the request on their own, with their own deadline.
+	 *
+	 * @param ids
+	 *            the project ids
+	 * @param stamps
+	 *            the timestamps the counts are requested for, in ascending order
+	 * @return for each project id the counts in the order of the timestamps. The arrays may be shared with other
+	 *         callers and must not be modified.
+	 * @throws KpiComputationException
+	 *             if the counts could not be calculated before the request deadline
+	 */
+	public Map<Long, SeverityCounts[]> calculateSeverityCounts(final Collection<Long> ids, final List<Timestamp> stamps)
+			throws KpiComputationException {
+		List<Object> request = Arrays.<Object> asList(new ArrayList<Long>(ids), new ArrayList<Timestamp>(stamps));
+		final AtomicBoolean own = new AtomicBoolean();
 		try {
-			Collection<Long> issueIds = issueManager.getIssueIdsForProject(id);
-			List<Long> unclosedAtTime = new ArrayList<Long>();
-			for(Long longId : issueIds) {
-				MutableIssue issue = issueManager.getIssueObject(longId);
+			return m_requestFlights.execute(request, new Callable<Map<Long, SeverityCounts[]>>() {
+				public Map<Long, SeverityCounts[]> call() throws KpiComputationException {
+					own.set(true);
+					return calculateSeverityCountsOnce(ids, stamps);
+				}
+			});
+		} catch(ExecutionException ee) {
+			if(own.get() == false && Thread.currentThread().isInterrupted() == false) {
+				// the other request failed, e.g. at its deadline or because it was cancelled, but this one is still
+				// running. The projects the other request completed are cached already.
+				KpiDataProvider.LOGGER.info("Coalesced KPI request failed, calculating it again: "
+						+ ee.getCause().getMessage());
+				return calculateSeverityCountsOnce(ids, stamps);
+			}
+			if(ee.getCause() instanceof KpiComputationException) {
+				throw (KpiComputationException) ee.getCause();
+			}
+			KpiDataProvider.LOGGER.error("Exception while calculating KPIs: " + ee.getCause(), ee.getCause());
+			throw new KpiComputationException("Calculating the KPIs failed: " + ee.getCause().getMessage());
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new KpiComputationException("Calculating the KPIs was interrupted");
+		}
+	}
 
-				if(issue.getStatusObject().getName().equals(STRING_ISSUE_CLOSED) == false && issue.getCreated().before(tsEnd)) {
-					unclosedAtTime.add(issue.getId());
-				} else {
-					if(issue.getResolutionDate() != null && issue.getCreated().before(tsEnd) && issue.getResolutionDate().after(tsEnd)) {
-						unclosedAtTime.add(issue.getId());
+	/**
+	 * Calculates the missing counts of one project in the calling thread and caches them, without the worker pool and
+	 * the request deadline. Meant for background work like the nightly precomputation, which should neither take
+	 * workers from the requests nor be cut off at their deadline. If a request is calculating the same counts, its
+	 * result is used.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param stamps
+	 *            the timestamps the counts are calculated for, in ascending order
+	 * @throws InterruptedException
+	 *             if the thread was interrupted
+	 */
+	public void precomputeSeverityCounts(long id, List<Timestamp> stamps) throws InterruptedException {
+		SeverityCounts[] values = getCachedSeverityCounts(Collections.singletonList(id), stamps).get(id);
+		calculateMissingValues(id, stamps, values, new AtomicLong(), new AtomicBoolean());
+	}
+
+	/**
+	 * Weighs counts with the multiplicators of the severity levels.
+	 *
+	 * @param counts
+	 *            the open issues per severity level at one time
+	 * @return the kpi value
+	 */
+	public double getKpiValue(SeverityCounts counts) {
+		return counts.weigh(levelWeights);
+	}
+
+	/**
+	 * Weighs counts with the multiplicators of the severity levels.
+	 *
+	 * @param counts
+	 *            the open issues per severity level at several times
+	 * @return the kpi value for each of the counts, in the same order
+	 */
+	public double[] getKpiValues(SeverityCounts[] counts) {
+		double[] values = new double[counts.length];
+		for(int i = 0; i < counts.length; i++) {
+			values[i] = getKpiValue(counts[i]);
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the cached counts for several projects at several times without calculating any. Counts are looked up in
+	 * the memory cache first, the counts missing there are read from the persistent cache store at once.
+	 *
+	 * @param ids
+	 *            the project ids
+	 * @param stamps
+	 *            the timestamps the counts are requested for, in ascending order
+	 * @return for each project id the counts in the order of the timestamps, null for each count, that is not cached
+	 */
+	public Map<Long, SeverityCounts[]> getCachedSeverityCounts(Collection<Long> ids, List<Timestamp> stamps) {
+		Map<Long, SeverityCounts[]> values = new HashMap<Long, SeverityCounts[]>();
+		Set<Long> notInMemory = new HashSet<Long>();
+		int memoryMisses = 0;
+		for(Long id : ids) {
+			SeverityCounts[] projectValues = new SeverityCounts[stamps.size()];
+			for(int i = 0; i < projectValues.length; i++) {
+				projectValues[i] = this.m_memoryCache.get(id, stamps.get(i).getTime());
+				if(projectValues[i] == null) {
+					notInMemory.add(id);
+					memoryMisses++;
+				}
+			}
+			values.put(id, projectValues);
+		}
+		this.m_metrics.memoryCacheHits.addAndGet(ids.size() * stamps.size() - memoryMisses);
+		this.m_metrics.memoryCacheMisses.addAndGet(memoryMisses);
+
+		Map<Long, Long> evictionsBefore = new HashMap<Long, Long>();
+		Map<Long, Long> deletedFrom = new HashMap<Long, Long>();
+		for(Long id : notInMemory) {
+			evictionsBefore.put(id, getProjectEvictions(id).get());
+			deletedFrom.put(id, this.m_cacheWriter.getPendingDeletion(id));
+		}
+		Map<Long, SeverityCounts[]> dbValues = this.m_cacheStore.getCachedValues(notInMemory, stamps);
+		long now = System.currentTimeMillis();
+		int dbMisses = 0;
+		for(Map.Entry<Long, SeverityCounts[]> entry : dbValues.entrySet()) {
+			long id = entry.getKey();
+			SeverityCounts[] projectValues = values.get(id);
+			SeverityCounts[] cachedValues = entry.getValue();
+			AtomicLong evictions = getProjectEvictions(id);
+			synchronized(evictions) {
+				// values read before an eviction may be outdated, they are calculated again
+				boolean valid = evictions.get() == evictionsBefore.get(id);
+				long deleted = deletedFrom.get(id);
+				for(int i = 0; i < projectValues.length; i++) {
+					// stored values of open buckets are outdated, left from before open buckets were kept apart
+					if(valid && projectValues[i] == null && cachedValues[i] != null
+							&& isOpenBucket(stamps.get(i), now) == false && stamps.get(i).getTime() < deleted) {
+						projectValues[i] = cachedValues[i];
+						this.m_memoryCache.put(id, stamps.get(i).getTime(), cachedValues[i]);
+					}
+					if(projectValues[i] == null) {
+						dbMisses++;
 					}
 				}
 			}
-			return unclosedAtTime;
+		}
+		this.m_metrics.dbCacheHits.addAndGet(memoryMisses - dbMisses);
+		this.m_metrics.dbCacheMisses.addAndGet(dbMisses);
+		return values;
+	}
 
-		} catch(GenericEntityException gee) {
-			KpiDataProvider.LOGGER.error("Exception while searching issues form Manager " + gee.getMessage());
-			return null;
+	/**
+	 * Reads the counts of one project from the persistent cache store only, without filling the memory cache, so bulk
+	 * reads of old values don't evict the values of current requests. Stored values of open buckets and values whose
+	 * deletion is still queued are ignored.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param stamps
+	 *            the timestamps the counts are requested for, in ascending order
+	 * @return the counts in the order of the timestamps, null for each count, that is not stored
+	 */
+	public SeverityCounts[] getStoredSeverityCounts(long id, List<Timestamp> stamps) {
+		long deleted = this.m_cacheWriter.getPendingDeletion(id);
+		SeverityCounts[] values = this.m_cacheStore.getCachedValues(Collections.singletonList(id), stamps).get(id);
+		long now = System.currentTimeMillis();
+		int misses = 0;
+		for(int i = 0; i < values.length; i++) {
+			if(values[i] != null && (isOpenBucket(stamps.get(i), now) || stamps.get(i).getTime() >= deleted)) {
+				values[i] = null;
+			}
+			if(values[i] == null) {
+				misses++;
+			}
+		}
+		this.m_metrics.dbCacheHits.addAndGet(values.length - misses);
+		this.m_metrics.dbCacheMisses.addAndGet(misses);
+		return values;
+	}
+
+	/**
+	 * Calculates or returns the cached counts for several projects at several times. The issues of each project with
+	 * counts missing in all cache tiers are read only once and all missing counts are filled in one sweep over them.
+	 * These projects are calculated in parallel.
+	 */
+	private Map<Long, SeverityCounts[]> calculateSeverityCountsOnce(Collection<Long> ids,
+			final List<Timestamp> stamps) throws KpiComputationException {
+		long started = System.nanoTime();
+		Map<Long, SeverityCounts[]> values = getCachedSeverityCounts(ids, stamps);
+		List<Callable<Object>> calculations = new ArrayList<Callable<Object>>();
+		final AtomicLong issuesScanned = new AtomicLong();
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		for(Map.Entry<Long, SeverityCounts[]> entry : values.entrySet()) {
+			final long id = entry.getKey();
+			final SeverityCounts[] projectValues = entry.getValue();
+			if(Arrays.asList(projectValues).contains(null)) {
+				calculations.add(new Callable<Object>() {
+					public Object call() throws InterruptedException {
+						calculateMissingValues(id, stamps, projectValues, issuesScanned, cancelled);
+						return null;
+					}
+				});
+			}
 		}
+
+		// independent projects are calculated in parallel
+		this.m_executor.invokeAll(calculations, cancelled);
+		this.m_metrics.issuesScannedPerRequest.record(issuesScanned.get());
+		this.m_metrics.calculationLatency.record(KpiMetrics.microsSince(started));
+		return values;
 	}
 
 	/**
-	 * Calculating the KPI for a given set of issues
+	 * Removes the cached values of one project from all cache tiers, starting at the given time. They are calculated
+	 * again on the next request. The memory tiers are evicted at once, the persistent store in the background, so the
+	 * thread saving an issue never waits for the store.
 	 *
-	 * @param unclosedIssues
-	 *            the list of issues
-	 * @return the kpi based on predefined mulitplicator
+	 * @param id
+	 *            the project id
+	 * @param from
+	 *            the first time, that is not valid anymore, in milliseconds
 	 */
-	private double calculateKpi(Collection<Long> unclosedIssues) {
-		double kpi = 0.0;
-		if(unclosedIssues != null && unclosedIssues.size() > 0) {
-			for(long l : unclosedIssues) {
+	public void evictCachedValues(long id, long from) {
+		KpiDataProvider.LOGGER.debug("Evicting cached values for project: " + id + " from " + new Timestamp(from));
+		AtomicLong evictions = getProjectEvictions(id);
+		synchronized(evictions) {
+			evictions.incrementAndGet();
+			this.m_memoryCache.evict(id, from);
+			this.m_cacheWriter.deleteValues(id, new Timestamp(from));
+		}
+		synchronized(m_categoryMembers) {
+			for(Map.Entry<Long, Set<Long>> category : m_categoryMembers.entrySet()) {
+				if(category.getValue().contains(id)) {
+					this.m_categoryCache.evict(category.getKey(), from);
+				}
+			}
+			m_categoryEvictions++;
+		}
+		this.m_changeTracker.markChanged(id, from);
+	}
 
-				double multiplicator = parseMultiplicatorForIssueSeverity(l);
-				if(multiplicator != -1) {
-					kpi += multiplicator;
+	/**
+	 * @param id
+	 *            the project id
+	 * @return the eviction counter of the project
+	 */
+	private AtomicLong getProjectEvictions(long id) {
+		AtomicLong evictions = m_projectEvictions.get(id);
+		if(evictions == null) {
+			evictions = new AtomicLong();
+			AtomicLong existing = m_projectEvictions.putIfAbsent(id, evictions);
+			if(existing != null) {
+				evictions = existing;
+			}
+		}
+		return evictions;
+	}
+
+	/**
+	 * Calculates or returns the cached sums of the counts of all member projects of several categories. The sums are
+	 * cached per category, so a category costs one series once it is calculated. They are evicted whenever the values
+	 * of a member project are evicted or the members of the category change.
+	 *
+	 * @param members
+	 *            the ids of the member projects by category id
+	 * @param stamps
+	 *            the timestamps the counts are requested for, in ascending order
+	 * @return for each category id the summed counts in the order of the timestamps
+	 * @throws KpiComputationException
+	 *             if the counts could not be calculated before the request deadline
+	 */
+	public Map<Long, SeverityCounts[]> calculateCategoryCounts(Map<Long, ? extends Collection<Long>> members,
+			List<Timestamp> stamps) throws KpiComputationException {
+		Map<Long, SeverityCounts[]> values = new HashMap<Long, SeverityCounts[]>();
+		for(Map.Entry<Long, ? extends Collection<Long>> category : members.entrySet()) {
+			long categoryId = category.getKey();
+			Set<Long> memberIds = new HashSet<Long>(category.getValue());
+			long evictions;
+			synchronized(m_categoryMembers) {
+				Set<Long> cachedMembers = m_categoryMembers.put(categoryId, memberIds);
+				if(cachedMembers != null && cachedMembers.equals(memberIds) == false) {
+					// a project was moved into or out of the category
+					this.m_categoryCache.evict(categoryId, Long.MIN_VALUE);
+					m_categoryEvictions++;
+				}
+				evictions = m_categoryEvictions;
+			}
+
+			SeverityCounts[] categoryValues = new SeverityCounts[stamps.size()];
+			List<Integer> missing = new ArrayList<Integer>();
+			List<Timestamp> missingStamps = new ArrayList<Timestamp>();
+			for(int i = 0; i < categoryValues.length; i++) {
+				categoryValues[i] = this.m_categoryCache.get(categoryId, stamps.get(i).getTime());
+				if(categoryValues[i] == null) {
+					missing.add(i);
+					missingStamps.add(stamps.get(i));
+				}
+			}
+			if(missing.isEmpty() == false) {
+				Map<Long, SeverityCounts[]> projectValues = calculateSeverityCounts(memberIds, missingStamps);
+				for(int j = 0; j < missing.size(); j++) {
+					int[] sum = new int[SeverityCounts.SLOTS];
+					for(SeverityCounts[] counts : projectValues.values()) {
+						for(int slot = 0; slot < sum.length; slot++) {
+							sum[slot] += counts[j].getSlot(slot);
+						}
+					}
+					categoryValues[missing.get(j)] = new SeverityCounts(sum);
 				}
+				cacheCategoryValues(categoryId, stamps, categoryValues, missing, evictions);
 			}
+			values.put(categoryId, categoryValues);
+		}
+		return values;
+	}
+
+	/**
+	 * Caches calculated sums of a category, unless aggregates were evicted since the calculation started. Sums of open
+	 * buckets are cached for a short time only.
+	 */
+	private void cacheCategoryValues(long categoryId, List<Timestamp> stamps, SeverityCounts[] categoryValues,
+			List<Integer> calculated, long evictions) {
+		long now = System.currentTimeMillis();
+		synchronized(m_categoryMembers) {
+			if(m_categoryEvictions != evictions) {
+				return;
+			}
+			for(int i : calculated) {
+				long time = stamps.get(i).getTime();
+				if(isOpenBucket(stamps.get(i), now)) {
+					this.m_categoryCache.put(categoryId, time, categoryValues[i], now + OPEN_BUCKET_TTL);
+				} else {
+					this.m_categoryCache.put(categoryId, time, categoryValues[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Estimates the cost of calculating counts without calculating or reading any: the number of issues of all projects
+	 * with counts missing in the memory cache, as all issues of such a project are read once. Counts only found in the
+	 * persistent cache store are estimated as missing.
+	 *
+	 * @param ids
+	 *            the project ids
+	 * @param stamps
+	 *            the timestamps the counts are requested for
+	 * @return the estimated number of issues to read, 0 if all counts are cached in memory
+	 */
+	public long estimateCost(Collection<Long> ids, List<Timestamp> stamps) {
+		long cost = 0;
+		for(Long id : ids) {
+			for(Timestamp stamp : stamps) {
+				if(this.m_memoryCache.contains(id, stamp.getTime()) == false) {
+					cost += getIssueCount(id);
+					break;
+				}
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Estimates the cost of calculating the sums of categories like {@link #estimateCost(Collection, List)}. Categories
+	 * with all sums cached cost nothing.
+	 *
+	 * @param members
+	 *            the ids of the member projects by category id
+	 * @param stamps
+	 *            the timestamps the counts are requested for
+	 * @return the estimated number of issues to read
+	 */
+	public long estimateCategoryCost(Map<Long, ? extends Collection<Long>> members, List<Timestamp> stamps) {
+		Set<Long> uncached = new HashSet<Long>();
+		for(Map.Entry<Long, ? extends Collection<Long>> category : members.entrySet()) {
+			for(Timestamp stamp : stamps) {
+				if(this.m_categoryCache.contains(category.getKey(), stamp.getTime()) == false) {
+					uncached.addAll(category.getValue());
+					break;
+				}
+			}
+		}
+		return estimateCost(uncached, stamps);
+	}
+
+	/**
+	 * @return the number of issues of the project, as last read, counted by the index or assumed if both is not possible
+	 */
+	private int getIssueCount(long id) {
+		Integer count = m_issueCounts.get(id);
+		if(count == null) {
+			long indexed = m_indexCounter.countIssues(id);
+			count = indexed < 0 ? UNKNOWN_PROJECT_ISSUES : (int) Math.min(indexed, Integer.MAX_VALUE);
+			m_issueCounts.put(id, count);
 		}
-		return kpi;
+		return count;
 	}
 
 	/**
-	 * Returns KPI values for one specific issue and its corresponding severity.
+	 * Returns the time of the last change of the kpi values of the projects, without calculating any value.
 	 *
-	 * @param issueId
-	 *            the id of the issue
-	 * @return a double value representing the multiplicator for this issue, -1 if none can be found
+	 * @param ids
+	 *            the project ids
+	 * @return the time of the last change in milliseconds
 	 */
-	private double parseMultiplicatorForIssueSeverity(long issueId) {
+	public long getLastChange(Collection<Long> ids) {
+		return this.m_changeTracker.getLastChange(ids);
+	}
 
-		MutableIssue issue = issueManager.getIssueObject(issueId);
-		List<CustomField> customFields = cfManager.getCustomFieldObjects(issue);
-		// TODO use cfManager.getCFObj(String)
-		for(CustomField cf : customFields) {
-			if(cf.getName().equals(CUSTOM_FIELD_SEVERITY)) {
-				String value = cf.getValueFromIssue(issue);
-				if(value != null) {
+	/**
+	 * Returns the first time, whose kpi values of the projects changed after a client got its copy, without calculating
+	 * any value.
+	 *
+	 * @param ids
+	 *            the project ids
+	 * @param changedAfter
+	 *            the time of the last change of the client's copy, in milliseconds
+	 * @return the first changed time in milliseconds, Long.MAX_VALUE if nothing changed, Long.MIN_VALUE if the changes
+	 *         are not known anymore
+	 */
+	public long getChangedFrom(Collection<Long> ids, long changedAfter) {
+		return this.m_changeTracker.getChangedFrom(ids, changedAfter);
+	}
 
-					String[] strings = value.split("-");
-					int valueNumber = 0;
+	/**
+	 * Calculates all counts of one project, that are not cached yet. If the same counts of the project are being
+	 * calculated for another request, the result of that calculation is used.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param stamps
+	 *            the timestamps the values are requested for, in ascending order
+	 * @param values
+	 *            the cached counts in the order of the timestamps, null for each missing value. Missing values are
+	 *            replaced by the calculated ones.
+	 * @param issuesScanned
+	 *            counts the issues read for the request
+	 * @throws InterruptedException
+	 *             if the request was cancelled
+	 */
+	private void calculateMissingValues(final long id, List<Timestamp> stamps, SeverityCounts[] values,
+			final AtomicLong issuesScanned, final AtomicBoolean cancelled) throws InterruptedException {
+		List<Integer> missing = new ArrayList<Integer>();
+		for(int i = 0; i < values.length; i++) {
+			if(values[i] == null) {
+				missing.add(i);
+			}
+		}
+		if(missing.isEmpty()) {
+			return;
+		}
 
-					try {
+		final List<Timestamp> missingStamps = new ArrayList<Timestamp>();
+		for(int index : missing) {
+			missingStamps.add(stamps.get(index));
+		}
+		SeverityCounts[] calculated;
+		try {
+			calculated = m_projectFlights.execute(Arrays.<Object> asList(id, missingStamps),
+					new Callable<SeverityCounts[]>() {
+						public SeverityCounts[] call() throws InterruptedException {
+							return calculateAndCacheValues(id, missingStamps, issuesScanned, cancelled);
+						}
+					});
+		} catch(ExecutionException ee) {
+			if(ee.getCause() instanceof InterruptedException && cancelled.get() == false
+					&& Thread.currentThread().isInterrupted() == false) {
+				// the other request was cancelled, but this one is still running
+				calculated = calculateAndCacheValues(id, missingStamps, issuesScanned, cancelled);
+			} else if(ee.getCause() instanceof InterruptedException) {
+				throw (InterruptedException) ee.getCause();
+			} else {
+				throw new RuntimeException(ee.getCause());
+			}
+		}
 
-						valueNumber = Integer.parseInt(strings[0].trim());
+		for(int i = 0; i < calculated.length; i++) {
+			values[missing.get(i)] = calculated[i];
+		}
+	}
 
-					} catch(NumberFormatException e) {
-						KpiDataProvider.LOGGER.error("Exception while parsing severity: " + e.getMessage());
-						return -1;
-					}
+	/**
+	 * @param stamp
+	 *            the end of a bucket
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true, if the bucket is still open, so its value may change without any change of an issue
+	 */
+	private static boolean isOpenBucket(Timestamp stamp, long now) {
+		return stamp.getTime() > now;
+	}
+
+	/**
+	 * Calculates the values of one project and caches them. Values of closed buckets are cached permanently, the
+	 * persistent store is written in the background. Values of open buckets are kept in the memory cache for a short
+	 * time only. If the values of the project were evicted during the calculation, they may be outdated and are not
+	 * cached.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param stamps
+	 *            the timestamps the values are requested for, in ascending order
+	 * @param issuesScanned
+	 *            counts the issues read for the request
+	 * @return the counts in the order of the timestamps, no open issues if the issues could not be read
+	 * @throws InterruptedException
+	 *             if the request was cancelled
+	 */
+	private SeverityCounts[] calculateAndCacheValues(long id, List<Timestamp> stamps, AtomicLong issuesScanned,
+			AtomicBoolean cancelled) throws InterruptedException {
+		KpiDataProvider.LOGGER.info("No cached values: Calculating and caching " + stamps.size() + " values for project: "
+				+ id);
+		long[] times = new long[stamps.size()];
+		for(int i = 0; i < times.length; i++) {
+			times[i] = stamps.get(i).getTime();
+		}
+		AtomicLong evictions = getProjectEvictions(id);
+		long evictionsBefore = evictions.get();
+		SeverityCounts[] calculated = calculateValues(id, times, issuesScanned, cancelled);
+		if(calculated == null) {
+			calculated = new SeverityCounts[stamps.size()];
+			Arrays.fill(calculated, SeverityCounts.EMPTY);
+			return calculated;
+		}
 
-					// return predefined multiplicators
-					switch(valueNumber) {
-						case 1:
-							return MULTIPLICATOR_TYPE_ONE;
-						case 2:
-							return MULTIPLICATOR_TYPE_TWO;
-						case 3:
-							return MULTIPLICATOR_TYPE_THREE;
-						case 4:
-							return MULTIPLICATOR_TYPE_FOUR;
-						case 5:
-							return MULTIPLICATOR_TYPE_FIVE;
-						default:
-							return 0;
+		List<KpiPoint> calculatedPoints = new ArrayList<KpiPoint>();
+		long now = System.currentTimeMillis();
+		synchronized(evictions) {
+			if(evictions.get() == evictionsBefore) {
+				for(int i = 0; i < calculated.length; i++) {
+					if(isOpenBucket(stamps.get(i), now)) {
+						this.m_memoryCache.put(id, times[i], calculated[i], now + OPEN_BUCKET_TTL);
+					} else {
+						this.m_memoryCache.put(id, times[i], calculated[i]);
+						calculatedPoints.add(new KpiPoint(id, stamps.get(i), calculated[i]));
 					}
+				}
+			}
+		}
+		// outside of the lock, as a full queue blocks for a while, the writer checks the eviction counter itself
+		this.m_cacheWriter.write(calculatedPoints, evictions, evictionsBefore);
+		this.m_metrics.pointsComputed.addAndGet(calculated.length);
+		return calculated;
+	}
+
+	/**
+	 * Counts the open issues of one project in the configured computation mode. If the index can't be searched, the
+	 * issues are loaded.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param times
+	 *            the times in milliseconds, in ascending order
+	 * @param issuesScanned
+	 *            counts the issues read for the request
+	 * @param cancelled
+	 *            the cancellation flag of the request
+	 * @return the counts in the order of the times, null if the issues could not be read
+	 * @throws InterruptedException
+	 *             if the request was cancelled
+	 */
+	private SeverityCounts[] calculateValues(long id, long[] times, AtomicLong issuesScanned, AtomicBoolean cancelled)
+			throws InterruptedException {
+		long started = System.nanoTime();
+		try {
+			boolean useIndex = COMPUTATION_MODE.equals("index")
+					|| (COMPUTATION_MODE.equals("auto")
+							&& KpiIndexCounter.countSearches(times.length) <= INDEX_MAX_SEARCHES
+							&& m_indexCounter.countIssues(id) >= INDEX_THRESHOLD);
+			if(useIndex) {
+				SeverityCounts[] counts = m_indexCounter.countsAt(id, times, cancelled);
+				if(counts != null) {
+					return counts;
+				}
+			}
+			KpiTimeline timeline = buildTimeline(id, issuesScanned, cancelled);
+			return timeline == null ? null : timeline.countsAt(times);
+		} finally {
+			this.m_metrics.issueLoadingLatency.record(KpiMetrics.microsSince(started));
+		}
+	}
 
+	/**
+	 * Reads all issues of a project once and adds every issue, that is open at some time, to a new timeline.
+	 * An issue is open from its creation until it is closed. Closed issues without resolution date are ignored.
+	 *
+	 * @param id
+	 *            the project id
+	 * @param issuesScanned
+	 *            counts the issues read for the request
+	 * @return the timeline of the project, null if the issues could not be read
+	 * @throws InterruptedException
+	 *             if the request was cancelled
+	 */
+	private KpiTimeline buildTimeline(long id, AtomicLong issuesScanned, AtomicBoolean cancelled)
+			throws InterruptedException {
+
+		try {
+			Collection<Long> issueIds = issueManager.getIssueIdsForProject(id);
+			issuesScanned.addAndGet(issueIds.size());
+			m_issueCounts.put(id, issueIds.size());
+			this.m_metrics.issuesScanned.addAndGet(issueIds.size());
+			KpiTimeline timeline = new KpiTimeline();
+			for(Long longId : issueIds) {
+				KpiComputationExecutor.checkCancelled(cancelled, "Calculation of project " + id);
+				MutableIssue issue = issueManager.getIssueObject(longId);
+
+				long closed;
+				if(issue.getStatusObject().getName().equals(STRING_ISSUE_CLOSED) == false) {
+					closed = KpiTimeline.NOT_CLOSED;
+				} else if(issue.getResolutionDate() != null) {
+					closed = issue.getResolutionDate().getTime();
 				} else {
-					// no String value found for this issue and the custom field Severity
-					return -1;
+					continue;
 				}
+				timeline.addIssue(issue.getCreated().getTime(), closed, m_severityLevels.getLevel(issue));
 			}
+			return timeline;
+
+		} catch(GenericEntityException gee) {
+			KpiDataProvider.LOGGER.error("Exception while searching issues form Manager " + gee.getMessage());
+			return null;
 		}
-		// no custom field "Severity" found
-		return -1;
 	}
 }
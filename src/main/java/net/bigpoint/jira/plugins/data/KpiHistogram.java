@@ -0,0 +1,115 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non-negative values with power of two buckets: bucket 0 counts the value 0, bucket i the
+ * values from 2^(i-1) to 2^i - 1. Recording a value costs a few atomic increments, so it can be done on every request.
+ * Percentiles are reported as the upper bound of their bucket.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final String unit;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param unit
+	 *            the unit of the recorded values, i.e. "us" or "bytes"
+	 */
+	public KpiHistogram(String unit) {
+		this.unit = unit;
+	}
+
+	/**
+	 * Records one value, negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            the value
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax = max.get();
+		while(value > currentMax && max.compareAndSet(currentMax, value) == false) {
+			currentMax = max.get();
+		}
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of all values, 0 if nothing was recorded
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, at most the maximum, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = getBuckets();
+		long total = 0;
+		for(long n : snapshot) {
+			total += n;
+		}
+		if(total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if(seen >= rank && snapshot[i] > 0) {
+				long upperBound = i == 0 ? 0 : (1L << i) - 1;
+				return Math.min(upperBound, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return the number of values in each bucket
+	 */
+	public long[] getBuckets() {
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+		}
+		return snapshot;
+	}
+}
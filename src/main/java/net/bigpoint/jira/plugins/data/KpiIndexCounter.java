@@ -0,0 +1,171 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.atlassian.jira.issue.customfields.manager.OptionsManager;
+import com.atlassian.jira.issue.customfields.option.Option;
+import com.atlassian.jira.issue.fields.CustomField;
+import com.atlassian.jira.issue.fields.config.FieldConfig;
+import com.atlassian.jira.issue.fields.config.FieldConfigScheme;
+import com.atlassian.jira.issue.search.SearchException;
+import com.atlassian.jira.issue.search.SearchProvider;
+import com.atlassian.jira.jql.builder.JqlClauseBuilder;
+import com.atlassian.jira.jql.builder.JqlQueryBuilder;
+import com.atlassian.query.Query;
+
+/**
+ * Counts the open issues per severity level from the JIRA search index instead of loading every issue. For each
+ * timestamp and severity level the issues counting at that time are counted by the index: created before the timestamp
+ * and either not closed or resolved after it. The severity values of a level are taken from the options of the custom
+ * field "Severity" of the project. Every level found there is searched, including level 0 for any other severity, and
+ * the issues without severity are the open issues not counted by any level. That is up to {@link SeverityCounts#SLOTS}
+ * searches per timestamp, so the index pays off for short timelines of large projects only. The index resolves dates to
+ * the minute, so an issue created or resolved in the last minute of a bucket may be counted differently than by loading
+ * the issues.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiIndexCounter {
+
+	private final SearchProvider searchProvider;
+
+	private final SeverityLevelCache severityLevels;
+
+	private final OptionsManager optionsManager;
+
+	private final KpiMetrics metrics;
+
+	public KpiIndexCounter(SearchProvider searchProvider, SeverityLevelCache severityLevels,
+			OptionsManager optionsManager, KpiMetrics metrics) {
+		this.searchProvider = searchProvider;
+		this.severityLevels = severityLevels;
+		this.optionsManager = optionsManager;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param times
+	 *            the number of timestamps
+	 * @return the maximum number of searches needed to count the open issues at the timestamps
+	 */
+	public static int countSearches(int times) {
+		return times * SeverityCounts.SLOTS;
+	}
+
+	/**
+	 * Counts all issues of a project.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @return the number of issues, -1 if the index could not be searched
+	 */
+	public long countIssues(long projectId) {
+		Query query = JqlQueryBuilder.newBuilder().where().project(projectId).buildQuery();
+		try {
+			metrics.indexQueries.incrementAndGet();
+			return searchProvider.searchCountOverrideSecurity(query, null);
+		} catch(SearchException se) {
+			KpiDataProvider.LOGGER.error("Exception while counting issues of project " + projectId + ": "
+					+ se.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Counts the open issues of a project per severity level at several times from the index. The issues without
+	 * severity are the ones not counted by any level.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @param times
+	 *            the times in milliseconds
+	 * @param cancelled
+	 *            the cancellation flag of the request, checked before each search
+	 * @return the counts in the order of the times, null if the index could not be searched
+	 * @throws InterruptedException
+	 *             if the request was cancelled
+	 */
+	public SeverityCounts[] countsAt(long projectId, long[] times, AtomicBoolean cancelled)
+			throws InterruptedException {
+		CustomField severityField = severityLevels.getSeverityField(projectId);
+		Map<Integer, List<String>> severityValues = severityField == null ? new HashMap<Integer, List<String>>()
+				: getSeverityValuesByLevel(severityField);
+
+		SeverityCounts[] counts = new SeverityCounts[times.length];
+		try {
+			for(int i = 0; i < times.length; i++) {
+				Date time = new Date(times[i]);
+				int[] open = new int[SeverityCounts.SLOTS];
+				int withSeverity = 0;
+				for(Map.Entry<Integer, List<String>> level : severityValues.entrySet()) {
+					JqlClauseBuilder where = openIssues(projectId, time);
+					where.customField(severityField.getIdAsLong()).in(
+							level.getValue().toArray(new String[level.getValue().size()]));
+					int count = (int) count(projectId, where, cancelled);
+					open[SeverityCounts.slot(level.getKey())] = count;
+					withSeverity += count;
+				}
+				open[SeverityCounts.slot(-1)] = (int) count(projectId, openIssues(projectId, time), cancelled)
+						- withSeverity;
+				counts[i] = new SeverityCounts(open);
+			}
+		} catch(SearchException se) {
+			KpiDataProvider.LOGGER.error("Exception while counting issues of project " + projectId + ": "
+					+ se.getMessage());
+			return null;
+		}
+		return counts;
+	}
+
+	/**
+	 * @return a query of the issues of the project, that are open at the given time
+	 */
+	private JqlClauseBuilder openIssues(long projectId, Date time) {
+		JqlClauseBuilder where = JqlQueryBuilder.newBuilder().where().defaultAnd();
+		where.project(projectId);
+		where.created().lt(time);
+		where.sub().not().status(KpiDataProvider.STRING_ISSUE_CLOSED).or().resolutionDate().gt(time).endsub();
+		return where;
+	}
+
+	private long count(long projectId, JqlClauseBuilder where, AtomicBoolean cancelled) throws SearchException,
+			InterruptedException {
+		KpiComputationExecutor.checkCancelled(cancelled, "Calculation of project " + projectId);
+		metrics.indexQueries.incrementAndGet();
+		return searchProvider.searchCountOverrideSecurity(where.buildQuery(), null);
+	}
+
+	/**
+	 * @return the values of all options of the severity field by severity level, without values of no level
+	 */
+	private Map<Integer, List<String>> getSeverityValuesByLevel(CustomField severityField) {
+		Map<Integer, List<String>> valuesByLevel = new HashMap<Integer, List<String>>();
+		for(FieldConfigScheme scheme : severityField.getConfigurationSchemes()) {
+			FieldConfig config = scheme.getOneAndOnlyConfig();
+			if(config == null) {
+				continue;
+			}
+			for(Option option : optionsManager.getOptions(config)) {
+				int level = SeverityLevelCache.parseLevel(option.getValue());
+				if(level < 0) {
+					continue;
+				}
+				List<String> values = valuesByLevel.get(level);
+				if(values == null) {
+					values = new ArrayList<String>();
+					valuesByLevel.put(level, values);
+				}
+				if(values.contains(option.getValue()) == false) {
+					values.add(option.getValue());
+				}
+			}
+		}
+		return valuesByLevel;
+	}
+}
@@ -0,0 +1,154 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ofbiz.core.entity.GenericEntityException;
+import org.ofbiz.core.entity.GenericValue;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.event.type.EventType;
+import com.atlassian.jira.issue.Issue;
+
+/**
+ * Listens to issue events and evicts exactly the cached kpi values, that an issue change makes invalid. Only changes
+ * of the fields the KPI depends on (status, resolution, severity and project) and created, deleted or moved issues
+ * evict values. An issue influences the KPI from its creation on, so all values of its projects from that time on are
+ * evicted. Closing an issue only changes the values from its resolution date on.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiIssueEventListener implements InitializingBean, DisposableBean {
+
+	private static final String FIELD_STATUS = "status";
+
+	private static final String FIELD_RESOLUTION = "resolution";
+
+	private static final String FIELD_SEVERITY = "Severity";
+
+	private static final String FIELD_PROJECT = "project";
+
+	private final EventPublisher eventPublisher;
+
+	private final KpiDataProvider dataProvider;
+
+	private final SeverityLevelCache severityLevels;
+
+	public KpiIssueEventListener(EventPublisher eventPublisher, KpiDataProvider dataProvider,
+			SeverityLevelCache severityLevels) {
+		this.eventPublisher = eventPublisher;
+		this.dataProvider = dataProvider;
+		this.severityLevels = severityLevels;
+	}
+
+	/**
+	 * Registers the listener, when the plugin is enabled.
+	 */
+	public void afterPropertiesSet() {
+		eventPublisher.register(this);
+	}
+
+	/**
+	 * Unregisters the listener, when the plugin is disabled.
+	 */
+	public void destroy() {
+		eventPublisher.unregister(this);
+	}
+
+	/**
+	 * Evicts the cached values, the changed issue influences.
+	 *
+	 * @param event
+	 *            the issue event
+	 */
+	@EventListener
+	public void onIssueEvent(IssueEvent event) {
+		Issue issue = event.getIssue();
+		if(issue == null) {
+			return;
+		}
+		severityLevels.invalidate(issue.getId());
+
+		Set<Long> projectIds = new HashSet<Long>();
+		projectIds.add(issue.getProjectObject().getId());
+
+		Long eventTypeId = event.getEventTypeId();
+		boolean fromCreation = EventType.ISSUE_CREATED_ID.equals(eventTypeId)
+				|| EventType.ISSUE_DELETED_ID.equals(eventTypeId) || EventType.ISSUE_MOVED_ID.equals(eventTypeId);
+		boolean closedNow = false;
+
+		for(GenericValue item : getChangeItems(event)) {
+			String field = item.getString("field");
+			if(FIELD_STATUS.equals(field)) {
+				boolean wasClosed = KpiDataProvider.STRING_ISSUE_CLOSED.equals(item.getString("oldstring"));
+				boolean isClosed = KpiDataProvider.STRING_ISSUE_CLOSED.equals(item.getString("newstring"));
+				if(wasClosed) {
+					// the former resolution date is unknown
+					fromCreation = true;
+				} else if(isClosed) {
+					closedNow = true;
+				}
+			} else if(FIELD_RESOLUTION.equals(field)) {
+				// changes the resolution date of closed issues only
+				if(isClosed(issue)) {
+					fromCreation = true;
+				}
+			} else if(FIELD_SEVERITY.equals(field)) {
+				fromCreation = true;
+			} else if(FIELD_PROJECT.equals(field)) {
+				fromCreation = true;
+				try {
+					projectIds.add(Long.valueOf(item.getString("oldvalue")));
+				} catch(NumberFormatException nfe) {
+					KpiDataProvider.LOGGER.warn("Unknown former project of moved issue " + issue.getKey());
+				}
+			}
+		}
+
+		long from;
+		if(fromCreation) {
+			from = issue.getCreated().getTime();
+		} else if(closedNow) {
+			// it was open before at all times, now it's closed at its resolution date
+			from = issue.getResolutionDate() != null ? issue.getResolutionDate().getTime() : issue.getCreated().getTime();
+		} else {
+			// no field, the KPI depends on, has changed
+			return;
+		}
+
+		for(Long projectId : projectIds) {
+			dataProvider.evictCachedValues(projectId, from);
+		}
+	}
+
+	private boolean isClosed(Issue issue) {
+		return issue.getStatusObject() != null
+				&& KpiDataProvider.STRING_ISSUE_CLOSED.equals(issue.getStatusObject().getName());
+	}
+
+	/**
+	 * @return the changed fields of the event, an empty list if there's no change log
+	 */
+	@SuppressWarnings("unchecked")
+	private List<GenericValue> getChangeItems(IssueEvent event) {
+		GenericValue changeLog = event.getChangeLog();
+		if(changeLog != null) {
+			try {
+				List<GenericValue> items = changeLog.getRelated("ChildChangeItem");
+				if(items != null) {
+					return items;
+				}
+			} catch(GenericEntityException gee) {
+				KpiDataProvider.LOGGER.error("Exception while reading change log: " + gee.getMessage());
+			}
+		}
+		return new ArrayList<GenericValue>();
+	}
+}
@@ -0,0 +1,199 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A KPI request calculated in the background by the {@link KpiJobManager}. It starts with the counts found in the
+ * cache, the projects with missing counts are calculated one after another. Clients poll for the projects completed
+ * since their last poll, so they never wait for a calculation.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiJob {
+
+	public enum State {
+		RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	private final String id;
+
+	private final String user;
+
+	private final List<Long> projectIds;
+
+	private final List<Timestamp> stamps;
+
+	/**
+	 * The counts of each project, null for each count not calculated yet.
+	 */
+	private final Map<Long, SeverityCounts[]> counts;
+
+	/**
+	 * The projects with missing counts, in the order they are calculated.
+	 */
+	private final List<Long> pending = new ArrayList<Long>();
+
+	/**
+	 * The projects, whose missing counts were calculated, in the order of completion.
+	 */
+	private final List<Long> completed = new ArrayList<Long>();
+
+	private State state = State.RUNNING;
+
+	private String error;
+
+	private long finished;
+
+	private Future<?> future;
+
+	/**
+	 * @param id
+	 *            the id of the job
+	 * @param user
+	 *            the user, who submitted the job
+	 * @param projectIds
+	 *            the requested projects
+	 * @param stamps
+	 *            the requested timestamps, in ascending order
+	 * @param cached
+	 *            the cached counts of each project, null for each missing count
+	 */
+	KpiJob(String id, String user, List<Long> projectIds, List<Timestamp> stamps, Map<Long, SeverityCounts[]> cached) {
+		this.id = id;
+		this.user = user;
+		this.projectIds = Collections.unmodifiableList(new ArrayList<Long>(projectIds));
+		this.stamps = Collections.unmodifiableList(new ArrayList<Timestamp>(stamps));
+		this.counts = new HashMap<Long, SeverityCounts[]>(cached);
+		for(Long projectId : this.projectIds) {
+			if(Arrays.asList(counts.get(projectId)).contains(null) && pending.contains(projectId) == false) {
+				pending.add(projectId);
+			}
+		}
+		if(pending.isEmpty()) {
+			finish(State.DONE, null);
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public List<Long> getProjectIds() {
+		return projectIds;
+	}
+
+	public List<Timestamp> getStamps() {
+		return stamps;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the reason, why the job failed, null if it did not
+	 */
+	public synchronized String getError() {
+		return error;
+	}
+
+	/**
+	 * @param projectId
+	 *            a requested project
+	 * @return the counts of the project in the order of the timestamps, null for each count not calculated yet. The
+	 *         array must not be modified.
+	 */
+	public synchronized SeverityCounts[] getCounts(long projectId) {
+		return counts.get(projectId);
+	}
+
+	/**
+	 * @return the projects, whose counts are still missing, in the order they are calculated
+	 */
+	public synchronized List<Long> getPending() {
+		return new ArrayList<Long>(pending);
+	}
+
+	/**
+	 * @param from
+	 *            the number of completed projects already known to the client
+	 * @return the projects completed since then, in the order of completion
+	 */
+	public synchronized List<Long> getCompleted(int from) {
+		if(from < 0 || from >= completed.size()) {
+			return new ArrayList<Long>();
+		}
+		return new ArrayList<Long>(completed.subList(from, completed.size()));
+	}
+
+	/**
+	 * @return the number of completed projects, the client passes it to the next poll
+	 */
+	public synchronized int getCompletedCount() {
+		return completed.size();
+	}
+
+	/**
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param ttl
+	 *            milliseconds a finished job is kept
+	 * @return true, if the job finished longer than ttl ago
+	 */
+	synchronized boolean isExpired(long now, long ttl) {
+		return state != State.RUNNING && finished + ttl < now;
+	}
+
+	/**
+	 * Publishes the calculated counts of a project.
+	 */
+	synchronized void complete(long projectId, SeverityCounts[] projectCounts) {
+		if(state != State.RUNNING) {
+			return;
+		}
+		counts.put(projectId, projectCounts);
+		pending.remove(projectId);
+		completed.add(projectId);
+		if(pending.isEmpty()) {
+			finish(State.DONE, null);
+		}
+	}
+
+	synchronized void finish(State finalState, String message) {
+		if(state != State.RUNNING) {
+			return;
+		}
+		state = finalState;
+		error = message;
+		finished = System.currentTimeMillis();
+		future = null;
+	}
+
+	synchronized void setFuture(Future<?> future) {
+		if(state == State.RUNNING) {
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Stops the calculation of the job, the counts completed so far are kept.
+	 */
+	synchronized void cancel() {
+		if(future != null) {
+			future.cancel(true);
+		}
+		finish(State.CANCELLED, null);
+	}
+}
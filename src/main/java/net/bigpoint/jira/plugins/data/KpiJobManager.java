@@ -0,0 +1,279 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Runs KPI requests as background jobs, so no request thread waits for a calculation. A submitted job holds the counts
+ * found in the cache at once, the missing projects are calculated by a few background threads, one project after
+ * another, each of them admitted by the {@link KpiAdmissionController} like a request. The number of jobs is limited
+ * per node and per user. Finished jobs are kept until the client has polled all of their projects, or for a while if
+ * it doesn't, so clients can fetch the last results. All jobs are cancelled, when the plugin is disabled.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiJobManager implements InitializingBean, DisposableBean {
+
+	/**
+	 * Number of background threads calculating jobs.
+	 */
+	private static final int THREADS = Integer.getInteger("kpi.jobs.threads", 2);
+
+	/**
+	 * Maximum number of jobs kept on the node, running or finished.
+	 */
+	private static final int MAX_JOBS = Integer.getInteger("kpi.jobs.max", 200);
+
+	/**
+	 * Maximum number of running jobs of one user.
+	 */
+	private static final int MAX_RUNNING_PER_USER = Integer.getInteger("kpi.jobs.maxPerUser", 2);
+
+	/**
+	 * Milliseconds a finished job is kept.
+	 */
+	private static final long TTL = Long.getLong("kpi.jobs.ttl", 600000L);
+
+	/**
+	 * Seconds a rejected client should wait before submitting again.
+	 */
+	private static final int RETRY_AFTER = Integer.getInteger("kpi.jobs.retryAfter", 10);
+
+	private final KpiDataProvider dataProvider;
+
+	private final KpiMetrics metrics;
+
+	private final KpiAdmissionController admission;
+
+	/**
+	 * The jobs by id, in the order of submission.
+	 */
+	private final Map<String, KpiJob> jobs = new LinkedHashMap<String, KpiJob>();
+
+	private volatile ExecutorService executor;
+
+	public KpiJobManager(KpiDataProvider dataProvider, KpiMetrics metrics, KpiAdmissionController admission) {
+		this.dataProvider = dataProvider;
+		this.metrics = metrics;
+		this.admission = admission;
+	}
+
+	/**
+	 * Starts the background threads, when the plugin is enabled.
+	 */
+	public void afterPropertiesSet() {
+		executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kpi-job-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Cancels all jobs and stops the background threads, when the plugin is disabled.
+	 */
+	public void destroy() {
+		ExecutorService pool = executor;
+		executor = null;
+		synchronized(jobs) {
+			for(KpiJob job : jobs.values()) {
+				job.cancel();
+			}
+			jobs.clear();
+		}
+		if(pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Submits a job. The cached counts are looked up at once, the missing ones are calculated in the background.
+	 * Without background threads they are calculated at once.
+	 *
+	 * @param user
+	 *            the name of the user, or another key of an anonymous client
+	 * @param projectIds
+	 *            the requested projects
+	 * @param stamps
+	 *            the requested timestamps, in ascending order
+	 * @return the job. If all counts were cached, it is done already and not kept.
+	 * @throws KpiAdmissionException
+	 *             if too many jobs are kept on the node or running for the user
+	 */
+	public KpiJob submit(String user, List<Long> projectIds, List<Timestamp> stamps) throws KpiAdmissionException {
+		metrics.jobsSubmitted.incrementAndGet();
+		final KpiJob job = new KpiJob(UUID.randomUUID().toString(), user, projectIds, stamps, dataProvider
+				.getCachedSeverityCounts(projectIds, stamps));
+		if(job.getState() != KpiJob.State.RUNNING) {
+			return job;
+		}
+
+		synchronized(jobs) {
+			removeExpired(System.currentTimeMillis());
+			int running = 0;
+			for(KpiJob other : jobs.values()) {
+				if(other.getUser().equals(user) && other.getState() == KpiJob.State.RUNNING) {
+					running++;
+				}
+			}
+			if(jobs.size() >= MAX_JOBS || running >= MAX_RUNNING_PER_USER) {
+				metrics.jobsRejected.incrementAndGet();
+				String message = running >= MAX_RUNNING_PER_USER ? "Too many KPI jobs of user " + user
+						+ " running, please try again later" : "Too many KPI jobs, please try again later";
+				KpiDataProvider.LOGGER.warn(message);
+				throw new KpiAdmissionException(message, RETRY_AFTER);
+			}
+			jobs.put(job.getId(), job);
+		}
+
+		ExecutorService pool = executor;
+		if(pool == null) {
+			run(job);
+		} else {
+			job.setFuture(pool.submit(new Runnable() {
+				public void run() {
+					KpiJobManager.this.run(job);
+				}
+			}));
+		}
+		return job;
+	}
+
+	/**
+	 * @param id
+	 *            the id of the job
+	 * @param user
+	 *            the user asking for the job
+	 * @return the job, null if it is unknown, expired or was submitted by another user
+	 */
+	public KpiJob getJob(String id, String user) {
+		synchronized(jobs) {
+			removeExpired(System.currentTimeMillis());
+			KpiJob job = jobs.get(id);
+			return job == null || job.getUser().equals(user) == false ? null : job;
+		}
+	}
+
+	/**
+	 * Removes a finished job, once the client has polled all of its projects, so its counts are not kept until it
+	 * expires.
+	 *
+	 * @param job
+	 *            the polled job
+	 * @param state
+	 *            the state of the job read before the poll
+	 * @param completed
+	 *            the number of completed projects known to the client after the poll
+	 */
+	public void polled(KpiJob job, KpiJob.State state, int completed) {
+		if(state == KpiJob.State.RUNNING || completed < job.getCompletedCount()) {
+			return;
+		}
+		synchronized(jobs) {
+			jobs.remove(job.getId());
+		}
+	}
+
+	/**
+	 * Cancels a running job. Its results so far are kept until it expires.
+	 *
+	 * @param id
+	 *            the id of the job
+	 * @param user
+	 *            the user cancelling the job
+	 * @return false, if the job is unknown, expired or was submitted by another user
+	 */
+	public boolean cancel(String id, String user) {
+		KpiJob job = getJob(id, user);
+		if(job == null) {
+			return false;
+		}
+		job.cancel();
+		return true;
+	}
+
+	/**
+	 * Calculates the missing counts of a job project by project, so each project is published as soon as it is done.
+	 */
+	private void run(KpiJob job) {
+		List<Timestamp> stamps = job.getStamps();
+		try {
+			for(Long projectId : job.getPending()) {
+				if(job.getState() != KpiJob.State.RUNNING || Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				List<Long> projectIds = Collections.singletonList(projectId);
+				KpiAdmissionController.Permit permit = admit(job, dataProvider.estimateCost(projectIds, stamps));
+				if(permit == null) {
+					return;
+				}
+				try {
+					Map<Long, SeverityCounts[]> counts = dataProvider.calculateSeverityCounts(projectIds, stamps);
+					job.complete(projectId, counts.get(projectId));
+				} finally {
+					permit.release();
+				}
+			}
+		} catch(KpiComputationException kce) {
+			KpiDataProvider.LOGGER.warn("KPI job " + job.getId() + " failed: " + kce.getMessage());
+			job.finish(KpiJob.State.FAILED, kce.getMessage());
+		} catch(RuntimeException re) {
+			KpiDataProvider.LOGGER.error("Exception in KPI job " + job.getId() + ": " + re.getMessage(), re);
+			job.finish(KpiJob.State.FAILED, "Calculating the KPIs failed: " + re.getMessage());
+		}
+	}
+
+	/**
+	 * Admits the calculation of a project of a job. A rejected job waits the retry time and tries again, as long as it
+	 * is running, since no request thread waits for it. Without background threads it fails at once.
+	 *
+	 * @return the permit, null if the job was cancelled or the thread interrupted while waiting
+	 * @throws KpiAdmissionException
+	 *             if the job runs without background threads and was not admitted
+	 */
+	private KpiAdmissionController.Permit admit(KpiJob job, long cost) throws KpiAdmissionException {
+		while(job.getState() == KpiJob.State.RUNNING && Thread.currentThread().isInterrupted() == false) {
+			try {
+				return admission.admit(job.getUser(), cost);
+			} catch(KpiAdmissionException kae) {
+				if(executor == null) {
+					throw kae;
+				}
+				try {
+					Thread.sleep(kae.getRetryAfter() * 1000L);
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the jobs finished longer than the ttl ago. Must be called holding the lock of the jobs.
+	 */
+	private void removeExpired(long now) {
+		for(Iterator<KpiJob> it = jobs.values().iterator(); it.hasNext();) {
+			if(it.next().isExpired(now, TTL)) {
+				it.remove();
+			}
+		}
+	}
+}
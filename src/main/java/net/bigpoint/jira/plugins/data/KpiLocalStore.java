@@ -0,0 +1,659 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.jira.config.util.JiraHome;
+
+/**
+ * Embedded store of the open issues per severity level in the JIRA home, an alternative to the caching db without
+ * external dependency. The values are appended to a memory mapped file, deletions are appended as tombstones. Each
+ * record carries a CRC32 checksum, so a record torn by a crash ends the file when it is read again. Only the times of
+ * the live values and the positions of their records are indexed in memory by project, the counts are read from the
+ * mapped file. When more than half of the file is overwritten or deleted values, the live records are copied to a new
+ * file, which then replaces the old one. The copy runs in the thread that wrote the last values without the lock of
+ * the store, so reads and writes go on meanwhile; the records written during the copy are appended to the new file
+ * before it replaces the old one. The file is opened on first use.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiLocalStore implements KpiCacheStore, DisposableBean {
+
+	private static final String FILE_NAME = "kpi-cache.dat";
+
+	/**
+	 * Directory of the file, by default data/kpi in the JIRA home.
+	 */
+	private static final String DIRECTORY = System.getProperty("kpi.localStore.dir");
+
+	/**
+	 * Initial size of the mapped file in bytes, it doubles whenever it is full.
+	 */
+	private static final int INITIAL_SIZE = Integer.getInteger("kpi.localStore.initialSize", 1 << 20);
+
+	/**
+	 * Files smaller than this are not compacted.
+	 */
+	private static final int MINIMUM_COMPACTION_SIZE = Integer.getInteger("kpi.localStore.compactionSize", 1 << 20);
+
+	/**
+	 * If the file could not be opened, it is tried again after this time in milliseconds.
+	 */
+	private static final long RETRY_INTERVAL = 60000L;
+
+	// "KPI1"
+	private static final int MAGIC = 0x4b504931;
+
+	// version 2 stores the counts per severity level instead of the weighted value
+	private static final int VERSION = 2;
+
+	// magic, version
+	private static final int HEADER_SIZE = 8;
+
+	// crc, type, project id, time
+	private static final int COUNTS_OFFSET = 4 + 1 + 8 + 8;
+
+	// crc, type, project id, time, counts
+	private static final int RECORD_SIZE = COUNTS_OFFSET + 4 * SeverityCounts.SLOTS;
+
+	private static final byte RECORD_VALUE = 1;
+
+	private static final byte RECORD_DELETE = 2;
+
+	private final JiraHome jiraHome;
+
+	/**
+	 * Directory of the file, null for the default one.
+	 */
+	private final File directory;
+
+	private final KpiMetrics metrics;
+
+	private RandomAccessFile file;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer buffer;
+
+	/**
+	 * End of the last valid record in the file.
+	 */
+	private int end;
+
+	/**
+	 * Number of records in the file, including overwritten values and tombstones.
+	 */
+	private int records;
+
+	/**
+	 * Number of values in the index.
+	 */
+	private int liveValues;
+
+	/**
+	 * Incremented whenever the file is closed, so a compaction notices that the file it copied was replaced.
+	 */
+	private int generation;
+
+	/**
+	 * True while the file is compacted.
+	 */
+	private boolean compacting;
+
+	private final Map<Long, Series> index = new HashMap<Long, Series>();
+
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+	private final CRC32 crc = new CRC32();
+
+	private long disabledUntil = 0;
+
+	public KpiLocalStore(JiraHome jiraHome, KpiMetrics metrics) {
+		this(jiraHome, null, metrics);
+	}
+
+	/**
+	 * Creates a store keeping its file in the given directory, independent of the JIRA home.
+	 */
+	KpiLocalStore(File directory, KpiMetrics metrics) {
+		this(null, directory, metrics);
+	}
+
+	private KpiLocalStore(JiraHome jiraHome, File directory, KpiMetrics metrics) {
+		this.jiraHome = jiraHome;
+		this.directory = directory;
+		this.metrics = metrics;
+	}
+
+	public synchronized Map<Long, SeverityCounts[]> getCachedValues(Collection<Long> ids, List<Timestamp> stamps) {
+		long started = System.nanoTime();
+		Map<Long, SeverityCounts[]> values = new HashMap<Long, SeverityCounts[]>();
+		boolean open = ensureOpen();
+		for(Long id : ids) {
+			SeverityCounts[] projectValues = new SeverityCounts[stamps.size()];
+			Series series = open ? index.get(id) : null;
+			if(series != null) {
+				for(int i = 0; i < projectValues.length; i++) {
+					int offset = series.get(stamps.get(i).getTime());
+					projectValues[i] = offset < 0 ? null : readCounts(offset);
+				}
+			}
+			values.put(id, projectValues);
+		}
+		metrics.dbReadLatency.record(KpiMetrics.microsSince(started));
+		return values;
+	}
+
+	public void cacheValues(Collection<KpiPoint> points) {
+		if(appendValues(points)) {
+			compact();
+		}
+	}
+
+	/**
+	 * Appends the values to the file.
+	 *
+	 * @return true, if the file should be compacted by the calling thread
+	 */
+	private synchronized boolean appendValues(Collection<KpiPoint> points) {
+		if(points.isEmpty() || ensureOpen() == false) {
+			return false;
+		}
+		long started = System.nanoTime();
+		try {
+			for(KpiPoint point : points) {
+				int offset = end;
+				append(RECORD_VALUE, point.getProjectId(), point.getTime().getTime(), point.getCounts());
+				if(getSeries(index, point.getProjectId()).put(point.getTime().getTime(), offset)) {
+					liveValues++;
+				}
+			}
+			buffer.force();
+			metrics.dbRowsWritten.addAndGet(points.size());
+			if(compacting || end < MINIMUM_COMPACTION_SIZE || records - liveValues <= liveValues) {
+				return false;
+			}
+			compacting = true;
+			return true;
+		} catch(IOException e) {
+			fail("Exception while storing values", e);
+			return false;
+		} finally {
+			metrics.dbWriteLatency.record(KpiMetrics.microsSince(started));
+		}
+	}
+
+	public synchronized void deleteValues(long id, Timestamp from) {
+		if(ensureOpen() == false) {
+			return;
+		}
+		long started = System.nanoTime();
+		try {
+			append(RECORD_DELETE, id, from.getTime(), SeverityCounts.EMPTY);
+			buffer.force();
+			liveValues -= getSeries(index, id).deleteFrom(from.getTime());
+		} catch(IOException e) {
+			fail("Exception while deleting values", e);
+		} finally {
+			metrics.dbWriteLatency.record(KpiMetrics.microsSince(started));
+		}
+	}
+
+	/**
+	 * Closes the file, when the plugin is disabled.
+	 */
+	public synchronized void destroy() {
+		if(buffer != null) {
+			buffer.force();
+		}
+		close();
+	}
+
+	/**
+	 * Opens the file, if it is not open yet.
+	 *
+	 * @return true, if the file is open
+	 */
+	private boolean ensureOpen() {
+		if(buffer != null) {
+			return true;
+		}
+		if(System.currentTimeMillis() < disabledUntil) {
+			return false;
+		}
+		try {
+			open();
+			KpiDataProvider.LOGGER.info("Opened local KPI store with " + liveValues + " values");
+			return true;
+		} catch(IOException e) {
+			fail("Exception while opening local KPI store", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Opens the file and reads all valid records into the index. Everything after the last valid record is cut off, so
+	 * a torn record or records written after it by an interrupted flush are never read.
+	 */
+	private void open() throws IOException {
+		File directory = getDirectory();
+		if(directory.isDirectory() == false && directory.mkdirs() == false) {
+			throw new IOException("Could not create directory " + directory);
+		}
+		file = new RandomAccessFile(new File(directory, FILE_NAME), "rw");
+		channel = file.getChannel();
+		index.clear();
+		records = 0;
+		liveValues = 0;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if(channel.size() < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC
+				|| header.getInt(4) != VERSION) {
+			if(channel.size() > 0) {
+				KpiDataProvider.LOGGER.warn("Unknown local KPI store format, starting empty");
+			}
+			end = HEADER_SIZE;
+		} else {
+			end = replay();
+		}
+
+		file.setLength(end);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(end, INITIAL_SIZE));
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.force();
+	}
+
+	/**
+	 * Reads all records from the file into the index, until the first invalid record.
+	 *
+	 * @return the end of the last valid record
+	 */
+	private int replay() throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(RECORD_SIZE * 1024);
+		long position = HEADER_SIZE;
+		long size = Math.min(channel.size(), Integer.MAX_VALUE);
+		while(position + RECORD_SIZE <= size) {
+			chunk.clear();
+			channel.read(chunk, position);
+			chunk.flip();
+			while(chunk.remaining() >= RECORD_SIZE) {
+				int start = chunk.position();
+				int checksum = chunk.getInt();
+				crc.reset();
+				crc.update(chunk.array(), start + 4, RECORD_SIZE - 4);
+				if((int) crc.getValue() != checksum) {
+					return (int) position;
+				}
+				byte type = chunk.get();
+				long id = chunk.getLong();
+				long time = chunk.getLong();
+				chunk.position(start + RECORD_SIZE);
+				if(type != RECORD_VALUE && type != RECORD_DELETE) {
+					return (int) position;
+				}
+				liveValues += apply(index, type, id, time, (int) position);
+				records++;
+				position += RECORD_SIZE;
+			}
+			if(chunk.position() == 0) {
+				break;
+			}
+		}
+		return (int) position;
+	}
+
+	/**
+	 * Appends one record. The checksum is written last, so an interrupted append is detected on the next start.
+	 */
+	private void append(byte type, long id, long time, SeverityCounts value) throws IOException {
+		if(end + RECORD_SIZE > buffer.capacity()) {
+			grow();
+		}
+		encode(type, id, time, value);
+		buffer.position(end + 4);
+		buffer.put(record.array(), 4, RECORD_SIZE - 4);
+		buffer.putInt(end, record.getInt(0));
+		end += RECORD_SIZE;
+		records++;
+	}
+
+	/**
+	 * Writes a record with checksum into {@link #record}.
+	 */
+	private void encode(byte type, long id, long time, SeverityCounts value) {
+		record.clear();
+		record.position(4);
+		record.put(type);
+		record.putLong(id);
+		record.putLong(time);
+		for(int slot = 0; slot < SeverityCounts.SLOTS; slot++) {
+			record.putInt(value.getSlot(slot));
+		}
+		crc.reset();
+		crc.update(record.array(), 4, RECORD_SIZE - 4);
+		record.putInt(0, (int) crc.getValue());
+	}
+
+	/**
+	 * Doubles the mapped size of the file.
+	 */
+	private void grow() throws IOException {
+		long size = (long) buffer.capacity() * 2;
+		if(size > Integer.MAX_VALUE) {
+			size = Integer.MAX_VALUE;
+		}
+		if(size < end + RECORD_SIZE) {
+			throw new IOException("Local KPI store is full");
+		}
+		buffer.force();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Copies the live records to a new file, which then replaces the old one. The records are copied without the lock
+	 * of the store, the records appended meanwhile are copied and applied to the new index under the lock, before the
+	 * new file replaces the old one. If the file was closed meanwhile, the copy is discarded.
+	 */
+	private void compact() {
+		long started = System.currentTimeMillis();
+		File compacted = new File(getDirectory(), FILE_NAME + ".compact");
+		RandomAccessFile out = null;
+		try {
+			// the records before the end of the snapshot are never changed, the values of the snapshot are read
+			// from a view of the mapped file
+			ByteBuffer source;
+			int copied;
+			int snapshotGeneration;
+			Map<Long, Series> snapshot = new HashMap<Long, Series>();
+			synchronized(this) {
+				if(buffer == null) {
+					return;
+				}
+				source = buffer.duplicate();
+				copied = end;
+				snapshotGeneration = generation;
+				for(Map.Entry<Long, Series> entry : index.entrySet()) {
+					snapshot.put(entry.getKey(), entry.getValue().copy());
+				}
+			}
+
+			out = new RandomAccessFile(compacted, "rw");
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			ByteBuffer chunk = ByteBuffer.allocate(RECORD_SIZE * 1024);
+			byte[] copy = new byte[RECORD_SIZE];
+			chunk.putInt(MAGIC);
+			chunk.putInt(VERSION);
+			Map<Long, Series> compactedIndex = new HashMap<Long, Series>();
+			int compactedEnd = HEADER_SIZE;
+			int compactedValues = 0;
+			for(Map.Entry<Long, Series> entry : snapshot.entrySet()) {
+				Series series = entry.getValue();
+				Series compactedSeries = getSeries(compactedIndex, entry.getKey());
+				for(int i = 0; i < series.size; i++) {
+					if(chunk.remaining() < RECORD_SIZE) {
+						writeFully(outChannel, chunk);
+					}
+					// the records are copied with their checksums
+					source.position(series.offsets[i]);
+					source.get(copy);
+					chunk.put(copy);
+					compactedSeries.put(series.times[i], compactedEnd);
+					compactedEnd += RECORD_SIZE;
+					compactedValues++;
+				}
+			}
+			writeFully(outChannel, chunk);
+
+			synchronized(this) {
+				if(buffer == null || generation != snapshotGeneration) {
+					return;
+				}
+				int oldSize = end;
+				int compactedRecords = compactedValues;
+				ByteBuffer tail = buffer.duplicate();
+				for(int position = copied; position < end; position += RECORD_SIZE) {
+					if(chunk.remaining() < RECORD_SIZE) {
+						writeFully(outChannel, chunk);
+					}
+					tail.position(position);
+					tail.get(copy);
+					chunk.put(copy);
+					// type, project id and time follow the checksum
+					ByteBuffer appended = ByteBuffer.wrap(copy);
+					compactedValues += apply(compactedIndex, appended.get(4), appended.getLong(5), appended.getLong(13),
+							compactedEnd);
+					compactedEnd += RECORD_SIZE;
+					compactedRecords++;
+				}
+				writeFully(outChannel, chunk);
+				outChannel.force(true);
+				out.close();
+				out = null;
+
+				buffer.force();
+				close();
+				File current = new File(getDirectory(), FILE_NAME);
+				// renaming replaces the file atomically on POSIX systems, other systems need to delete it first
+				if(compacted.renameTo(current) == false
+						&& (current.delete() == false || compacted.renameTo(current) == false)) {
+					KpiDataProvider.LOGGER.warn("Compacted local KPI store could not replace " + current);
+					open();
+					return;
+				}
+				file = new RandomAccessFile(current, "rw");
+				channel = file.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(compactedEnd, INITIAL_SIZE));
+				index.putAll(compactedIndex);
+				end = compactedEnd;
+				records = compactedRecords;
+				liveValues = compactedValues;
+				KpiDataProvider.LOGGER.info("Compacted local KPI store from " + oldSize + " to " + end + " bytes in "
+						+ (System.currentTimeMillis() - started) + "ms");
+			}
+		} catch(IOException e) {
+			synchronized(this) {
+				fail("Exception while compacting local KPI store", e);
+			}
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch(IOException e) {
+					KpiDataProvider.LOGGER.warn("Exception while closing compacted local KPI store: " + e.getMessage());
+				}
+			}
+			compacted.delete();
+			synchronized(this) {
+				compacting = false;
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer chunk) throws IOException {
+		chunk.flip();
+		while(chunk.hasRemaining()) {
+			channel.write(chunk);
+		}
+		chunk.clear();
+	}
+
+	private File getDirectory() {
+		if(directory != null) {
+			return directory;
+		}
+		if(DIRECTORY != null) {
+			return new File(DIRECTORY);
+		}
+		return new File(new File(jiraHome.getHome(), "data"), "kpi");
+	}
+
+	/**
+	 * Reads the counts of a value record from the mapped file.
+	 */
+	private SeverityCounts readCounts(int offset) {
+		int[] counts = new int[SeverityCounts.SLOTS];
+		for(int slot = 0; slot < counts.length; slot++) {
+			counts[slot] = buffer.getInt(offset + COUNTS_OFFSET + 4 * slot);
+		}
+		return new SeverityCounts(counts);
+	}
+
+	/**
+	 * Applies a record to an index.
+	 *
+	 * @param offset
+	 *            the position of the record in the file
+	 * @return the change of the number of values
+	 */
+	private static int apply(Map<Long, Series> index, byte type, long id, long time, int offset) {
+		Series series = getSeries(index, id);
+		if(type == RECORD_VALUE) {
+			return series.put(time, offset) ? 1 : 0;
+		}
+		return -series.deleteFrom(time);
+	}
+
+	private static Series getSeries(Map<Long, Series> index, long id) {
+		Series series = index.get(id);
+		if(series == null) {
+			series = new Series();
+			index.put(id, series);
+		}
+		return series;
+	}
+
+	/**
+	 * Closes the file after an error and disables the store for a while. The values are calculated meanwhile.
+	 */
+	private void fail(String message, IOException e) {
+		KpiDataProvider.LOGGER.error(message + ", local KPI store disabled for " + RETRY_INTERVAL + "ms: "
+				+ e.getMessage());
+		metrics.dbErrors.incrementAndGet();
+		close();
+		disabledUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+	}
+
+	private void close() {
+		buffer = null;
+		index.clear();
+		generation++;
+		if(file != null) {
+			try {
+				file.close();
+			} catch(IOException e) {
+				KpiDataProvider.LOGGER.warn("Exception while closing local KPI store: " + e.getMessage());
+			}
+			file = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * The times of the values of one project and the positions of their records, sorted by time.
+	 */
+	private static class Series {
+
+		long[] times = new long[16];
+
+		int[] offsets = new int[16];
+
+		int size;
+
+		/**
+		 * @return the position of the record of the value, -1 if there is none
+		 */
+		int get(long time) {
+			int i = indexOf(time);
+			return i >= 0 ? offsets[i] : -1;
+		}
+
+		/**
+		 * @return true, if the value is new, false if it replaced a value
+		 */
+		boolean put(long time, int offset) {
+			int i = indexOf(time);
+			if(i >= 0) {
+				offsets[i] = offset;
+				return false;
+			}
+			i = -i - 1;
+			if(size == times.length) {
+				times = copyOf(times, size * 2);
+				offsets = copyOf(offsets, size * 2);
+			}
+			System.arraycopy(times, i, times, i + 1, size - i);
+			System.arraycopy(offsets, i, offsets, i + 1, size - i);
+			times[i] = time;
+			offsets[i] = offset;
+			size++;
+			return true;
+		}
+
+		/**
+		 * @return the number of deleted values
+		 */
+		int deleteFrom(long from) {
+			int i = indexOf(from);
+			if(i < 0) {
+				i = -i - 1;
+			}
+			int deleted = size - i;
+			size = i;
+			return deleted;
+		}
+
+		Series copy() {
+			Series copy = new Series();
+			copy.times = copyOf(times, Math.max(size, 1));
+			copy.offsets = copyOf(offsets, Math.max(size, 1));
+			copy.size = size;
+			return copy;
+		}
+
+		/**
+		 * @return the index of the time, or (-(insertion point) - 1) if it is not contained
+		 */
+		private int indexOf(long time) {
+			int low = 0;
+			int high = size - 1;
+			while(low <= high) {
+				int middle = (low + high) >>> 1;
+				if(times[middle] < time) {
+					low = middle + 1;
+				} else if(times[middle] > time) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -(low + 1);
+		}
+
+		private static long[] copyOf(long[] array, int length) {
+			long[] copy = new long[length];
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+			return copy;
+		}
+
+		private static int[] copyOf(int[] array, int length) {
+			int[] copy = new int[length];
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+			return copy;
+		}
+	}
+}
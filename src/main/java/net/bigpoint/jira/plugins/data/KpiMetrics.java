@@ -0,0 +1,304 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Counters and histograms of the stages of a KPI request: cache tiers, caching db, issue loading, calculation and the
+ * response. They are shared by all requests and cheap enough to be updated on every one. The metrics are published by
+ * the REST metrics resource and as MBean "net.bigpoint.jira.plugins:type=KpiMetrics" while the plugin is enabled.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiMetrics implements InitializingBean, DisposableBean {
+
+	private static final String OBJECT_NAME = "net.bigpoint.jira.plugins:type=KpiMetrics";
+
+	public final AtomicLong requests = new AtomicLong();
+
+	public final AtomicLong notModifiedResponses = new AtomicLong();
+
+	public final AtomicLong unavailableResponses = new AtomicLong();
+
+	/**
+	 * Expensive requests, that had to wait to be admitted.
+	 */
+	public final AtomicLong admissionQueued = new AtomicLong();
+
+	/**
+	 * Expensive requests rejected by the admission control.
+	 */
+	public final AtomicLong admissionRejected = new AtomicLong();
+
+	public final AtomicLong jobsSubmitted = new AtomicLong();
+
+	/**
+	 * Background jobs rejected, because too many were kept on the node or running for the user.
+	 */
+	public final AtomicLong jobsRejected = new AtomicLong();
+
+	public final AtomicLong memoryCacheHits = new AtomicLong();
+
+	public final AtomicLong memoryCacheMisses = new AtomicLong();
+
+	public final AtomicLong dbCacheHits = new AtomicLong();
+
+	public final AtomicLong dbCacheMisses = new AtomicLong();
+
+	public final AtomicLong dbErrors = new AtomicLong();
+
+	public final AtomicLong dbRowsRead = new AtomicLong();
+
+	public final AtomicLong dbRowsWritten = new AtomicLong();
+
+	/**
+	 * Calculated values not cached persistently, because the write-behind queue was full.
+	 */
+	public final AtomicLong writeBehindDropped = new AtomicLong();
+
+	public final AtomicLong issuesScanned = new AtomicLong();
+
+	public final AtomicLong indexQueries = new AtomicLong();
+
+	public final AtomicLong pointsComputed = new AtomicLong();
+
+	public final AtomicLong responseBytes = new AtomicLong();
+
+	public final AtomicLong compressedResponseBytes = new AtomicLong();
+
+	/**
+	 * Time from the request entering the plugin until its response is completely written.
+	 */
+	public final KpiHistogram requestLatency = new KpiHistogram("us");
+
+	/**
+	 * Time from the first until the last byte of a response, mostly serialization.
+	 */
+	public final KpiHistogram responseWriteLatency = new KpiHistogram("us");
+
+	public final KpiHistogram responseSize = new KpiHistogram("bytes");
+
+	/**
+	 * Time to look up or calculate all values of a request.
+	 */
+	public final KpiHistogram calculationLatency = new KpiHistogram("us");
+
+	/**
+	 * Estimated number of issues to read for a request, before it is admitted.
+	 */
+	public final KpiHistogram requestCost = new KpiHistogram("issues");
+
+	/**
+	 * Time an expensive request waited to be admitted.
+	 */
+	public final KpiHistogram admissionWait = new KpiHistogram("us");
+
+	public final KpiHistogram dbReadLatency = new KpiHistogram("us");
+
+	public final KpiHistogram dbWriteLatency = new KpiHistogram("us");
+
+	/**
+	 * Time to read the issues of one project, or to count them with the index.
+	 */
+	public final KpiHistogram issueLoadingLatency = new KpiHistogram("us");
+
+	public final KpiHistogram issuesScannedPerRequest = new KpiHistogram("issues");
+
+	private final long started = System.currentTimeMillis();
+
+	private ObjectName objectName;
+
+	/**
+	 * @return the counters by name, in a fixed order
+	 */
+	public Map<String, Long> getCounters() {
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		counters.put("requests", requests.get());
+		counters.put("notModifiedResponses", notModifiedResponses.get());
+		counters.put("unavailableResponses", unavailableResponses.get());
+		counters.put("admissionQueued", admissionQueued.get());
+		counters.put("admissionRejected", admissionRejected.get());
+		counters.put("jobsSubmitted", jobsSubmitted.get());
+		counters.put("jobsRejected", jobsRejected.get());
+		counters.put("memoryCacheHits", memoryCacheHits.get());
+		counters.put("memoryCacheMisses", memoryCacheMisses.get());
+		counters.put("dbCacheHits", dbCacheHits.get());
+		counters.put("dbCacheMisses", dbCacheMisses.get());
+		counters.put("dbErrors", dbErrors.get());
+		counters.put("dbRowsRead", dbRowsRead.get());
+		counters.put("dbRowsWritten", dbRowsWritten.get());
+		counters.put("writeBehindDropped", writeBehindDropped.get());
+		counters.put("issuesScanned", issuesScanned.get());
+		counters.put("indexQueries", indexQueries.get());
+		counters.put("pointsComputed", pointsComputed.get());
+		counters.put("responseBytes", responseBytes.get());
+		counters.put("compressedResponseBytes", compressedResponseBytes.get());
+		return counters;
+	}
+
+	/**
+	 * @return the histograms by name, in a fixed order
+	 */
+	public Map<String, KpiHistogram> getHistograms() {
+		Map<String, KpiHistogram> histograms = new LinkedHashMap<String, KpiHistogram>();
+		histograms.put("requestLatency", requestLatency);
+		histograms.put("responseWriteLatency", responseWriteLatency);
+		histograms.put("responseSize", responseSize);
+		histograms.put("calculationLatency", calculationLatency);
+		histograms.put("requestCost", requestCost);
+		histograms.put("admissionWait", admissionWait);
+		histograms.put("dbReadLatency", dbReadLatency);
+		histograms.put("dbWriteLatency", dbWriteLatency);
+		histograms.put("issueLoadingLatency", issueLoadingLatency);
+		histograms.put("issuesScannedPerRequest", issuesScannedPerRequest);
+		return histograms;
+	}
+
+	/**
+	 * @return the time the metrics started counting, in milliseconds
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * @param startNanos
+	 *            the start of a measured stage, from {@link System#nanoTime()}
+	 * @return the microseconds passed since then
+	 */
+	public static long microsSince(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000;
+	}
+
+	/**
+	 * Registers the MBean, when the plugin is enabled. An MBean left over by a previous instance of the plugin is
+	 * replaced.
+	 */
+	public void afterPropertiesSet() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			try {
+				server.registerMBean(new MetricsMBean(), name);
+			} catch(InstanceAlreadyExistsException iaee) {
+				server.unregisterMBean(name);
+				server.registerMBean(new MetricsMBean(), name);
+			}
+			objectName = name;
+		} catch(JMException jme) {
+			KpiDataProvider.LOGGER.warn("KPI metrics not registered in JMX: " + jme.getMessage());
+		}
+	}
+
+	/**
+	 * Unregisters the MBean, when the plugin is disabled.
+	 */
+	public void destroy() {
+		if(objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch(JMException jme) {
+			KpiDataProvider.LOGGER.warn("KPI metrics not unregistered from JMX: " + jme.getMessage());
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Read only MBean publishing each counter as attribute and each histogram as attributes "name.count", "name.mean",
+	 * "name.p50", "name.p90", "name.p99" and "name.max".
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		private final String[] histogramStatistics = { "count", "mean", "p50", "p90", "p99", "max" };
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long counter = getCounters().get(attribute);
+			if(counter != null) {
+				return counter;
+			}
+			int dot = attribute.lastIndexOf('.');
+			KpiHistogram histogram = dot < 0 ? null : getHistograms().get(attribute.substring(0, dot));
+			if(histogram != null) {
+				String statistic = attribute.substring(dot + 1);
+				if(statistic.equals("count")) {
+					return histogram.getCount();
+				} else if(statistic.equals("mean")) {
+					return histogram.getMean();
+				} else if(statistic.equals("p50")) {
+					return histogram.getPercentile(50);
+				} else if(statistic.equals("p90")) {
+					return histogram.getPercentile(90);
+				} else if(statistic.equals("p99")) {
+					return histogram.getPercentile(99);
+				} else if(statistic.equals("max")) {
+					return histogram.getMax();
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch(AttributeNotFoundException anfe) {
+					// unknown attributes are left out
+				}
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("KPI metrics are read only: " + attribute.getName());
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("KPI metrics have no operations: " + actionName);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(String counter : getCounters().keySet()) {
+				attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+			}
+			for(Map.Entry<String, KpiHistogram> entry : getHistograms().entrySet()) {
+				for(String statistic : histogramStatistics) {
+					String name = entry.getKey() + "." + statistic;
+					attributes.add(new MBeanAttributeInfo(name, "long", name + " in " + entry.getValue().getUnit(),
+							true, false, false));
+				}
+			}
+			return new MBeanInfo(KpiMetrics.class.getName(), "KPI request metrics", attributes
+					.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0],
+					new MBeanNotificationInfo[0]);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+
+/**
+ * The open issues per severity level of one specific project at one specific time, as they are stored in the caching
+ * db.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiPoint {
+
+	private final long projectId;
+
+	private final Timestamp time;
+
+	private final SeverityCounts counts;
+
+	public KpiPoint(long projectId, Timestamp time, SeverityCounts counts) {
+		this.projectId = projectId;
+		this.time = time;
+		this.counts = counts;
+	}
+
+	public long getProjectId() {
+		return projectId;
+	}
+
+	public Timestamp getTime() {
+		return time;
+	}
+
+	public SeverityCounts getCounts() {
+		return counts;
+	}
+}
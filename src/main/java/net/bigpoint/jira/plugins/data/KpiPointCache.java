@@ -0,0 +1,278 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of the open issues per severity level, in front of the caching db. Values are keyed by
+ * project id and normalized timestamp. The entries are kept in primitive arrays, so one entry costs about 60 bytes and
+ * no objects. When the cache is full, the clock algorithm evicts an entry that has not been read recently. Provisional
+ * values, i.e. of buckets that are still open, can be cached with an expiry time, after which they count as missing.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiPointCache {
+
+	/**
+	 * Default maximum number of cached values.
+	 */
+	private static final int DEFAULT_CAPACITY = Integer.getInteger("kpi.memoryCache.capacity", 200000);
+
+	private static final int EMPTY = -1;
+
+	private final int capacity;
+
+	// the entries, indexed by entry number
+	private final long[] projectIds;
+	private final long[] times;
+	// the counts of entry e in the slots e * SLOTS to (e + 1) * SLOTS - 1
+	private final int[] counts;
+	private final boolean[] referenced;
+	// expiry time in milliseconds, 0 for values that never expire
+	private final long[] expires;
+
+	/**
+	 * Open addressing hash table with linear probing, holding entry numbers. It is at least twice as large as the
+	 * capacity.
+	 */
+	private final int[] table;
+
+	private final int mask;
+
+	private int size = 0;
+
+	/**
+	 * The clock hand, the next entry that is considered for eviction.
+	 */
+	private int hand = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public KpiPointCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public KpiPointCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.projectIds = new long[this.capacity];
+		this.times = new long[this.capacity];
+		this.counts = new int[this.capacity * SeverityCounts.SLOTS];
+		this.referenced = new boolean[this.capacity];
+		this.expires = new long[this.capacity];
+
+		int tableSize = Integer.highestOneBit(this.capacity) << 2;
+		this.table = new int[tableSize];
+		this.mask = tableSize - 1;
+		Arrays.fill(table, EMPTY);
+	}
+
+	/**
+	 * Returns the cached counts.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @param time
+	 *            the normalized timestamp in milliseconds
+	 * @return the counts, null if they are not cached or expired
+	 */
+	public synchronized SeverityCounts get(long projectId, long time) {
+		int entry = table[findSlot(projectId, time)];
+		if(entry != EMPTY && expires[entry] != 0 && expires[entry] <= System.currentTimeMillis()) {
+			removeEntry(entry);
+			entry = EMPTY;
+		}
+		if(entry == EMPTY) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		referenced[entry] = true;
+		int[] entryCounts = new int[SeverityCounts.SLOTS];
+		System.arraycopy(counts, entry * SeverityCounts.SLOTS, entryCounts, 0, SeverityCounts.SLOTS);
+		return new SeverityCounts(entryCounts);
+	}
+
+	/**
+	 * Checks whether counts are cached, without counting a hit or miss and without giving the entry a second chance.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @param time
+	 *            the normalized timestamp in milliseconds
+	 * @return true, if the counts are cached and not expired
+	 */
+	public synchronized boolean contains(long projectId, long time) {
+		int entry = table[findSlot(projectId, time)];
+		return entry != EMPTY && (expires[entry] == 0 || expires[entry] > System.currentTimeMillis());
+	}
+
+	/**
+	 * Caches counts, evicting another entry if the cache is full.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @param time
+	 *            the normalized timestamp in milliseconds
+	 * @param value
+	 *            the counts
+	 */
+	public void put(long projectId, long time, SeverityCounts value) {
+		put(projectId, time, value, 0);
+	}
+
+	/**
+	 * Caches provisional counts until the given time, evicting another entry if the cache is full.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @param time
+	 *            the normalized timestamp in milliseconds
+	 * @param value
+	 *            the counts
+	 * @param expiresAt
+	 *            the time in milliseconds, after which the counts are missing, 0 if they never expire
+	 */
+	public synchronized void put(long projectId, long time, SeverityCounts value, long expiresAt) {
+		int slot = findSlot(projectId, time);
+		int entry = table[slot];
+		if(entry == EMPTY) {
+			if(size < capacity) {
+				entry = size++;
+			} else {
+				entry = evict();
+				// removing the evicted entry may have moved the free slot
+				slot = findSlot(projectId, time);
+			}
+			table[slot] = entry;
+			projectIds[entry] = projectId;
+			times[entry] = time;
+			referenced[entry] = false;
+		}
+		for(int i = 0; i < SeverityCounts.SLOTS; i++) {
+			counts[entry * SeverityCounts.SLOTS + i] = value.getSlot(i);
+		}
+		expires[entry] = expiresAt;
+	}
+
+	/**
+	 * Removes the cached values of one project, starting at the given time.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @param from
+	 *            the first normalized timestamp to remove, in milliseconds
+	 */
+	public synchronized void evict(long projectId, long from) {
+		// downwards, so entries moved into a freed entry have been checked already
+		for(int entry = size - 1; entry >= 0; entry--) {
+			if(projectIds[entry] == projectId && times[entry] >= from) {
+				removeEntry(entry);
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached values.
+	 */
+	public synchronized void clear() {
+		Arrays.fill(table, EMPTY);
+		size = 0;
+		hand = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Frees one entry with the clock algorithm: entries read since the hand passed them last get a second chance.
+	 *
+	 * @return the number of the freed entry
+	 */
+	private int evict() {
+		while(referenced[hand]) {
+			referenced[hand] = false;
+			hand = (hand + 1) % capacity;
+		}
+		int victim = hand;
+		hand = (hand + 1) % capacity;
+		removeSlot(findSlot(projectIds[victim], times[victim]));
+		return victim;
+	}
+
+	/**
+	 * Removes an entry and moves the last entry into its place, so the entries stay dense.
+	 */
+	private void removeEntry(int entry) {
+		removeSlot(findSlot(projectIds[entry], times[entry]));
+		int last = --size;
+		if(entry != last) {
+			table[findSlot(projectIds[last], times[last])] = entry;
+			projectIds[entry] = projectIds[last];
+			times[entry] = times[last];
+			System.arraycopy(counts, last * SeverityCounts.SLOTS, counts, entry * SeverityCounts.SLOTS,
+					SeverityCounts.SLOTS);
+			referenced[entry] = referenced[last];
+			expires[entry] = expires[last];
+		}
+		if(hand >= size) {
+			hand = 0;
+		}
+	}
+
+	/**
+	 * Empties a slot of the hash table and moves following entries of the probe sequence back, so every entry stays
+	 * reachable from its home slot.
+	 */
+	private void removeSlot(int slot) {
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while(table[next] != EMPTY) {
+			int entry = table[next];
+			int home = hash(projectIds[entry], times[entry]);
+			// move the entry, if its home slot is not between the free slot and its current slot
+			if(((next - home) & mask) >= ((next - free) & mask)) {
+				table[free] = entry;
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[free] = EMPTY;
+	}
+
+	/**
+	 * @return the slot holding the key, or the empty slot where it belongs
+	 */
+	private int findSlot(long projectId, long time) {
+		int slot = hash(projectId, time);
+		while(true) {
+			int entry = table[slot];
+			if(entry == EMPTY || (projectIds[entry] == projectId && times[entry] == time)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private int hash(long projectId, long time) {
+		long h = projectId * 0x9E3779B97F4A7C15L ^ time;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+}
@@ -0,0 +1,151 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.project.ProjectManager;
+
+/**
+ * Nightly job, calculating the kpi values at the end of the last days for all projects, so interactive requests are
+ * served from the cache. Projects are calculated one after another on the low priority thread of the job, with a pause
+ * in between, so the JIRA node is not overloaded. The job doesn't use the workers of the requests and isn't bound to
+ * their deadline, so large projects are calculated as well. The thread is stopped when the plugin is disabled. Each run is scheduled
+ * after the previous one from the end of the current day of the {@link KpiBucketCalendar}, so the job keeps its local
+ * time when daylight saving time changes and never runs before the last day is closed.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiPrecomputationJob implements InitializingBean, DisposableBean {
+
+	private static final boolean ENABLED = Boolean.valueOf(System.getProperty("kpi.precompute.enabled", "true"));
+
+	/**
+	 * The job starts this many minutes after midnight.
+	 */
+	private static final int MINUTES_AFTER_MIDNIGHT = Integer.getInteger("kpi.precompute.minutesAfterMidnight", 5);
+
+	/**
+	 * Number of past days calculated, so days missed i.e. due to a restart are filled as well.
+	 */
+	private static final int DAYS = Integer.getInteger("kpi.precompute.days", 7);
+
+	/**
+	 * Pause between two projects, in milliseconds.
+	 */
+	private static final long PAUSE = Long.getLong("kpi.precompute.pause", 1000L);
+
+	private final ProjectManager projectManager;
+
+	private final KpiDataProvider dataProvider;
+
+	private final KpiBucketCalendar calendar;
+
+	private ScheduledExecutorService scheduler;
+
+	public KpiPrecomputationJob(ProjectManager projectManager, KpiDataProvider dataProvider, KpiBucketCalendar calendar) {
+		this.projectManager = projectManager;
+		this.dataProvider = dataProvider;
+		this.calendar = calendar;
+	}
+
+	/**
+	 * Schedules the job, when the plugin is enabled.
+	 */
+	public void afterPropertiesSet() {
+		if(ENABLED == false) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kpi-precompute");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		scheduleNext();
+	}
+
+	/**
+	 * Schedules the next run after midnight in the time zone of the buckets. The run schedules the one after it.
+	 */
+	private void scheduleNext() {
+		long now = System.currentTimeMillis();
+		long next = calendar.getBucketStart(now, KpiBucketCalendar.DAILY) + MINUTES_AFTER_MIDNIGHT * 60000L;
+		if(next <= now) {
+			next = calendar.getBucketEnd(now, KpiBucketCalendar.DAILY) + 1 + MINUTES_AFTER_MIDNIGHT * 60000L;
+		}
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					try {
+						precompute();
+					} finally {
+						scheduleNext();
+					}
+				}
+			}, next - now, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException ree) {
+			// the plugin was disabled
+		}
+	}
+
+	/**
+	 * Stops the job, when the plugin is disabled.
+	 */
+	public void destroy() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Calculates the values at the end of the last days for all projects.
+	 */
+	void precompute() {
+		KpiDataProvider.LOGGER.info("Precomputing KPIs of the last " + DAYS + " days");
+		long started = System.currentTimeMillis();
+		List<Timestamp> stamps = getLastDays();
+		try {
+			for(Project p : projectManager.getProjectObjects()) {
+				precomputeProject(p.getId(), stamps);
+				Thread.sleep(PAUSE);
+			}
+		} catch(InterruptedException ie) {
+			KpiDataProvider.LOGGER.info("Precomputing KPIs stopped");
+			return;
+		} catch(RuntimeException re) {
+			// keep the job scheduled
+			KpiDataProvider.LOGGER.error("Exception while precomputing KPIs: " + re.getMessage(), re);
+			return;
+		}
+		KpiDataProvider.LOGGER.info("Precomputing KPIs done in " + (System.currentTimeMillis() - started) + "ms");
+	}
+
+	private void precomputeProject(long id, List<Timestamp> stamps) throws InterruptedException {
+		try {
+			dataProvider.precomputeSeverityCounts(id, stamps);
+		} catch(RuntimeException re) {
+			// continue with the next project
+			KpiDataProvider.LOGGER.warn("Precomputing KPIs for project " + id + " failed: " + re.getMessage(), re);
+		}
+	}
+
+	/**
+	 * @return the normalized end of each of the last days before today, in ascending order
+	 */
+	private List<Timestamp> getLastDays() {
+		long yesterday = calendar.getBucketStart(System.currentTimeMillis(), KpiBucketCalendar.DAILY) - 1;
+		return calendar.getStamps(DAYS, KpiBucketCalendar.DAILY, yesterday);
+	}
+}
@@ -0,0 +1,113 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sweep-line engine counting the open issues of one project per severity level for a whole series of timestamps. Each
+ * issue is added once as an interval from its creation to its closing, together with its severity level. All
+ * requested timestamps are then filled in one sorted pass, so the cost is O(issues log issues + timestamps) instead of
+ * O(issues * timestamps).
+ *
+ * @author jschweizer
+ *
+ */
+class KpiTimeline {
+
+	/**
+	 * Marks an issue, that is not closed yet and therefore open for every timestamp after its creation.
+	 */
+	static final long NOT_CLOSED = Long.MAX_VALUE;
+
+	private final List<IssueInterval> intervals = new ArrayList<IssueInterval>();
+
+	/**
+	 * Adds one issue to the timeline. The issue is open at every timestamp ts with created &lt; ts &lt; closed.
+	 *
+	 * @param created
+	 *            creation time of the issue in milliseconds
+	 * @param closed
+	 *            resolution time of the issue in milliseconds, {@link #NOT_CLOSED} if still open
+	 * @param level
+	 *            the severity level of the issue, -1 for none
+	 */
+	void addIssue(long created, long closed, int level) {
+		if(closed > created && level >= -1 && level <= SeverityLevelCache.HIGHEST_LEVEL) {
+			intervals.add(new IssueInterval(created, closed, level));
+		}
+	}
+
+	/**
+	 * @return the number of issues added to the timeline
+	 */
+	int size() {
+		return intervals.size();
+	}
+
+	/**
+	 * Counts the open issues per severity level for each of the given timestamps.
+	 *
+	 * @param stamps
+	 *            the timestamps in milliseconds, in ascending order
+	 * @return the counts for each timestamp, in the same order
+	 */
+	SeverityCounts[] countsAt(long[] stamps) {
+
+		List<IssueInterval> byStart = new ArrayList<IssueInterval>(intervals);
+		Collections.sort(byStart, START_ORDER);
+		List<IssueInterval> byEnd = new ArrayList<IssueInterval>(intervals);
+		Collections.sort(byEnd, END_ORDER);
+
+		// number of open issues per severity level at the current sweep position
+		int[] open = new int[SeverityCounts.SLOTS];
+		SeverityCounts[] counts = new SeverityCounts[stamps.length];
+		int startIndex = 0;
+		int endIndex = 0;
+		int size = intervals.size();
+
+		for(int i = 0; i < stamps.length; i++) {
+			long ts = stamps[i];
+			while(startIndex < size && byStart.get(startIndex).created < ts) {
+				open[SeverityCounts.slot(byStart.get(startIndex).level)]++;
+				startIndex++;
+			}
+			while(endIndex < size && byEnd.get(endIndex).closed <= ts) {
+				open[SeverityCounts.slot(byEnd.get(endIndex).level)]--;
+				endIndex++;
+			}
+
+			counts[i] = new SeverityCounts(open.clone());
+		}
+		return counts;
+	}
+
+	private static final Comparator<IssueInterval> START_ORDER = new Comparator<IssueInterval>() {
+		public int compare(IssueInterval a, IssueInterval b) {
+			return a.created < b.created ? -1 : (a.created == b.created ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<IssueInterval> END_ORDER = new Comparator<IssueInterval>() {
+		public int compare(IssueInterval a, IssueInterval b) {
+			return a.closed < b.closed ? -1 : (a.closed == b.closed ? 0 : 1);
+		}
+	};
+
+	/**
+	 * The lifetime of one issue.
+	 */
+	private static final class IssueInterval {
+
+		private final long created;
+		private final long closed;
+		private final int level;
+
+		private IssueInterval(long created, long closed, int level) {
+			this.created = created;
+			this.closed = closed;
+			this.level = level;
+		}
+	}
+}
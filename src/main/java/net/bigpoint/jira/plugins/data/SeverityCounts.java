@@ -0,0 +1,86 @@
+package net.bigpoint.jira.plugins.data;
+
+/**
+ * The numbers of open issues of one project at one time, per severity level. This is what is cached, so the weighted
+ * KPI, the number of issues or any other weighting can be derived without reading the issues again. Instances are
+ * immutable.
+ *
+ * @author jschweizer
+ *
+ */
+public final class SeverityCounts {
+
+	/**
+	 * Number of counted levels: issues without severity (-1), with any other severity (0) and the levels 1 to
+	 * {@link SeverityLevelCache#HIGHEST_LEVEL}.
+	 */
+	public static final int SLOTS = SeverityLevelCache.HIGHEST_LEVEL + 2;
+
+	/**
+	 * No open issue at all.
+	 */
+	public static final SeverityCounts EMPTY = new SeverityCounts(new int[SLOTS]);
+
+	private final int[] counts;
+
+	/**
+	 * @param counts
+	 *            the number of open issues per slot, the slot of a level is level + 1. The array is not copied and must
+	 *            not be modified afterwards.
+	 */
+	SeverityCounts(int[] counts) {
+		this.counts = counts;
+	}
+
+	/**
+	 * @param level
+	 *            the severity level, -1 for issues without severity, 0 for any other severity
+	 * @return the number of open issues of the level
+	 */
+	public int getCount(int level) {
+		return counts[slot(level)];
+	}
+
+	/**
+	 * @return the number of all open issues, with and without severity
+	 */
+	public int getIssueCount() {
+		int total = 0;
+		for(int count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * @param levelWeights
+	 *            the multiplicator for each severity level, indexed by level. Levels without multiplicator and issues
+	 *            without severity don't count.
+	 * @return the weighted sum of the open issues
+	 */
+	public double weigh(double[] levelWeights) {
+		double kpi = 0.0;
+		for(int level = 0; level < levelWeights.length && level < SLOTS - 1; level++) {
+			kpi += counts[slot(level)] * levelWeights[level];
+		}
+		return kpi;
+	}
+
+	/**
+	 * @param slot
+	 *            the slot, the level + 1
+	 * @return the number of open issues in the slot
+	 */
+	int getSlot(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * @param level
+	 *            the severity level from -1 to {@link SeverityLevelCache#HIGHEST_LEVEL}
+	 * @return the slot of the level
+	 */
+	static int slot(int level) {
+		return level + 1;
+	}
+}
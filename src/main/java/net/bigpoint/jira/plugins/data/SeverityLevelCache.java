@@ -0,0 +1,262 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ofbiz.core.entity.GenericValue;
+
+import com.atlassian.jira.issue.CustomFieldManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.fields.CustomField;
+import com.atlassian.jira.project.Project;
+
+/**
+ * Resolves the severity level of issues. The custom field "Severity" is looked up only once per project and the parsed
+ * level of each issue is kept in a compact primitive hash map, together with the update time of the issue. A level is
+ * parsed again as soon as the issue has been updated or was invalidated.
+ *
+ * @author jschweizer
+ *
+ */
+public class SeverityLevelCache {
+
+	/**
+	 * The name of the custom filed, used by the plugin.
+	 */
+	static final String CUSTOM_FIELD_SEVERITY = "Severity";
+
+	/**
+	 * The highest severity level. Levels 1 to this one have a predefined multiplicator.
+	 */
+	static final int HIGHEST_LEVEL = 5;
+
+	/**
+	 * Maximum number of issues kept in the map. When it's reached, the map is cleared.
+	 */
+	private static final int MAXIMUM_CAPACITY = Integer.getInteger("kpi.severityCache.capacity", 1 << 20);
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * Update time of invalidated entries, which never matches an issue.
+	 */
+	private static final long INVALID = Long.MIN_VALUE;
+
+	private final CustomFieldManager cfManager;
+
+	/**
+	 * The custom field "Severity" of each project, an empty list if none applies to the project.
+	 */
+	private final ConcurrentMap<Long, List<CustomField>> severityFields = new ConcurrentHashMap<Long, List<CustomField>>();
+
+	// open addressing hash map with linear probing, issue id 0 marks an empty slot
+	private long[] issueIds;
+	private long[] updated;
+	private byte[] levels;
+	private int size;
+
+	public SeverityLevelCache(CustomFieldManager cfManager) {
+		this.cfManager = cfManager;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns the severity level of one specific issue.
+	 *
+	 * @param issue
+	 *            the issue
+	 * @return the severity level 1 to {@link #HIGHEST_LEVEL}, 0 for any other severity, -1 if none can be found
+	 */
+	public int getLevel(Issue issue) {
+		long id = issue.getId();
+		long updateTime = issue.getUpdated() == null ? 0 : issue.getUpdated().getTime();
+		synchronized(this) {
+			int slot = findSlot(id);
+			if(issueIds[slot] == id && updated[slot] == updateTime) {
+				return levels[slot];
+			}
+		}
+
+		int level = parseSeverityLevel(issue);
+		synchronized(this) {
+			int slot = findSlot(id);
+			if(issueIds[slot] != id) {
+				if(size >= MAXIMUM_CAPACITY) {
+					allocate(issueIds.length);
+				} else if(size >= issueIds.length / 2) {
+					grow();
+				}
+				slot = findSlot(id);
+				issueIds[slot] = id;
+				size++;
+			}
+			updated[slot] = updateTime;
+			levels[slot] = (byte) level;
+		}
+		return level;
+	}
+
+	/**
+	 * Makes sure, the severity level of an issue is parsed again on the next request.
+	 *
+	 * @param issueId
+	 *            the id of the changed issue
+	 */
+	public synchronized void invalidate(long issueId) {
+		int slot = findSlot(issueId);
+		if(issueIds[slot] == issueId) {
+			updated[slot] = INVALID;
+		}
+	}
+
+	/**
+	 * Returns the custom field "Severity" of a project. If there are several fields with this name, a field configured
+	 * for the project is preferred to the ones configured for all projects. If that is still ambiguous, the field with
+	 * the lowest id is used and a warning is logged. The field is looked up once per project.
+	 *
+	 * @param projectId
+	 *            the project id
+	 * @return the custom field "Severity", null if none applies to the project
+	 */
+	public CustomField getSeverityField(long projectId) {
+		List<CustomField> field = severityFields.get(projectId);
+		if(field == null) {
+			CustomField resolved = resolveSeverityField(projectId);
+			field = resolved == null ? Collections.<CustomField> emptyList() : Collections.singletonList(resolved);
+			severityFields.put(projectId, field);
+		}
+		return field.isEmpty() ? null : field.get(0);
+	}
+
+	private CustomField resolveSeverityField(long projectId) {
+		List<CustomField> projectFields = new ArrayList<CustomField>();
+		List<CustomField> globalFields = new ArrayList<CustomField>();
+		Collection<?> fields = cfManager.getCustomFieldObjectsByName(CUSTOM_FIELD_SEVERITY);
+		if(fields != null) {
+			for(Object object : fields) {
+				CustomField field = (CustomField) object;
+				if(field.isAllProjects()) {
+					globalFields.add(field);
+				} else if(isAssociated(field, projectId)) {
+					projectFields.add(field);
+				}
+			}
+		}
+		List<CustomField> candidates = projectFields.isEmpty() ? globalFields : projectFields;
+		if(candidates.isEmpty()) {
+			return null;
+		}
+		Collections.sort(candidates, new Comparator<CustomField>() {
+			public int compare(CustomField a, CustomField b) {
+				return a.getIdAsLong().compareTo(b.getIdAsLong());
+			}
+		});
+		if(candidates.size() > 1) {
+			List<String> ids = new ArrayList<String>();
+			for(CustomField candidate : candidates) {
+				ids.add(candidate.getId());
+			}
+			KpiDataProvider.LOGGER.warn("Project " + projectId + " has several custom fields \"" + CUSTOM_FIELD_SEVERITY
+					+ "\" " + ids + ", using " + candidates.get(0).getId());
+		}
+		return candidates.get(0);
+	}
+
+	/**
+	 * @return true, if the custom field is configured for the project
+	 */
+	private static boolean isAssociated(CustomField field, long projectId) {
+		List<?> projects = field.getAssociatedProjects();
+		if(projects == null) {
+			return false;
+		}
+		for(Object project : projects) {
+			if(project != null && Long.valueOf(projectId).equals(((GenericValue) project).getLong("id"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses the severity level from the value of the custom field "Severity", i.e. "3 - Major".
+	 */
+	private int parseSeverityLevel(Issue issue) {
+		Project project = issue.getProjectObject();
+		CustomField cf = project == null ? null : getSeverityField(project.getId());
+		if(cf == null) {
+			// no custom field "Severity" found
+			return -1;
+		}
+		// no String value found for this issue and the custom field Severity counts as none
+		return parseLevel(cf.getValueFromIssue(issue));
+	}
+
+	/**
+	 * Parses the severity level from a value of the custom field "Severity".
+	 *
+	 * @param value
+	 *            the value, i.e. "3 - Major"
+	 * @return the severity level 1 to {@link #HIGHEST_LEVEL}, 0 for any other severity, -1 for none
+	 */
+	static int parseLevel(String value) {
+		if(value == null) {
+			return -1;
+		}
+
+		String[] strings = value.split("-");
+		int valueNumber = 0;
+		try {
+			valueNumber = Integer.parseInt(strings[0].trim());
+		} catch(NumberFormatException e) {
+			KpiDataProvider.LOGGER.error("Exception while parsing severity: " + e.getMessage());
+			return -1;
+		}
+
+		// levels without predefined multiplicator don't count
+		if(valueNumber >= 1 && valueNumber <= HIGHEST_LEVEL) {
+			return valueNumber;
+		}
+		return 0;
+	}
+
+	private void allocate(int capacity) {
+		issueIds = new long[capacity];
+		updated = new long[capacity];
+		levels = new byte[capacity];
+		size = 0;
+	}
+
+	private void grow() {
+		long[] oldIds = issueIds;
+		long[] oldUpdated = updated;
+		byte[] oldLevels = levels;
+		allocate(oldIds.length * 2);
+		for(int i = 0; i < oldIds.length; i++) {
+			if(oldIds[i] != 0) {
+				int slot = findSlot(oldIds[i]);
+				issueIds[slot] = oldIds[i];
+				updated[slot] = oldUpdated[i];
+				levels[slot] = oldLevels[i];
+				size++;
+			}
+		}
+	}
+
+	/**
+	 * @return the slot holding the issue id, or the empty slot where it belongs
+	 */
+	private int findSlot(long issueId) {
+		int mask = issueIds.length - 1;
+		int slot = (int) ((issueId * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while(issueIds[slot] != 0 && issueIds[slot] != issueId) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
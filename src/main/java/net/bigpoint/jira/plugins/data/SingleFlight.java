@@ -0,0 +1,50 @@
+package net.bigpoint.jira.plugins.data;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces identical concurrent calculations: while a calculation for a key is running, later callers with the same
+ * key wait for its result instead of starting their own.
+ *
+ * @author jschweizer
+ *
+ * @param <K>
+ *            the key identifying a calculation
+ * @param <V>
+ *            the result of a calculation
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, FutureTask<V>> running = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Runs the calculation in the calling thread, or waits for the result of the identical calculation already running.
+	 *
+	 * @param key
+	 *            identifies the calculation
+	 * @param calculation
+	 *            the calculation
+	 * @return the result
+	 * @throws ExecutionException
+	 *             if the calculation failed, in this or in the other thread
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public V execute(K key, Callable<V> calculation) throws ExecutionException, InterruptedException {
+		FutureTask<V> own = new FutureTask<V>(calculation);
+		FutureTask<V> other = running.putIfAbsent(key, own);
+		if(other != null) {
+			return other.get();
+		}
+		try {
+			own.run();
+		} finally {
+			running.remove(key, own);
+		}
+		return own.get();
+	}
+}
@@ -1,31 +1,62 @@
 package net.bigpoint.jira.plugins.service;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
+import net.bigpoint.jira.plugins.data.KpiAdmissionController;
+import net.bigpoint.jira.plugins.data.KpiAdmissionException;
+import net.bigpoint.jira.plugins.data.KpiBucketCalendar;
+import net.bigpoint.jira.plugins.data.KpiComputationException;
 import net.bigpoint.jira.plugins.data.KpiDataProvider;
+import net.bigpoint.jira.plugins.data.KpiJob;
+import net.bigpoint.jira.plugins.data.KpiJobManager;
+import net.bigpoint.jira.plugins.data.KpiMetrics;
+import net.bigpoint.jira.plugins.data.SeverityCounts;
 import net.bigpoint.jira.plugins.transport.ErrorCollection;
 import net.bigpoint.jira.plugins.transport.KPIRepresentation;
 import net.bigpoint.jira.plugins.transport.KpiAtTimeRepresentation;
+import net.bigpoint.jira.plugins.transport.KpiCategorySeriesRepresentation;
+import net.bigpoint.jira.plugins.transport.KpiColumnsRepresentation;
+import net.bigpoint.jira.plugins.transport.KpiExportWriter;
+import net.bigpoint.jira.plugins.transport.KpiJobRepresentation;
+import net.bigpoint.jira.plugins.transport.KpiJobSeriesRepresentation;
+import net.bigpoint.jira.plugins.transport.KpiJsonWriter;
+import net.bigpoint.jira.plugins.transport.KpiSeriesRepresentation;
 import net.bigpoint.jira.plugins.transport.KpiTimelineRepresentation;
 import net.bigpoint.jira.plugins.transport.ValidationError;
 
 import org.apache.log4j.Logger;
+import org.ofbiz.core.entity.GenericValue;
 
-import com.atlassian.jira.issue.CustomFieldManager;
-import com.atlassian.jira.issue.IssueManager;
 import com.atlassian.jira.project.Project;
 import com.atlassian.jira.project.ProjectManager;
 import com.atlassian.plugins.rest.common.security.AnonymousAllowed;
@@ -54,20 +85,22 @@ public class KeyPerformanceResource {
 	private final int MAXIMUM_NUMBER_DATASETS = 5000;
 	//TODO: work in progress, evaluate witch caching, without caching.
 
+	/**
+	 * Constant specifying maximum number of requested datasets of a streamed request.
+	 */
+	private final int MAXIMUM_NUMBER_DATASETS_STREAMING = 50000;
+
+	/**
+	 * Number of dates calculated at once, before they are written to a streamed response.
+	 */
+	private final int STREAMING_CHUNK_SIZE = 100;
+
 	private final String STRING_ALL_PROJECTS = "allprojects";
 
 	private final String STRING_ALL_CATEGORIES = "catallCategories";
 
 	private final String CATEGORY_PREFIX = "cat";
 
-	private final String STRING_TODAY = "today";
-
-	private final String STRING_DAILY = "daily";
-
-	private final String STRING_WEEKLY = "weekly";
-
-	private final String STRING_MONTHLY = "monthly";
-
 	private static final String PARAM_STRING_PROJECT_CATEGORY = "projectId";
 
 	private static final String PARAM_STRING_PERIOD = "period";
@@ -76,22 +109,58 @@ public class KeyPerformanceResource {
 
 	private static final String PARAM_STRING_END = "end";
 
-	//24 * 60 * 60 * 1000L, 1 day in milliseconds
-	private final long DAYS_TO_MILLISECONDS_MULTIPLIER = 86400000L;
+	private static final String PARAM_STRING_STREAM = "stream";
+
+	private static final String PARAM_STRING_FORMAT = "format";
+
+	private static final String PARAM_STRING_GROUP_BY = "groupBy";
+
+	private static final String PARAM_STRING_SINCE = "since";
+
+	private static final String PARAM_STRING_MODIFIED_SINCE = "modifiedSince";
+
+	private static final String PARAM_STRING_COMPLETED = "completed";
+
+	private static final String PARAM_STRING_FROM = "from";
+
+	private static final String PARAM_STRING_TO = "to";
+
+	private static final String PARAM_STRING_AFTER = "after";
+
+	private static final String PARAM_STRING_JOB_ID = "jobId";
+
+	/**
+	 * Format value requesting the columnar representation.
+	 */
+	private final String STRING_FORMAT_COLUMNS = "columns";
+
+	/**
+	 * Grouping value requesting one summed series per category instead of the series of its projects.
+	 */
+	private final String STRING_GROUP_BY_CATEGORY = "category";
 
 	private ProjectManager m_projectManager;
-	private IssueManager m_issueManager;
-	private CustomFieldManager m_cfManager;
 
 	private KpiDataProvider m_dataProvider;
 
+	private KpiMetrics m_metrics;
+
+	private KpiBucketCalendar m_calendar;
+
+	private KpiAdmissionController m_admission;
+
+	private KpiJobManager m_jobs;
+
 	protected static final Logger LOGGER = Logger.getLogger(KeyPerformanceResource.class);
 
-	public KeyPerformanceResource(ProjectManager proManager, IssueManager issueManager, CustomFieldManager cfm) {
+	public KeyPerformanceResource(ProjectManager proManager, KpiDataProvider dataProvider, KpiMetrics metrics,
+			KpiBucketCalendar calendar, KpiAdmissionController admission, KpiJobManager jobs) {
 		this.m_projectManager = proManager;
-		this.m_issueManager = issueManager;
-		this.m_cfManager = cfm;
-		m_dataProvider = new KpiDataProvider(m_projectManager, m_issueManager, m_cfManager);
+		this.m_dataProvider = dataProvider;
+		this.m_metrics = metrics;
+		this.m_calendar = calendar;
+		this.m_admission = admission;
+		this.m_jobs = jobs;
 	}
 
 	/**
@@ -99,7 +168,9 @@ public class KeyPerformanceResource {
 	 * @param projectIdString The project or category ids
 	 * @param period the requested period.
 	 * @param interval the requested step interval
-	 * @param end string specifying the las requested date (default: today).
+	 * @param end string specifying the las requested date, "today" (default) or yyyy-MM-dd.
+	 * @param stream "true", if the KPIs will be streamed, which allows more datasets. Requests cached completely are
+	 * allowed as many datasets as streamed ones.
 	 * @return HTTPResponse OK if  params are valid, a collection of error messages in every other case.
 	 */
 	@GET
@@ -109,7 +180,8 @@ public class KeyPerformanceResource {
 			@QueryParam(PARAM_STRING_PROJECT_CATEGORY) String projectIdString,
 			@QueryParam(PARAM_STRING_PERIOD) String period,
 			@QueryParam(PARAM_STRING_INTERVAL) String interval,
-			@QueryParam(PARAM_STRING_END) String end) {
+			@QueryParam(PARAM_STRING_END) String end,
+			@QueryParam(PARAM_STRING_STREAM) String stream) {
 
 		Collection<ValidationError> errors = new ArrayList<ValidationError>();
 		Collection<String> errMessages = new ArrayList<String>();
@@ -131,9 +203,18 @@ public class KeyPerformanceResource {
 			ErrorCollection errCol = new ErrorCollection(errMessages, errors);
 			return Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(errCol).build();
 		}
-		Collection<Timestamp> stamps = getTimestampsFromParam(period, interval, STRING_TODAY);
+		KpiBucketCalendar.Buckets buckets = getBuckets(period, interval, end);
+		if(buckets == null) {
+			errors.add(new ValidationError(PARAM_STRING_END, "Please specify the end as yyyy-MM-dd, not after today"));
+			ErrorCollection errCol = new ErrorCollection(errMessages, errors);
+			return Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(errCol).build();
+		}
 		Collection<Project> projects = parseProjectParams(projectIdString);
-		if(stamps.size() * projects.size() > MAXIMUM_NUMBER_DATASETS) {
+		int maximumDatasets = Boolean.valueOf(stream) ? MAXIMUM_NUMBER_DATASETS_STREAMING : MAXIMUM_NUMBER_DATASETS;
+		int datasets = buckets.getStamps().size() * projects.size();
+		if(datasets > maximumDatasets
+				&& (datasets > MAXIMUM_NUMBER_DATASETS_STREAMING || m_dataProvider.estimateCost(getProjectIds(projects),
+						buckets.getStamps()) > 0)) {
 			errors.add(new ValidationError(PARAM_STRING_INTERVAL,
 					"You requested too many datasets, please reduce the period, interval or the number of projects"));
 			ErrorCollection errCol = new ErrorCollection(errMessages, errors);
@@ -152,10 +233,24 @@ public class KeyPerformanceResource {
 	 * @param period
 	 *            the period given in days
 	 * @param interval
-	 *            the interval steps, i.e. daily, weekly
+	 *            the interval steps, i.e. hourly, daily, weekly
 	 * @param end
-	 *            the end day, default "today"
-	 * @return a GET Response in JSON format
+	 *            the end day, "today" (default) or yyyy-MM-dd
+	 * @param stream
+	 *            "true", if each date should be written to the response as soon as it is calculated
+	 * @param format
+	 *            "columns" for the compact columnar representation, which is never streamed
+	 * @param groupBy
+	 *            "category" for one summed series per requested category, always in the columnar representation
+	 * @param since
+	 *            the label of the last date of the client's copy, only this date and the later ones are returned
+	 * @param modifiedSince
+	 *            the LastModified of the client's copy, earlier dates changed since then are returned as well
+	 * @param request
+	 *            the request, its conditional headers are answered with 304 Not Modified, if nothing has changed
+	 * @param httpRequest
+	 *            the servlet request, expensive requests are limited per user
+	 * @return a GET Response in JSON format, 503 with a Retry-After header if the request was not admitted
 	 */
 	@GET
 	@AnonymousAllowed
@@ -165,34 +260,669 @@ public class KeyPerformanceResource {
 			@QueryParam(PARAM_STRING_PROJECT_CATEGORY) String projectIdString,
 			@QueryParam(PARAM_STRING_PERIOD) String period,
 			@QueryParam(PARAM_STRING_INTERVAL) String interval,
-			@QueryParam(PARAM_STRING_END) String end) {
+			@QueryParam(PARAM_STRING_END) String end,
+			@QueryParam(PARAM_STRING_STREAM) String stream,
+			@QueryParam(PARAM_STRING_FORMAT) String format,
+			@QueryParam(PARAM_STRING_GROUP_BY) String groupBy,
+			@QueryParam(PARAM_STRING_SINCE) String since,
+			@QueryParam(PARAM_STRING_MODIFIED_SINCE) String modifiedSince,
+			@Context Request request,
+			@Context HttpServletRequest httpRequest) {
 
 		KeyPerformanceResource.LOGGER.info(new Date() + "New Request incoming");
+		m_metrics.requests.incrementAndGet();
+		if(STRING_GROUP_BY_CATEGORY.equals(groupBy)) {
+			return getCategoryKpis(projectIdString, getBuckets(period, interval, end), interval, since, modifiedSince,
+					request, httpRequest);
+		}
 		// prepare the return representations
 		List<KpiAtTimeRepresentation> kpiCollection = new ArrayList<KpiAtTimeRepresentation>();
 
 		Collection<Project> allProjects = parseProjectParams(projectIdString);
 
-		Collection<Timestamp> stamps = getTimestampsFromParam(period, interval, end);
+		KpiBucketCalendar.Buckets buckets = getBuckets(period, interval, end);
 		// get the right data
-		if(stamps != null && allProjects.isEmpty() == false) {
-			for(Timestamp tsEnd : stamps) {
-				String date = getLabelFromTimestamp(tsEnd, interval);
+		if(buckets != null && buckets.getStamps().isEmpty() == false && allProjects.isEmpty() == false) {
+			// the whole timeline of all projects is calculated at once
+			List<Long> projectIds = getProjectIds(allProjects);
+			buckets = getDelta(buckets, since, modifiedSince, projectIds);
+			List<Timestamp> stamps = buckets.getStamps();
+			boolean columns = STRING_FORMAT_COLUMNS.equals(format);
+			boolean streamed = Boolean.valueOf(stream) && columns == false;
+
+			// answer conditional requests before anything is calculated
+			Date lastModified = getLastModified(projectIds, buckets);
+			EntityTag etag = getEntityTag(projectIds, stamps, interval, columns, streamed, null, lastModified);
+			ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+			if(notModified != null) {
+				KeyPerformanceResource.LOGGER.info(new Date() + "Request done, not modified");
+				m_metrics.notModifiedResponses.incrementAndGet();
+				return withValidators(notModified, etag, lastModified).build();
+			}
+
+			KpiAdmissionController.Permit permit;
+			try {
+				permit = m_admission.admit(getUser(httpRequest), m_dataProvider.estimateCost(projectIds, stamps));
+			} catch(KpiAdmissionException kae) {
+				return serviceUnavailable(kae);
+			}
+			if(streamed) {
+				return streamKpis(allProjects, projectIds, buckets, etag, lastModified, permit, httpRequest);
+			}
+			Map<Long, SeverityCounts[]> projectKpis;
+			try {
+				projectKpis = m_dataProvider.calculateSeverityCounts(projectIds, stamps);
+			} catch(KpiComputationException kce) {
+				return serviceUnavailable(kce);
+			} finally {
+				permit.release();
+			}
+			if(columns) {
+				KeyPerformanceResource.LOGGER.info(new Date() + "Request done");
+				return withValidators(Response.ok(getColumnsRepresentation(allProjects, buckets, projectKpis, null,
+						lastModified)), etag, lastModified).build();
+			}
+			for(int i = 0; i < stamps.size(); i++) {
+				String date = buckets.getLabels().get(i);
 				List<KPIRepresentation> kpisAtTime = new ArrayList<KPIRepresentation>();
 				for(Project p : allProjects) {
-					long id = p.getId();
-					kpisAtTime.add(new KPIRepresentation(p.getKey(), id, m_dataProvider.calculateKpiForProjectAtTime(id, tsEnd)));
+					SeverityCounts counts = projectKpis.get(p.getId())[i];
+					kpisAtTime.add(new KPIRepresentation(p.getKey(), p.getId(), m_dataProvider.getKpiValue(counts), counts
+							.getIssueCount()));
 				}
 				kpiCollection.add(new KpiAtTimeRepresentation(date, kpisAtTime));
 			}
+			KeyPerformanceResource.LOGGER.info(new Date() + "Request done");
+			// return a REST response
+			return withValidators(Response.ok(new KpiTimelineRepresentation(kpiCollection)), etag, lastModified).build();
 		} else {
 			kpiCollection = null;
 			return Response.ok(null).build();
 		}
+
+	}
+
+	/**
+	 * Submits a KPI request as background job, so the request thread does not wait for any calculation. The response
+	 * holds the dates and every project with the numbers found in the cache, the missing numbers are calculated in the
+	 * background and fetched by polling the job.
+	 *
+	 * @param projectIdString
+	 *            The project or category ids
+	 * @param period
+	 *            the period given in days
+	 * @param interval
+	 *            the interval steps, i.e. hourly, daily, weekly
+	 * @param end
+	 *            the end day, "today" (default) or yyyy-MM-dd
+	 * @param since
+	 *            the label of the last date of the client's copy, only this date and the later ones are calculated
+	 * @param modifiedSince
+	 *            the LastModified of the client's copy, earlier dates changed since then are calculated as well
+	 * @param httpRequest
+	 *            the servlet request, jobs are limited per user
+	 * @return 202 Accepted with the job, 200 OK if all numbers were cached, 503 with a Retry-After header if too many
+	 *         jobs are running
+	 */
+	@POST
+	@AnonymousAllowed
+	@Path("/jobs")
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	public Response submitJob(
+			@QueryParam(PARAM_STRING_PROJECT_CATEGORY) String projectIdString,
+			@QueryParam(PARAM_STRING_PERIOD) String period,
+			@QueryParam(PARAM_STRING_INTERVAL) String interval,
+			@QueryParam(PARAM_STRING_END) String end,
+			@QueryParam(PARAM_STRING_SINCE) String since,
+			@QueryParam(PARAM_STRING_MODIFIED_SINCE) String modifiedSince,
+			@Context HttpServletRequest httpRequest) {
+
+		m_metrics.requests.incrementAndGet();
+		Collection<Project> allProjects = parseProjectParams(projectIdString);
+		KpiBucketCalendar.Buckets buckets = getBuckets(period, interval, end);
+		if(buckets == null || buckets.getStamps().isEmpty() || allProjects.isEmpty()) {
+			return Response.ok(null).build();
+		}
+		List<Long> projectIds = getProjectIds(allProjects);
+		buckets = getDelta(buckets, since, modifiedSince, projectIds);
+		Date lastModified = getLastModified(projectIds, buckets);
+		KpiJob job;
+		try {
+			job = m_jobs.submit(getUser(httpRequest), projectIds, buckets.getStamps());
+		} catch(KpiAdmissionException kae) {
+			return serviceUnavailable(kae);
+		}
+		KeyPerformanceResource.LOGGER.info(new Date() + "Job " + job.getId() + " submitted");
+		KpiJob.State state = job.getState();
+		int status = state == KpiJob.State.RUNNING ? HttpServletResponse.SC_ACCEPTED : HttpServletResponse.SC_OK;
+		return withoutCaching(Response.status(status).entity(
+				getJobRepresentation(job, state, job.getCompletedCount(), buckets, lastModified, job.getProjectIds())))
+				.build();
+	}
+
+	/**
+	 * Polls a KPI job for the projects completed since the previous poll.
+	 *
+	 * @param jobId
+	 *            the id of the job
+	 * @param completed
+	 *            the number of completed projects of the previous response, 0 by default
+	 * @param httpRequest
+	 *            the servlet request, a job can only be polled by its user
+	 * @return the job with the newly completed projects, 404 if the job is unknown or expired. A finished job is
+	 *         removed, once all of its projects were polled.
+	 */
+	@GET
+	@AnonymousAllowed
+	@Path("/jobs/{" + PARAM_STRING_JOB_ID + "}")
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	public Response pollJob(
+			@PathParam(PARAM_STRING_JOB_ID) String jobId,
+			@QueryParam(PARAM_STRING_COMPLETED) int completed,
+			@Context HttpServletRequest httpRequest) {
+
+		KpiJob job = m_jobs.getJob(jobId, getUser(httpRequest));
+		if(job == null) {
+			return jobNotFound(jobId);
+		}
+		// the state is read first, so a finished job is polled with all of its projects
+		KpiJob.State state = job.getState();
+		List<Long> projectIds = job.getCompleted(Math.max(0, completed));
+		int polled = Math.max(0, completed) + projectIds.size();
+		Response response = withoutCaching(Response.ok(getJobRepresentation(job, state, polled, null, null,
+				projectIds))).build();
+		m_jobs.polled(job, state, polled);
+		return response;
+	}
+
+	/**
+	 * Cancels a KPI job. The projects completed so far can still be polled.
+	 *
+	 * @param jobId
+	 *            the id of the job
+	 * @param httpRequest
+	 *            the servlet request, a job can only be cancelled by its user
+	 * @return 204 No Content, 404 if the job is unknown or expired
+	 */
+	@DELETE
+	@AnonymousAllowed
+	@Path("/jobs/{" + PARAM_STRING_JOB_ID + "}")
+	public Response cancelJob(
+			@PathParam(PARAM_STRING_JOB_ID) String jobId,
+			@Context HttpServletRequest httpRequest) {
+
+		if(m_jobs.cancel(jobId, getUser(httpRequest)) == false) {
+			return jobNotFound(jobId);
+		}
+		KeyPerformanceResource.LOGGER.info(new Date() + "Job " + jobId + " cancelled");
+		return Response.noContent().build();
+	}
+
+	/**
+	 * Streams the KPI history of projects as CSV or newline delimited JSON, one row per project and date, ordered by
+	 * project id and date like the keys of the cache store. The dates of each project are read from the cache store in
+	 * windows, so the memory needed doesn't grow with the number of projects or dates. Only dates missing in the store
+	 * are calculated, each window with missing dates is admitted like a request. If the export ends early, its last
+	 * row tells where to resume.
+	 *
+	 * @param projectIdString
+	 *            The project or category ids
+	 * @param from
+	 *            the first day, yyyy-MM-dd
+	 * @param to
+	 *            the last day, "today" (default) or yyyy-MM-dd
+	 * @param interval
+	 *            the interval steps, i.e. hourly, daily, weekly
+	 * @param format
+	 *            "csv" (default) or "ndjson"
+	 * @param after
+	 *            "projectId:time" of the last row of an export ending early, only the rows after it are exported
+	 * @param httpRequest
+	 *            the servlet request, calculations are limited per user
+	 * @return a streaming response, 400 if a parameter is not valid
+	 */
+	@GET
+	@AnonymousAllowed
+	@Path("/export")
+	@Produces({ "text/csv", "application/x-ndjson" })
+	public Response export(
+			@QueryParam(PARAM_STRING_PROJECT_CATEGORY) String projectIdString,
+			@QueryParam(PARAM_STRING_FROM) String from,
+			@QueryParam(PARAM_STRING_TO) String to,
+			@QueryParam(PARAM_STRING_INTERVAL) String interval,
+			@QueryParam(PARAM_STRING_FORMAT) String format,
+			@QueryParam(PARAM_STRING_AFTER) String after,
+			@Context HttpServletRequest httpRequest) {
+
+		m_metrics.requests.incrementAndGet();
+		Collection<ValidationError> errors = new ArrayList<ValidationError>();
+		long firstDay = m_calendar.parseDay(from);
+		long lastDay = to == null || to.equals(KpiBucketCalendar.TODAY) ? System.currentTimeMillis() : m_calendar
+				.parseDay(to);
+		if(firstDay == Long.MIN_VALUE) {
+			errors.add(new ValidationError(PARAM_STRING_FROM, "Please specify the first day as yyyy-MM-dd"));
+		} else if(lastDay < firstDay || lastDay > System.currentTimeMillis()
+				|| lastDay - firstDay > PERIOD_MAXIMUM * 24L * 60 * 60 * 1000) {
+			errors.add(new ValidationError(PARAM_STRING_TO,
+					"Please specify the last day as yyyy-MM-dd, not after today and at most 20 years after the first day"));
+		}
+		if(m_calendar.isInterval(interval) == false) {
+			errors.add(new ValidationError(PARAM_STRING_INTERVAL, "Please specify hourly, daily, weekly or monthly"));
+		}
+		if(format != null && format.equals(KpiExportWriter.FORMAT_CSV) == false
+				&& format.equals(KpiExportWriter.FORMAT_NDJSON) == false) {
+			errors.add(new ValidationError(PARAM_STRING_FORMAT, "Please specify csv or ndjson"));
+		}
+		if(after != null && KpiExportOutput.parsePosition(after) == null) {
+			errors.add(new ValidationError(PARAM_STRING_AFTER, "Please pass the position of the last row as projectId:time"));
+		}
+		if(projectIdString == null || projectIdString.equals("")) {
+			errors.add(new ValidationError(PARAM_STRING_PROJECT_CATEGORY, "Please select al least one project or category"));
+		}
+		if(errors.isEmpty() == false) {
+			ErrorCollection errCol = new ErrorCollection(new ArrayList<String>(), errors);
+			return Response.status(HttpServletResponse.SC_BAD_REQUEST).entity(errCol).type(MediaType.APPLICATION_JSON)
+					.build();
+		}
+
+		// the projects in the order of the keys of the cache store, each one once
+		Map<Long, String> projectKeys = new TreeMap<Long, String>();
+		for(Project p : parseProjectParams(projectIdString)) {
+			if(p != null) {
+				projectKeys.put(p.getId(), p.getKey());
+			}
+		}
+		StreamingOutput output = new KpiExportOutput(m_dataProvider, m_calendar, m_admission, getUser(httpRequest),
+				projectKeys, interval, format, m_calendar.getBucketStart(firstDay, interval), lastDay, after);
+		boolean ndjson = KpiExportWriter.FORMAT_NDJSON.equals(format);
+		return withoutCaching(Response.ok(output, (ndjson ? "application/x-ndjson" : "text/csv") + "; charset=UTF-8"))
+				.header("Content-Disposition",
+						"attachment; filename=kpi-export." + (ndjson ? KpiExportWriter.FORMAT_NDJSON : KpiExportWriter.FORMAT_CSV))
+				.build();
+	}
+
+	/**
+	 * Builds the representation of a job with the numbers of the given projects.
+	 * @param job the job
+	 * @param state the state of the job, read before the projects
+	 * @param completed the number of completed projects, the client passes to the next poll
+	 * @param buckets the dates of the job, null if the client knows them already
+	 * @param lastModified the time of the last change of the job's projects, null if the client knows it already
+	 * @param projectIds the ids of the projects to represent
+	 * @return the representation of the job
+	 */
+	private KpiJobRepresentation getJobRepresentation(KpiJob job, KpiJob.State state, int completed,
+			KpiBucketCalendar.Buckets buckets, Date lastModified, List<Long> projectIds) {
+		List<KpiJobSeriesRepresentation> series = new ArrayList<KpiJobSeriesRepresentation>();
+		for(Long projectId : projectIds) {
+			SeverityCounts[] counts = job.getCounts(projectId);
+			double[] kpiNumbers = new double[counts.length];
+			int[] issueCounts = new int[counts.length];
+			List<Integer> missing = new ArrayList<Integer>();
+			for(int i = 0; i < counts.length; i++) {
+				if(counts[i] == null) {
+					missing.add(i);
+				} else {
+					kpiNumbers[i] = m_dataProvider.getKpiValue(counts[i]);
+					issueCounts[i] = counts[i].getIssueCount();
+				}
+			}
+			int[] missingIndexes = new int[missing.size()];
+			for(int i = 0; i < missingIndexes.length; i++) {
+				missingIndexes[i] = missing.get(i);
+			}
+			Project project = m_projectManager.getProjectObj(projectId);
+			series.add(new KpiJobSeriesRepresentation(project == null ? null : project.getKey(), projectId,
+					kpiNumbers, issueCounts, missingIndexes));
+		}
+		return new KpiJobRepresentation(job.getId(), state.name().toLowerCase(), completed, buckets == null ? null
+				: buckets.getLabels(), buckets == null ? null : buckets.getFirstLabel(), lastModified == null ? 0
+				: lastModified.getTime(), series, job.getPending(), job.getError());
+	}
+
+	/**
+	 * Answers a request grouped by category: each requested category is returned as one series of the summed numbers
+	 * of its projects, projects requested by id are returned as their own series. The response is always columnar.
+	 * @param projectIdString The project or category ids
+	 * @param buckets the requested dates
+	 * @param interval the requested step interval
+	 * @param since the label of the last date of the client's copy, null to return all dates
+	 * @param modifiedSince the LastModified of the client's copy
+	 * @param request the request, its conditional headers are answered with 304 Not Modified, if nothing has changed
+	 * @param httpRequest the servlet request, expensive requests are limited per user
+	 * @return a GET Response in JSON format
+	 */
+	private Response getCategoryKpis(String projectIdString, KpiBucketCalendar.Buckets buckets, String interval,
+			String since, String modifiedSince, Request request, HttpServletRequest httpRequest) {
+		Map<Long, String> categoryNames = new LinkedHashMap<Long, String>();
+		Map<Long, List<Long>> members = new LinkedHashMap<Long, List<Long>>();
+		List<Project> projects = new ArrayList<Project>();
+		parseCategoryParams(projectIdString, categoryNames, members, projects);
+		if(buckets == null || buckets.getStamps().isEmpty() || (members.isEmpty() && projects.isEmpty())) {
+			return Response.ok(null).build();
+		}
+
+		// the response changes with every project of the categories
+		List<Long> projectIds = new ArrayList<Long>();
+		List<Long> allProjectIds = new ArrayList<Long>();
+		for(Project p : projects) {
+			projectIds.add(p.getId());
+		}
+		allProjectIds.addAll(projectIds);
+		for(List<Long> ids : members.values()) {
+			allProjectIds.addAll(ids);
+		}
+		buckets = getDelta(buckets, since, modifiedSince, allProjectIds);
+		List<Timestamp> stamps = buckets.getStamps();
+		Date lastModified = getLastModified(allProjectIds, buckets);
+		EntityTag etag = getEntityTag(projectIds, stamps, interval, true, false, members.toString(), lastModified);
+		ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+		if(notModified != null) {
+			KeyPerformanceResource.LOGGER.info(new Date() + "Request done, not modified");
+			m_metrics.notModifiedResponses.incrementAndGet();
+			return withValidators(notModified, etag, lastModified).build();
+		}
+
+		Map<Long, SeverityCounts[]> projectKpis;
+		Map<Long, SeverityCounts[]> categoryKpis;
+		KpiAdmissionController.Permit permit = null;
+		try {
+			permit = m_admission.admit(getUser(httpRequest), m_dataProvider.estimateCost(projectIds, stamps)
+					+ m_dataProvider.estimateCategoryCost(members, stamps));
+			projectKpis = m_dataProvider.calculateSeverityCounts(projectIds, stamps);
+			categoryKpis = m_dataProvider.calculateCategoryCounts(members, stamps);
+		} catch(KpiComputationException kce) {
+			return serviceUnavailable(kce);
+		} finally {
+			if(permit != null) {
+				permit.release();
+			}
+		}
+		List<KpiCategorySeriesRepresentation> categorySeries = new ArrayList<KpiCategorySeriesRepresentation>();
+		for(Map.Entry<Long, List<Long>> category : members.entrySet()) {
+			SeverityCounts[] counts = categoryKpis.get(category.getKey());
+			categorySeries.add(new KpiCategorySeriesRepresentation(categoryNames.get(category.getKey()), category
+					.getKey(), category.getValue().size(), m_dataProvider.getKpiValues(counts), getIssueCounts(counts)));
+		}
 		KeyPerformanceResource.LOGGER.info(new Date() + "Request done");
-		// return a REST response
-		return Response.ok(new KpiTimelineRepresentation(kpiCollection)).build();
+		return withValidators(Response.ok(getColumnsRepresentation(projects, buckets, projectKpis, categorySeries,
+				lastModified)), etag, lastModified).build();
+	}
+
+	/**
+	 * Builds the columnar representation, holding one dense array of KPI numbers and one of issue counts per project.
+	 * @param projects the requested projects
+	 * @param buckets the requested dates
+	 * @param projectKpis the open issues per severity level by project id
+	 * @param categorySeries the series of the requested categories, null if categories are not grouped
+	 * @param lastModified the time of the last change of the response
+	 * @return the columnar representation
+	 */
+	private KpiColumnsRepresentation getColumnsRepresentation(Collection<Project> projects,
+			KpiBucketCalendar.Buckets buckets, Map<Long, SeverityCounts[]> projectKpis,
+			Collection<KpiCategorySeriesRepresentation> categorySeries, Date lastModified) {
+		List<String> dates = buckets.getLabels();
+		List<KpiSeriesRepresentation> series = new ArrayList<KpiSeriesRepresentation>();
+		for(Project p : projects) {
+			SeverityCounts[] counts = projectKpis.get(p.getId());
+			series.add(new KpiSeriesRepresentation(p.getKey(), p.getId(), m_dataProvider.getKpiValues(counts),
+					getIssueCounts(counts)));
+		}
+		return new KpiColumnsRepresentation(dates, series, categorySeries, buckets.getFirstLabel(), lastModified
+				.getTime());
+	}
+
+	/**
+	 * Streams the KPI numbers date by date as JSON. The dates are calculated in chunks, each chunk is written to the
+	 * response as soon as it is calculated, so the memory needed does not grow with the number of dates.
+	 * @param projects the requested projects
+	 * @param projectIds the ids of the requested projects
+	 * @param buckets the requested dates
+	 * @param etag the version of the response
+	 * @param lastModified the time of the last change of the response
+	 * @param permit the admission of the request, released when the response is written or the request is done
+	 * @param httpRequest the servlet request
+	 * @return a streaming response in JSON format
+	 */
+	private Response streamKpis(Collection<Project> projects, final List<Long> projectIds,
+			KpiBucketCalendar.Buckets buckets, EntityTag etag, Date lastModified,
+			final KpiAdmissionController.Permit permit, HttpServletRequest httpRequest) {
+		// the response may never be written, i.e. if the client went away
+		KpiAdmissionFilter.releaseAfterRequest(httpRequest, permit);
+
+		final List<Timestamp> stamps = buckets.getStamps();
+		final List<String> labels = buckets.getLabels();
+
+		final String[] projectKeys = new String[projects.size()];
+		final long[] ids = new long[projects.size()];
+		int index = 0;
+		for(Project p : projects) {
+			projectKeys[index] = p.getKey();
+			ids[index++] = p.getId();
+		}
+
+		// the first chunk is calculated before the response is committed, so early failures get a proper status
+		final Map<Long, SeverityCounts[]> firstKpis;
+		try {
+			firstKpis = m_dataProvider.calculateSeverityCounts(projectIds, stamps.subList(0, Math.min(STREAMING_CHUNK_SIZE, stamps
+					.size())));
+		} catch(KpiComputationException kce) {
+			permit.release();
+			return serviceUnavailable(kce);
+		}
+
+		StreamingOutput output = new StreamingOutput() {
+			public void write(OutputStream os) throws IOException {
+				try {
+					writeTimeline(os);
+				} finally {
+					permit.release();
+				}
+			}
+
+			private void writeTimeline(OutputStream os) throws IOException {
+				KpiJsonWriter json = new KpiJsonWriter(new BufferedWriter(new OutputStreamWriter(os, "UTF-8")));
+				json.beginTimeline();
+				String errorMessage = null;
+				Map<Long, SeverityCounts[]> projectKpis = firstKpis;
+				SeverityCounts[] countsAtTime = new SeverityCounts[ids.length];
+				int[] issueCounts = new int[ids.length];
+				for(int start = 0; start < stamps.size(); start += STREAMING_CHUNK_SIZE) {
+					List<Timestamp> chunk = stamps.subList(start, Math.min(start + STREAMING_CHUNK_SIZE, stamps.size()));
+					if(start > 0) {
+						try {
+							projectKpis = m_dataProvider.calculateSeverityCounts(projectIds, chunk);
+						} catch(KpiComputationException kce) {
+							KeyPerformanceResource.LOGGER.warn("Streamed request failed: " + kce.getMessage());
+							errorMessage = kce.getMessage();
+							break;
+						}
+					}
+					for(int i = 0; i < chunk.size(); i++) {
+						for(int p = 0; p < ids.length; p++) {
+							countsAtTime[p] = projectKpis.get(ids[p])[i];
+							issueCounts[p] = countsAtTime[p].getIssueCount();
+						}
+						json.writeKpisAtTime(labels.get(start + i), projectKeys, ids,
+								m_dataProvider.getKpiValues(countsAtTime), issueCounts);
+					}
+					json.flush();
+				}
+				json.endTimeline(errorMessage);
+				KeyPerformanceResource.LOGGER.info(new Date() + "Streamed request done");
+			}
+		};
+		return withValidators(Response.ok(output, MediaType.APPLICATION_JSON_TYPE), etag, lastModified).build();
+	}
+
+	/**
+	 * @param projects the requested projects
+	 * @return the ids of the projects, in the same order
+	 */
+	private List<Long> getProjectIds(Collection<Project> projects) {
+		List<Long> projectIds = new ArrayList<Long>();
+		for(Project p : projects) {
+			projectIds.add(p.getId());
+		}
+		return projectIds;
+	}
+
+	/**
+	 * @param httpRequest the servlet request
+	 * @return the name of the logged in user, or the address of an anonymous client
+	 */
+	private String getUser(HttpServletRequest httpRequest) {
+		if(httpRequest == null) {
+			return "anonymous";
+		}
+		return httpRequest.getRemoteUser() != null ? httpRequest.getRemoteUser() : "anonymous@"
+				+ httpRequest.getRemoteAddr();
+	}
+
+	/**
+	 * @param counts the open issues per severity level of one project at several dates
+	 * @return the number of open issues at each date
+	 */
+	private int[] getIssueCounts(SeverityCounts[] counts) {
+		int[] issueCounts = new int[counts.length];
+		for(int i = 0; i < counts.length; i++) {
+			issueCounts[i] = counts[i].getIssueCount();
+		}
+		return issueCounts;
+	}
+
+	/**
+	 * Returns the dates, a client with a copy of the timeline has to fetch: the last date of its copy and all later
+	 * ones, as the last one may have been open, and all dates from the first one changed since the client got its copy.
+	 * @param buckets the requested dates
+	 * @param since the label of the last date of the client's copy, null to return all dates
+	 * @param modifiedSince the LastModified of the client's copy in milliseconds, null to return all dates
+	 * @param projectIds the ids of all projects of the response
+	 * @return the dates to fetch
+	 */
+	private KpiBucketCalendar.Buckets getDelta(KpiBucketCalendar.Buckets buckets, String since, String modifiedSince,
+			Collection<Long> projectIds) {
+		if(since == null || modifiedSince == null) {
+			return buckets;
+		}
+		long changedAfter;
+		try {
+			changedAfter = Long.parseLong(modifiedSince);
+		} catch(NumberFormatException nfe) {
+			LOGGER.warn("Wrong param: modifiedSince: " + nfe.getMessage());
+			return buckets;
+		}
+		// the labels sort like the dates
+		List<String> labels = buckets.getLabels();
+		int from = 0;
+		while(from < labels.size() && labels.get(from).compareTo(since) < 0) {
+			from++;
+		}
+		if(from == labels.size()) {
+			return buckets;
+		}
+		long changedFrom = m_dataProvider.getChangedFrom(projectIds, changedAfter);
+		List<Timestamp> stamps = buckets.getStamps();
+		while(from > 0 && stamps.get(from - 1).getTime() >= changedFrom) {
+			from--;
+		}
+		return buckets.from(from);
+	}
 
+	/**
+	 * Returns the time of the last change of a response without calculating it. Requested dates ending today move on
+	 * at midnight, or every hour for hourly dates, so such a response is never older than that.
+	 * @param projectIds the ids of the requested projects
+	 * @param buckets the requested dates
+	 * @return the time of the last change
+	 */
+	private Date getLastModified(List<Long> projectIds, KpiBucketCalendar.Buckets buckets) {
+		return new Date(Math.max(m_dataProvider.getLastChange(projectIds), buckets.getValidFrom()));
+	}
+
+	/**
+	 * Computes a version stamp of a response without calculating it. It changes with the requested projects, dates and
+	 * representation and whenever a KPI number of one of the projects changes.
+	 * @param projectIds the ids of the requested projects
+	 * @param stamps the requested dates
+	 * @param interval the requested step interval
+	 * @param columns true, if the columnar representation is requested
+	 * @param streamed true, if the response is streamed
+	 * @param categories the members of the requested categories, null if categories are not grouped
+	 * @param lastModified the time of the last change of the requested projects
+	 * @return a weak entity tag, as the response may be compressed
+	 */
+	private EntityTag getEntityTag(List<Long> projectIds, List<Timestamp> stamps, String interval, boolean columns,
+			boolean streamed, String categories, Date lastModified) {
+		StringBuilder version = new StringBuilder();
+		version.append(projectIds).append('|').append(interval).append('|').append(columns).append('|').append(streamed);
+		version.append('|').append(categories);
+		version.append('|').append(stamps.get(0).getTime()).append('|').append(stamps.get(stamps.size() - 1).getTime());
+		version.append('|').append(stamps.size()).append('|').append(lastModified.getTime());
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(version.toString().getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest) {
+				hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			}
+			return new EntityTag(hex.toString(), true);
+		} catch(Exception e) {
+			return new EntityTag(Integer.toHexString(version.toString().hashCode()), true);
+		}
+	}
+
+	/**
+	 * Adds the validators of a response, so clients revalidate their copy on every use.
+	 * @param builder the response builder
+	 * @param etag the version of the response
+	 * @param lastModified the time of the last change of the response
+	 * @return the response builder
+	 */
+	private ResponseBuilder withValidators(ResponseBuilder builder, EntityTag etag, Date lastModified) {
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setNoCache(true);
+		return builder.tag(etag).lastModified(lastModified).cacheControl(cacheControl);
+	}
+
+	/**
+	 * Forbids clients and proxies to keep a response, as the state of a job changes with every poll.
+	 * @param builder the response builder
+	 * @return the response builder
+	 */
+	private ResponseBuilder withoutCaching(ResponseBuilder builder) {
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setNoCache(true);
+		cacheControl.setNoStore(true);
+		return builder.cacheControl(cacheControl);
+	}
+
+	/**
+	 * @param jobId the id of a job, that is unknown or expired
+	 * @return a response with HTTP status 404 and the error message
+	 */
+	private Response jobNotFound(String jobId) {
+		Collection<String> errMessages = new ArrayList<String>();
+		errMessages.add("Unknown or expired KPI job " + jobId);
+		ErrorCollection errCol = new ErrorCollection(errMessages, new ArrayList<ValidationError>());
+		return Response.status(HttpServletResponse.SC_NOT_FOUND).entity(errCol).build();
+	}
+
+	/**
+	 * @param kce the reason, why the KPIs could not be calculated
+	 * @return a response with HTTP status 503 and the error message, with a Retry-After header if the request was not
+	 * admitted
+	 */
+	private Response serviceUnavailable(KpiComputationException kce) {
+		KeyPerformanceResource.LOGGER.warn("Request failed: " + kce.getMessage());
+		m_metrics.unavailableResponses.incrementAndGet();
+		Collection<String> errMessages = new ArrayList<String>();
+		errMessages.add(kce.getMessage());
+		ErrorCollection errCol = new ErrorCollection(errMessages, new ArrayList<ValidationError>());
+		ResponseBuilder builder = Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).entity(errCol);
+		if(kce instanceof KpiAdmissionException) {
+			builder.header("Retry-After", String.valueOf(((KpiAdmissionException) kce).getRetryAfter()));
+		}
+		return builder.build();
 	}
 
 	private Collection<Project> parseProjectParams(String projectIdString) {
@@ -225,112 +955,65 @@ public class KeyPerformanceResource {
 	}
 
 	/**
-	 * Provides a normalized timestamp for each dataset request.
-	 * Starting at start, it calculates a timestamp for each interval step in the given period.
-	 * @param period the period of the request
-	 * @param interval the step interval
-	 * @param end the end of request timeline
-	 * @return a collection of Timestamp, holding one timestamp for each dataset
+	 * Parses the requested projects and categories without expanding the categories into their projects.
+	 * @param projectIdString The project or category ids
+	 * @param categoryNames receives the name of each requested category
+	 * @param members receives the ids of the projects of each requested category
+	 * @param projects receives the projects requested by id
 	 */
-	private Collection<Timestamp> getTimestampsFromParam(String period, String interval, String end) {
-
-		Timestamp tsEnd = null;
-		Long periodInMillis = -1l;
-		if(end.equals(STRING_TODAY)) {
-			tsEnd = new Timestamp(new Date().getTime());
-		} else {
-			return null;
-		}
+	private void parseCategoryParams(String projectIdString, Map<Long, String> categoryNames,
+			Map<Long, List<Long>> members, List<Project> projects) {
 
-		// the parameter should be the number of days, so parse it...
-		try {
-			periodInMillis = Long.parseLong(period);
-		} catch(Exception nfe) {
-			return null;
+		Map<Long, String> allCategories = new LinkedHashMap<Long, String>();
+		for(GenericValue category : m_projectManager.getProjectCategories()) {
+			allCategories.put(category.getLong("id"), category.getString("name"));
 		}
-		// ... and convert it to milliseconds
-		if(periodInMillis != null) {
-			periodInMillis *= DAYS_TO_MILLISECONDS_MULTIPLIER;
+		if(projectIdString.equals(STRING_ALL_PROJECTS)) {
+			projects.addAll(m_projectManager.getProjectObjects());
+			return;
 		}
-		// the begin of the period
-		// for each interval step one Timestamp is added
-		Timestamp start = new Timestamp(tsEnd.getTime() - periodInMillis);
-		start = normalizeDate(start, interval);
-		List<Timestamp> stamps = new ArrayList<Timestamp>();
-		while(start.before(tsEnd)) {
-			Timestamp curEnd = getNextDate(start, interval);
-			stamps.add(curEnd);
-			start = curEnd;
+		if(projectIdString.equals(STRING_ALL_CATEGORIES)) {
+			for(Long catId : allCategories.keySet()) {
+				addCategory(catId, allCategories, categoryNames, members);
+			}
+			return;
 		}
-		return stamps;
 
-	}
-
-	/**
-	 * Normalizes a date, to make caching possible.
-	 * @param ts the timestamp for normalization
-	 * @param interval the current requested interval
-	 * @return a normalized timestamp
-	 */
-	private Timestamp normalizeDate(Timestamp ts, String interval) {
-
-		// pretty ugly method to normalize the time to 23:59:59:999 of a day
-		// the advantage is the precalculation in the DataProvider
-		Calendar c = Calendar.getInstance();
-		c.setTime(ts);
-		c.set(Calendar.HOUR_OF_DAY, 23);
-		c.set(Calendar.MINUTE, 59);
-		c.set(Calendar.SECOND, 59);
-		c.set(Calendar.MILLISECOND, 999);
-
-		//Normalize start date
-		if(interval.equals(STRING_WEEKLY)) {
-			c.set(Calendar.DAY_OF_WEEK, Calendar.SUNDAY);
-		} else if(interval.equals(STRING_MONTHLY)) {
-			c.set(Calendar.DAY_OF_MONTH, 0);
+		// | is delimiter for REST request attributes
+		String[] strings = projectIdString.split("[|]");
+		try {
+			for(int i = 0; i < strings.length; i++) {
+				if(strings[i].startsWith(CATEGORY_PREFIX)) {
+					Long catId = Long.valueOf(strings[i].substring(CATEGORY_PREFIX.length(), strings[i].length()));
+					addCategory(catId, allCategories, categoryNames, members);
+				} else {
+					projects.add(m_projectManager.getProjectObj(Long.valueOf(strings[i])));
+				}
+			}
+		} catch(NumberFormatException nfe) {
+			LOGGER.warn("Wrong param: project id String: " + nfe.getMessage());
 		}
-
-		return new Timestamp(c.getTime().getTime());
 	}
 
-	/**
-	 * Returns a timestamp for the next interval step.
-	 * @param ts the current timestamp.
-	 * @param interval the current interval
-	 * @return the next timestamp
-	 */
-	private Timestamp getNextDate(Timestamp ts, String interval) {
-
-		Calendar c = Calendar.getInstance();
-		c.setTime(ts);
-		long intervalInMillis = 0;
-
-		if(interval.equals(STRING_DAILY)) {
-			intervalInMillis = DAYS_TO_MILLISECONDS_MULTIPLIER;
-			return new Timestamp(ts.getTime() + intervalInMillis);
-		} else if(interval.equals(STRING_WEEKLY)) {
-			intervalInMillis = 7 * DAYS_TO_MILLISECONDS_MULTIPLIER;
-			return new Timestamp(ts.getTime() + intervalInMillis);
-		} else if(interval.equals(STRING_MONTHLY)) {
-			c.set(Calendar.MONTH, c.get(Calendar.MONTH) + 1);
-			return new Timestamp(c.getTimeInMillis());
-		}
-		return ts;
+	private void addCategory(Long catId, Map<Long, String> allCategories, Map<Long, String> categoryNames,
+			Map<Long, List<Long>> members) {
+		List<Long> projectIds = new ArrayList<Long>();
+		for(Project p : m_projectManager.getProjectObjectsFromProjectCategory(catId)) {
+			projectIds.add(p.getId());
+		}
+		String name = allCategories.get(catId);
+		categoryNames.put(catId, name == null ? String.valueOf(catId) : name);
+		members.put(catId, projectIds);
 	}
 
 	/**
-	 * Return a string representation of the timestamp depending on the current interval.
-	 * @param t the Timestamp
-	 * @param interval the current interval
-	 * @return A string representation for the timestamp.
+	 * Provides the normalized buckets for each dataset request.
+	 * @param period the period of the request in days
+	 * @param interval the step interval
+	 * @param end the end of request timeline, "today" or yyyy-MM-dd
+	 * @return the buckets, holding one timestamp for each dataset, null if a parameter is not valid
 	 */
-	private String getLabelFromTimestamp(Timestamp t, String interval) {
-		if(interval.equals(STRING_DAILY)
-				||interval.equals(STRING_WEEKLY)
-				||interval.equals(STRING_MONTHLY) ) {
-
-			return t.toString().substring(0, "1970-01-01".length());
-		}
-		return "No date";
+	KpiBucketCalendar.Buckets getBuckets(String period, String interval, String end) {
+		return m_calendar.getBuckets(period, interval, end == null ? KpiBucketCalendar.TODAY : end);
 	}
 }
@@ -0,0 +1,58 @@
+package net.bigpoint.jira.plugins.service;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import net.bigpoint.jira.plugins.data.KpiAdmissionController;
+
+/**
+ * Releases the admission of a streamed KPI request when the request is done. A streamed response releases its
+ * admission when it has been written, but it is never written if the client went away or the response failed before,
+ * so the admission is released here as well. Releasing twice does no harm. This class is initialized by the
+ * servlet-filter module in atlassian-plugin.xml.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiAdmissionFilter implements Filter {
+
+	private static final String PERMIT_ATTRIBUTE = KpiAdmissionFilter.class.getName() + ".permit";
+
+	/**
+	 * Makes sure the admission of a request is released when the request is done.
+	 *
+	 * @param request
+	 *            the request, may be null outside of a servlet container
+	 * @param permit
+	 *            the admission of the request
+	 */
+	static void releaseAfterRequest(ServletRequest request, KpiAdmissionController.Permit permit) {
+		if(request != null) {
+			request.setAttribute(PERMIT_ATTRIBUTE, permit);
+		}
+	}
+
+	public void init(FilterConfig filterConfig) {
+	}
+
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+			ServletException {
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			Object permit = request.getAttribute(PERMIT_ATTRIBUTE);
+			if(permit instanceof KpiAdmissionController.Permit) {
+				((KpiAdmissionController.Permit) permit).release();
+			}
+		}
+	}
+
+	public void destroy() {
+	}
+}
@@ -0,0 +1,188 @@
+package net.bigpoint.jira.plugins.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import net.bigpoint.jira.plugins.data.KpiAdmissionController;
+import net.bigpoint.jira.plugins.data.KpiBucketCalendar;
+import net.bigpoint.jira.plugins.data.KpiComputationException;
+import net.bigpoint.jira.plugins.data.KpiDataProvider;
+import net.bigpoint.jira.plugins.data.SeverityCounts;
+import net.bigpoint.jira.plugins.transport.KpiExportWriter;
+
+/**
+ * Streams the rows of an export, project by project in the order of their ids and date by date. The dates of a project
+ * are read from the cache store in windows, the missing ones are calculated, once the calculation is admitted. If a
+ * calculation fails, the export ends with an error row holding the position of the last written row, and an export
+ * passing this position as "after" continues with the next row.
+ *
+ * @author jschweizer
+ *
+ */
+class KpiExportOutput implements StreamingOutput {
+
+	/**
+	 * Number of dates of one project read from the cache store at once.
+	 */
+	private static final int EXPORT_WINDOW_SIZE = Integer.getInteger("kpi.export.windowSize", 500);
+
+	private final KpiDataProvider m_dataProvider;
+
+	private final KpiBucketCalendar m_calendar;
+
+	private final KpiAdmissionController m_admission;
+
+	private final String user;
+
+	private final Map<Long, String> projectKeys;
+
+	private final String interval;
+
+	private final String format;
+
+	private final long firstBucketStart;
+
+	private final long last;
+
+	private final String after;
+
+	private final long resumeProject;
+
+	private final long resumeTime;
+
+	/**
+	 * @param dataProvider the data provider
+	 * @param calendar the calendar of the buckets
+	 * @param admission limits the calculations per user
+	 * @param user the user exporting
+	 * @param projectKeys the keys of the exported projects by id, sorted by id
+	 * @param interval hourly, daily, weekly or monthly
+	 * @param format "csv" or "ndjson"
+	 * @param firstBucketStart the start of the first exported bucket in milliseconds
+	 * @param last a time in the last exported bucket in milliseconds
+	 * @param after "projectId:time" of the last row of an export ending early, null to export all rows
+	 */
+	KpiExportOutput(KpiDataProvider dataProvider, KpiBucketCalendar calendar, KpiAdmissionController admission,
+			String user, Map<Long, String> projectKeys, String interval, String format, long firstBucketStart,
+			long last, String after) {
+		this.m_dataProvider = dataProvider;
+		this.m_calendar = calendar;
+		this.m_admission = admission;
+		this.user = user;
+		this.projectKeys = projectKeys;
+		this.interval = interval;
+		this.format = format;
+		this.firstBucketStart = firstBucketStart;
+		this.last = last;
+		this.after = after;
+		long[] position = after == null ? null : parsePosition(after);
+		this.resumeProject = position == null ? Long.MIN_VALUE : position[0];
+		this.resumeTime = position == null ? Long.MIN_VALUE : position[1];
+	}
+
+	/**
+	 * @param position "projectId:time" of a row
+	 * @return the project id and time, null if the position is not valid
+	 */
+	static long[] parsePosition(String position) {
+		String[] parts = position.split(":");
+		if(parts.length != 2) {
+			return null;
+		}
+		try {
+			return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	public void write(OutputStream os) throws IOException {
+		KpiExportWriter writer = new KpiExportWriter(new BufferedWriter(new OutputStreamWriter(os, "UTF-8")), format);
+		SimpleDateFormat labels = m_calendar.newLabelFormat(interval);
+		int[] levelCounts = new int[SeverityCounts.SLOTS];
+		String position = after;
+		writer.writeHeader();
+		for(Map.Entry<Long, String> project : projectKeys.entrySet()) {
+			long projectId = project.getKey();
+			if(projectId < resumeProject) {
+				continue;
+			}
+			long cursor = projectId == resumeProject ? Math.max(resumeTime, firstBucketStart - 1)
+					: firstBucketStart - 1;
+			while(true) {
+				List<Timestamp> window = m_calendar.getStampsAfter(cursor, last, interval, EXPORT_WINDOW_SIZE);
+				if(window.isEmpty()) {
+					break;
+				}
+				SeverityCounts[] counts;
+				try {
+					counts = getExportCounts(projectId, window);
+				} catch(KpiComputationException kce) {
+					KeyPerformanceResource.LOGGER.warn("Export failed: " + kce.getMessage());
+					writer.writeError(kce.getMessage(), position);
+					return;
+				}
+				for(int i = 0; i < window.size(); i++) {
+					long time = window.get(i).getTime();
+					for(int level = -1; level < SeverityCounts.SLOTS - 1; level++) {
+						levelCounts[level + 1] = counts[i].getCount(level);
+					}
+					writer.writeRow(projectId, project.getValue(), labels.format(window.get(i)), time, m_dataProvider
+							.getKpiValue(counts[i]), counts[i].getIssueCount(), levelCounts);
+					position = projectId + ":" + time;
+				}
+				writer.flush();
+				cursor = window.get(window.size() - 1).getTime();
+			}
+		}
+		writer.flush();
+		KeyPerformanceResource.LOGGER.info(new Date() + "Export done");
+	}
+
+	/**
+	 * Returns the counts of one project for an export: the stored counts are read from the cache store, the missing
+	 * ones are calculated, once the calculation is admitted.
+	 * @param projectId the project id
+	 * @param stamps the dates of the window
+	 * @return the counts in the order of the dates
+	 * @throws KpiComputationException if the missing counts could not be calculated or were not admitted
+	 */
+	private SeverityCounts[] getExportCounts(long projectId, List<Timestamp> stamps) throws KpiComputationException {
+		SeverityCounts[] counts = m_dataProvider.getStoredSeverityCounts(projectId, stamps);
+		List<Integer> missing = new ArrayList<Integer>();
+		List<Timestamp> missingStamps = new ArrayList<Timestamp>();
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] == null) {
+				missing.add(i);
+				missingStamps.add(stamps.get(i));
+			}
+		}
+		if(missing.isEmpty()) {
+			return counts;
+		}
+		List<Long> projectIds = Collections.singletonList(projectId);
+		KpiAdmissionController.Permit permit = m_admission.admit(user, m_dataProvider.estimateCost(projectIds,
+				missingStamps));
+		try {
+			SeverityCounts[] calculated = m_dataProvider.calculateSeverityCounts(projectIds, missingStamps).get(
+					projectId);
+			for(int i = 0; i < calculated.length; i++) {
+				counts[missing.get(i)] = calculated[i];
+			}
+		} finally {
+			permit.release();
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,240 @@
+package net.bigpoint.jira.plugins.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import net.bigpoint.jira.plugins.data.KpiMetrics;
+
+/**
+ * Compresses the responses of the KPI REST resources with gzip, if the client accepts it, and records their latency
+ * and size in the {@link KpiMetrics}. Streamed responses are not compressed, as {@link GZIPOutputStream} can't flush
+ * a partial block before Java 7, so their chunks would only reach the client at the end. This class is initialized by
+ * the servlet-filter module in atlassian-plugin.xml.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiGzipFilter implements Filter {
+
+	private final KpiMetrics metrics;
+
+	public KpiGzipFilter(KpiMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void init(FilterConfig filterConfig) {
+	}
+
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+			ServletException {
+		long started = System.nanoTime();
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		String acceptEncoding = httpRequest.getHeader("Accept-Encoding");
+		boolean compress = acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0
+				&& isStreamed(httpRequest) == false;
+		// caches must not serve a compressed response to other clients or the other way round
+		((HttpServletResponse) response).addHeader("Vary", "Accept-Encoding");
+
+		GzipResponseWrapper wrapper = new GzipResponseWrapper((HttpServletResponse) response, compress);
+		try {
+			chain.doFilter(request, wrapper);
+		} finally {
+			wrapper.finish();
+			metrics.requestLatency.record(KpiMetrics.microsSince(started));
+			if(wrapper.firstWrite != 0) {
+				metrics.responseWriteLatency.record(KpiMetrics.microsSince(wrapper.firstWrite));
+			}
+			metrics.responseSize.record(wrapper.bytes);
+			metrics.responseBytes.addAndGet(wrapper.bytes);
+			if(compress) {
+				metrics.compressedResponseBytes.addAndGet(wrapper.getCompressedBytes());
+			}
+		}
+	}
+
+	public void destroy() {
+	}
+
+	/**
+	 * @param request
+	 *            the request
+	 * @return true, if the response is written chunk by chunk: an export or a getKpis request with stream=true
+	 */
+	static boolean isStreamed(HttpServletRequest request) {
+		String path = request.getRequestURI();
+		if(path != null && path.endsWith("/export")) {
+			return true;
+		}
+		// parameters of other methods may be read from the body, which belongs to the resource
+		return "GET".equals(request.getMethod()) && Boolean.valueOf(request.getParameter("stream"));
+	}
+
+	/**
+	 * Compresses everything written to the response, if requested, and counts the bytes. The compression starts with the
+	 * first byte of the body, so responses without body, i.e. 304 Not Modified, stay empty.
+	 */
+	private static class GzipResponseWrapper extends HttpServletResponseWrapper {
+
+		private final HttpServletResponse response;
+
+		private final boolean compress;
+
+		private OutputStream body;
+
+		private CountingOutputStream compressed;
+
+		private GZIPOutputStream gzip;
+
+		/**
+		 * Start of the first write, from {@link System#nanoTime()}, 0 if nothing was written.
+		 */
+		long firstWrite;
+
+		/**
+		 * Number of bytes written, before compression.
+		 */
+		long bytes;
+
+		private ServletOutputStream outputStream;
+
+		private PrintWriter writer;
+
+		GzipResponseWrapper(HttpServletResponse response, boolean compress) {
+			super(response);
+			this.response = response;
+			this.compress = compress;
+		}
+
+		/**
+		 * @return the stream of the body, compressing if requested, created on first use
+		 */
+		private OutputStream getBodyStream() throws IOException {
+			if(body == null) {
+				firstWrite = System.nanoTime();
+				if(compress) {
+					response.setHeader("Content-Encoding", "gzip");
+					compressed = new CountingOutputStream(response.getOutputStream());
+					gzip = new GZIPOutputStream(compressed);
+					body = gzip;
+				} else {
+					body = response.getOutputStream();
+				}
+			}
+			return body;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if(outputStream == null) {
+				outputStream = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						getBodyStream().write(b);
+						bytes++;
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						if(len > 0) {
+							getBodyStream().write(b, off, len);
+							bytes += len;
+						}
+					}
+
+					@Override
+					public void flush() throws IOException {
+						if(body != null) {
+							body.flush();
+						}
+					}
+				};
+			}
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if(writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			// the length of the compressed body is unknown
+			if(compress == false) {
+				super.setContentLength(len);
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if(writer != null) {
+				writer.flush();
+			}
+			if(outputStream != null) {
+				outputStream.flush();
+			}
+			super.flushBuffer();
+		}
+
+		/**
+		 * Writes the remaining compressed data.
+		 */
+		void finish() throws IOException {
+			if(writer != null) {
+				writer.flush();
+			}
+			if(gzip != null) {
+				gzip.finish();
+			}
+		}
+
+		/**
+		 * @return the number of compressed bytes written
+		 */
+		long getCompressedBytes() {
+			return compressed == null ? 0 : compressed.count;
+		}
+	}
+
+	/**
+	 * Counts the bytes passed to the response.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
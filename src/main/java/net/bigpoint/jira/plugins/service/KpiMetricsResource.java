@@ -0,0 +1,61 @@
+package net.bigpoint.jira.plugins.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import net.bigpoint.jira.plugins.data.KpiHistogram;
+import net.bigpoint.jira.plugins.data.KpiMetrics;
+import net.bigpoint.jira.plugins.transport.KpiCounterRepresentation;
+import net.bigpoint.jira.plugins.transport.KpiHistogramRepresentation;
+import net.bigpoint.jira.plugins.transport.KpiMetricsRepresentation;
+
+/**
+ * REST resource publishing the KPI metrics, so the stages of slow requests can be graphed. Only logged in users may
+ * read them. This class is initialized by the rest module in atlassian-plugin.xml.
+ *
+ * @author jschweizer
+ *
+ */
+@Path("/metrics")
+@Produces({ MediaType.APPLICATION_JSON })
+public class KpiMetricsResource {
+
+	private KpiMetrics m_metrics;
+
+	public KpiMetricsResource(KpiMetrics metrics) {
+		this.m_metrics = metrics;
+	}
+
+	/**
+	 * @return all counters and histograms, counted since the plugin was enabled
+	 */
+	@GET
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	public Response getMetrics() {
+		Collection<KpiCounterRepresentation> counters = new ArrayList<KpiCounterRepresentation>();
+		for(Map.Entry<String, Long> counter : m_metrics.getCounters().entrySet()) {
+			counters.add(new KpiCounterRepresentation(counter.getKey(), counter.getValue()));
+		}
+		Collection<KpiHistogramRepresentation> histograms = new ArrayList<KpiHistogramRepresentation>();
+		for(Map.Entry<String, KpiHistogram> entry : m_metrics.getHistograms().entrySet()) {
+			KpiHistogram h = entry.getValue();
+			histograms.add(new KpiHistogramRepresentation(entry.getKey(), h.getUnit(), h.getCount(), h.getSum(), h
+					.getMean(), h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getMax(), h
+					.getBuckets()));
+		}
+
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setNoCache(true);
+		cacheControl.setNoStore(true);
+		return Response.ok(new KpiMetricsRepresentation(m_metrics.getStarted(), counters, histograms)).cacheControl(
+				cacheControl).build();
+	}
+}
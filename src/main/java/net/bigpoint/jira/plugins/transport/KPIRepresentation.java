@@ -20,14 +20,18 @@ public class KPIRepresentation {
 	
 	@XmlElement(name="KpiNumber")
 	private double kpiNumber;
+
+	@XmlElement
+	private int issueCount;
 	
 	
 	public KPIRepresentation(){}
 	
-	public KPIRepresentation(String projectKey, long id, double kpiNumber){
+	public KPIRepresentation(String projectKey, long id, double kpiNumber, int issueCount){
 		this.projectKey = projectKey;
 		this.kpiNumber = kpiNumber;
 		this.projectId = id;
+		this.issueCount = issueCount;
 	}
 	
 	
@@ -0,0 +1,43 @@
+package net.bigpoint.jira.plugins.transport;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Represents the summed KPI numbers and numbers of open issues of all projects of one category for all requested dates,
+ * as dense arrays.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@XmlRootElement(name = "CategorySeries")
+public class KpiCategorySeriesRepresentation {
+
+	@XmlElement
+	private String categoryName;
+
+	@XmlElement
+	private long categoryId;
+
+	@XmlElement
+	private int projectCount;
+
+	@XmlElement(name="KpiNumbers")
+	private double[] kpiNumbers;
+
+	@XmlElement(name="IssueCounts")
+	private int[] issueCounts;
+
+	private KpiCategorySeriesRepresentation(){}
+
+	public KpiCategorySeriesRepresentation(String categoryName, long id, int projectCount, double[] kpiNumbers,
+			int[] issueCounts){
+		this.categoryName = categoryName;
+		this.categoryId = id;
+		this.projectCount = projectCount;
+		this.kpiNumbers = kpiNumbers;
+		this.issueCounts = issueCounts;
+	}
+
+
+}
@@ -0,0 +1,60 @@
+package net.bigpoint.jira.plugins.transport;
+
+import java.util.Collection;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Columnar representation of a whole KPI Timeline: the dates are listed once and each project holds one dense array
+ * of KPI numbers, in the order of the dates. This is much smaller than a {@link KpiTimelineRepresentation}, which
+ * repeats every project at every date. Categories requested as rollup hold one array of summed numbers each.
+ * If only the last dates were requested, FirstDate is the first date of the whole timeline, so clients can drop the
+ * dates of their copy before it. LastModified is passed as modifiedSince when requesting the next dates.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@Immutable
+@XmlRootElement(name="KpiColumns")
+public class KpiColumnsRepresentation {
+
+	@XmlElement(name="Time")
+	private Collection<String> dates;
+
+	@XmlElement(name="ProjectSeries")
+	private Collection<KpiSeriesRepresentation> series;
+
+	@XmlElement(name="CategorySeries")
+	private Collection<KpiCategorySeriesRepresentation> categorySeries;
+
+	@XmlElement(name="FirstDate")
+	private String firstDate;
+
+	@XmlElement(name="LastModified")
+	private long lastModified;
+
+	private KpiColumnsRepresentation(){}
+
+	public KpiColumnsRepresentation(Collection<String> dates, Collection<KpiSeriesRepresentation> series){
+		this(dates, series, null);
+	}
+
+	public KpiColumnsRepresentation(Collection<String> dates, Collection<KpiSeriesRepresentation> series,
+			Collection<KpiCategorySeriesRepresentation> categorySeries){
+		this(dates, series, categorySeries, null, 0);
+	}
+
+	public KpiColumnsRepresentation(Collection<String> dates, Collection<KpiSeriesRepresentation> series,
+			Collection<KpiCategorySeriesRepresentation> categorySeries, String firstDate, long lastModified){
+		this.dates = dates;
+		this.series = series;
+		this.categorySeries = categorySeries;
+		this.firstDate = firstDate;
+		this.lastModified = lastModified;
+	}
+
+
+}
@@ -0,0 +1,29 @@
+package net.bigpoint.jira.plugins.transport;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Represents one counter of the KPI metrics.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@XmlRootElement(name = "Counter")
+public class KpiCounterRepresentation {
+
+	@XmlElement
+	private String name;
+
+	@XmlElement
+	private long value;
+
+	private KpiCounterRepresentation(){}
+
+	public KpiCounterRepresentation(String name, long value){
+		this.name = name;
+		this.value = value;
+	}
+
+
+}
@@ -0,0 +1,157 @@
+package net.bigpoint.jira.plugins.transport;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes exported KPI history row by row, one row per project and date, as CSV or as newline delimited JSON. Each row
+ * holds the KPI number, the number of open issues and the number of open issues per severity level: without severity,
+ * with any other severity and the levels 1 to 5. An export ending early is closed by an error row holding the
+ * position to resume from.
+ * @author jschweizer
+ *
+ */
+public class KpiExportWriter {
+
+	/**
+	 * Format value requesting CSV.
+	 */
+	public static final String FORMAT_CSV = "csv";
+
+	/**
+	 * Format value requesting newline delimited JSON.
+	 */
+	public static final String FORMAT_NDJSON = "ndjson";
+
+	private static final String[] LEVEL_COLUMNS = { "issuesNone", "issuesOther", "issuesLevel1", "issuesLevel2",
+			"issuesLevel3", "issuesLevel4", "issuesLevel5" };
+
+	private final Writer out;
+
+	private final boolean csv;
+
+	/**
+	 * @param out the writer
+	 * @param format "csv" or "ndjson"
+	 */
+	public KpiExportWriter(Writer out, String format) {
+		this.out = out;
+		this.csv = FORMAT_NDJSON.equals(format) == false;
+	}
+
+	/**
+	 * Writes the header row of CSV, nothing for JSON.
+	 * @throws IOException if writing fails
+	 */
+	public void writeHeader() throws IOException {
+		if(csv) {
+			out.write("projectId,projectKey,date,time,kpiNumber,issueCount");
+			for(String column : LEVEL_COLUMNS) {
+				out.write(',');
+				out.write(column);
+			}
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * Writes the row of one project at one date.
+	 * @param projectId the id of the project
+	 * @param projectKey the key of the project
+	 * @param date the label of the date
+	 * @param time the end of the date in milliseconds, the position to resume after
+	 * @param kpiNumber the KPI number
+	 * @param issueCount the number of open issues
+	 * @param levelCounts the numbers of open issues without severity, with any other severity and per level
+	 * @throws IOException if writing fails
+	 */
+	public void writeRow(long projectId, String projectKey, String date, long time, double kpiNumber, int issueCount,
+			int[] levelCounts) throws IOException {
+		if(csv) {
+			out.write(Long.toString(projectId));
+			out.write(',');
+			writeCsvString(projectKey);
+			out.write(',');
+			out.write(date);
+			out.write(',');
+			out.write(Long.toString(time));
+			out.write(',');
+			out.write(Double.toString(kpiNumber));
+			out.write(',');
+			out.write(Integer.toString(issueCount));
+			for(int count : levelCounts) {
+				out.write(',');
+				out.write(Integer.toString(count));
+			}
+		} else {
+			out.write("{\"projectId\":");
+			out.write(Long.toString(projectId));
+			out.write(",\"projectKey\":");
+			KpiJsonWriter.writeString(out, projectKey);
+			out.write(",\"date\":");
+			KpiJsonWriter.writeString(out, date);
+			out.write(",\"time\":");
+			out.write(Long.toString(time));
+			out.write(",\"kpiNumber\":");
+			out.write(Double.toString(kpiNumber));
+			out.write(",\"issueCount\":");
+			out.write(Integer.toString(issueCount));
+			for(int i = 0; i < levelCounts.length; i++) {
+				out.write(",\"");
+				out.write(LEVEL_COLUMNS[i]);
+				out.write("\":");
+				out.write(Integer.toString(levelCounts[i]));
+			}
+			out.write('}');
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Ends an export early. CSV gets a comment row, JSON an error object.
+	 * @param errorMessage the reason
+	 * @param resumeAfter the position of the last written row, to be passed as "after", null if no row was written
+	 * @throws IOException if writing fails
+	 */
+	public void writeError(String errorMessage, String resumeAfter) throws IOException {
+		if(csv) {
+			out.write("# ");
+			out.write(errorMessage.replace('\n', ' '));
+			if(resumeAfter != null) {
+				out.write(", resume after ");
+				out.write(resumeAfter);
+			}
+		} else {
+			out.write("{\"error\":");
+			KpiJsonWriter.writeString(out, errorMessage);
+			if(resumeAfter != null) {
+				out.write(",\"resumeAfter\":");
+				KpiJsonWriter.writeString(out, resumeAfter);
+			}
+			out.write('}');
+		}
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffered output to the client.
+	 * @throws IOException if writing fails
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void writeCsvString(String s) throws IOException {
+		if(s == null) {
+			return;
+		}
+		if(s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+			out.write(s);
+			return;
+		}
+		out.write('"');
+		out.write(s.replace("\"", "\"\""));
+		out.write('"');
+	}
+}
@@ -0,0 +1,63 @@
+package net.bigpoint.jira.plugins.transport;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Represents one histogram of the KPI metrics. Bucket 0 counts the value 0, bucket i the values from 2^(i-1) to
+ * 2^i - 1. Percentiles are the upper bound of their bucket.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@XmlRootElement(name = "Histogram")
+public class KpiHistogramRepresentation {
+
+	@XmlElement
+	private String name;
+
+	@XmlElement
+	private String unit;
+
+	@XmlElement
+	private long count;
+
+	@XmlElement
+	private long sum;
+
+	@XmlElement
+	private long mean;
+
+	@XmlElement
+	private long p50;
+
+	@XmlElement
+	private long p90;
+
+	@XmlElement
+	private long p99;
+
+	@XmlElement
+	private long max;
+
+	@XmlElement
+	private long[] buckets;
+
+	private KpiHistogramRepresentation(){}
+
+	public KpiHistogramRepresentation(String name, String unit, long count, long sum, long mean, long p50, long p90,
+			long p99, long max, long[] buckets){
+		this.name = name;
+		this.unit = unit;
+		this.count = count;
+		this.sum = sum;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.max = max;
+		this.buckets = buckets;
+	}
+
+
+}
@@ -0,0 +1,66 @@
+package net.bigpoint.jira.plugins.transport;
+
+import java.util.Collection;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Represents the state of a KPI job calculated in the background. The response of the submission holds the dates and
+ * every project with the numbers found in the cache, a poll holds the projects completed since the previous poll.
+ * Completed is passed to the next poll, until the state is not "running" anymore. FirstDate and LastModified are
+ * only part of the submission, like in the columnar representation.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@Immutable
+@XmlRootElement(name="KpiJob")
+public class KpiJobRepresentation {
+
+	@XmlElement(name="JobId")
+	private String jobId;
+
+	@XmlElement(name="State")
+	private String state;
+
+	@XmlElement(name="Completed")
+	private int completed;
+
+	@XmlElement(name="Time")
+	private Collection<String> dates;
+
+	@XmlElement(name="FirstDate")
+	private String firstDate;
+
+	@XmlElement(name="LastModified")
+	private long lastModified;
+
+	@XmlElement(name="ProjectSeries")
+	private Collection<KpiJobSeriesRepresentation> series;
+
+	@XmlElement(name="Pending")
+	private Collection<Long> pending;
+
+	@XmlElement(name="Error")
+	private String error;
+
+	private KpiJobRepresentation(){}
+
+	public KpiJobRepresentation(String jobId, String state, int completed, Collection<String> dates, String firstDate,
+			long lastModified, Collection<KpiJobSeriesRepresentation> series, Collection<Long> pending, String error){
+		this.jobId = jobId;
+		this.state = state;
+		this.completed = completed;
+		this.dates = dates;
+		this.firstDate = firstDate;
+		this.lastModified = lastModified;
+		this.series = series;
+		this.pending = pending;
+		this.error = error;
+	}
+
+
+}
@@ -0,0 +1,43 @@
+package net.bigpoint.jira.plugins.transport;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Represents the KPI numbers and the numbers of open issues of one project of a background job, as dense arrays. Dates
+ * not calculated yet are listed as missing, their numbers are 0 until a later poll delivers the complete series.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@XmlRootElement(name = "ProjectSeries")
+public class KpiJobSeriesRepresentation {
+
+	@XmlElement
+	private String projectKey;
+
+	@XmlElement
+	private long projectId;
+
+	@XmlElement(name="KpiNumbers")
+	private double[] kpiNumbers;
+
+	@XmlElement(name="IssueCounts")
+	private int[] issueCounts;
+
+	@XmlElement(name="Missing")
+	private int[] missing;
+
+	private KpiJobSeriesRepresentation(){}
+
+	public KpiJobSeriesRepresentation(String projectKey, long id, double[] kpiNumbers, int[] issueCounts,
+			int[] missing){
+		this.projectKey = projectKey;
+		this.projectId = id;
+		this.kpiNumbers = kpiNumbers;
+		this.issueCounts = issueCounts;
+		this.missing = missing;
+	}
+
+
+}
@@ -0,0 +1,131 @@
+package net.bigpoint.jira.plugins.transport;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a KPI timeline as JSON bucket by bucket, so a response can be streamed without building the whole
+ * {@link KpiTimelineRepresentation} first. The JSON has the same structure as the one of the JAXB representation.
+ * @author jschweizer
+ *
+ */
+public class KpiJsonWriter {
+
+	private final Writer out;
+
+	private boolean firstBucket = true;
+
+	public KpiJsonWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Starts the timeline.
+	 * @throws IOException if writing fails
+	 */
+	public void beginTimeline() throws IOException {
+		out.write("{\"KpisAtTime\":[");
+	}
+
+	/**
+	 * Writes the KPI numbers of all projects at one date.
+	 * @param date the label of the date
+	 * @param projectKeys the keys of the projects
+	 * @param projectIds the ids of the projects, in the same order
+	 * @param kpiNumbers the KPI numbers of the projects, in the same order
+	 * @param issueCounts the numbers of open issues of the projects, in the same order
+	 * @throws IOException if writing fails
+	 */
+	public void writeKpisAtTime(String date, String[] projectKeys, long[] projectIds, double[] kpiNumbers,
+			int[] issueCounts) throws IOException {
+		if(firstBucket == false) {
+			out.write(',');
+		}
+		firstBucket = false;
+		out.write("{\"Time\":");
+		writeString(date);
+		out.write(",\"ProjectKPI\":[");
+		for(int i = 0; i < projectKeys.length; i++) {
+			if(i > 0) {
+				out.write(',');
+			}
+			out.write("{\"projectKey\":");
+			writeString(projectKeys[i]);
+			out.write(",\"projectId\":");
+			out.write(Long.toString(projectIds[i]));
+			out.write(",\"KpiNumber\":");
+			out.write(Double.toString(kpiNumbers[i]));
+			out.write(",\"issueCount\":");
+			out.write(Integer.toString(issueCounts[i]));
+			out.write('}');
+		}
+		out.write("]}");
+	}
+
+	/**
+	 * Ends the timeline.
+	 * @param errorMessage a message, if the timeline is incomplete because of an error, else null
+	 * @throws IOException if writing fails
+	 */
+	public void endTimeline(String errorMessage) throws IOException {
+		out.write(']');
+		if(errorMessage != null) {
+			out.write(",\"errorMessages\":[");
+			writeString(errorMessage);
+			out.write(']');
+		}
+		out.write('}');
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffered output to the client.
+	 * @throws IOException if writing fails
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void writeString(String s) throws IOException {
+		writeString(out, s);
+	}
+
+	/**
+	 * Writes a string as JSON string literal.
+	 * @param out the writer
+	 * @param s the string
+	 * @throws IOException if writing fails
+	 */
+	static void writeString(Writer out, String s) throws IOException {
+		out.write('"');
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+				case '"':
+					out.write("\\\"");
+					break;
+				case '\\':
+					out.write("\\\\");
+					break;
+				case '\n':
+					out.write("\\n");
+					break;
+				case '\r':
+					out.write("\\r");
+					break;
+				case '\t':
+					out.write("\\t");
+					break;
+				default:
+					if(c < 0x20) {
+						String hex = Integer.toHexString(c);
+						out.write("\\u0000", 0, 6 - hex.length());
+						out.write(hex);
+					} else {
+						out.write(c);
+					}
+			}
+		}
+		out.write('"');
+	}
+}
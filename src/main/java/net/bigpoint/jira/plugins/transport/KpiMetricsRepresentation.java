@@ -0,0 +1,39 @@
+package net.bigpoint.jira.plugins.transport;
+
+import java.util.Collection;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Representation of the KPI metrics: all counters and histograms, counted since the plugin was enabled.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@Immutable
+@XmlRootElement(name="KpiMetrics")
+public class KpiMetricsRepresentation {
+
+	@XmlElement
+	private long started;
+
+	@XmlElement(name="Counters")
+	private Collection<KpiCounterRepresentation> counters;
+
+	@XmlElement(name="Histograms")
+	private Collection<KpiHistogramRepresentation> histograms;
+
+	private KpiMetricsRepresentation(){}
+
+	public KpiMetricsRepresentation(long started, Collection<KpiCounterRepresentation> counters,
+			Collection<KpiHistogramRepresentation> histograms){
+		this.started = started;
+		this.counters = counters;
+		this.histograms = histograms;
+	}
+
+
+}
@@ -0,0 +1,37 @@
+package net.bigpoint.jira.plugins.transport;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Represents the KPI numbers and the numbers of open issues of one project for all requested dates, as dense arrays.
+ * This class wraps the data and provide the JAXB elements, so the data is delivered as XML or JSON.
+ * @author jschweizer
+ *
+ */
+@XmlRootElement(name = "ProjectSeries")
+public class KpiSeriesRepresentation {
+
+	@XmlElement
+	private String projectKey;
+
+	@XmlElement
+	private long projectId;
+
+	@XmlElement(name="KpiNumbers")
+	private double[] kpiNumbers;
+
+	@XmlElement(name="IssueCounts")
+	private int[] issueCounts;
+
+	private KpiSeriesRepresentation(){}
+
+	public KpiSeriesRepresentation(String projectKey, long id, double[] kpiNumbers, int[] issueCounts){
+		this.projectKey = projectKey;
+		this.projectId = id;
+		this.kpiNumbers = kpiNumbers;
+		this.issueCounts = issueCounts;
+	}
+
+
+}
@@ -19,7 +19,7 @@ var buildKpiTable =  function (container, kpiCollection){
 		i++;
 				AJS.$('<tr/>').attr('id','row'+i).appendTo("#kpi-table");
 				AJS.$('#row'+i).append('<td>'+this.projectKey+'</td>');
-				AJS.$('#row'+i).append('<td>'+this.kpiNumber+'</td>');
+				AJS.$('#row'+i).append('<td>'+this.KpiNumber+'</td>');
 				AJS.$('#row'+i).append('<td>'+this.issueCount+'</td>');
 
             });
@@ -51,6 +51,304 @@ var convertJsonToArray = function (kpiCollection){
 
 };
 
+/**
+ * Returns all series of a columnar JSON representation: the projects first, then the categories.
+ * @param kpiColumns the KpiColumns in JSON format
+ * @returns the array of series
+ */
+var getAllSeries = function (kpiColumns){
+
+	var series = new Array();
+	if(kpiColumns.ProjectSeries != null){
+		series = series.concat(kpiColumns.ProjectSeries);
+	}
+	if(kpiColumns.CategorySeries != null){
+		series = series.concat(kpiColumns.CategorySeries);
+	}
+	return series;
+
+};
+
+/**
+ * Converts a columnar JSON representation into an array, holding one row per date.
+ * @param kpiColumns the KpiColumns in JSON format
+ * @returns the array
+ */
+var convertColumnsToArray = function (kpiColumns){
+
+	var kpiArray = new Array();
+	var dates = kpiColumns.Time;
+	var series = getAllSeries(kpiColumns);
+	for(var row = 0; row < dates.length; row++){
+		var array = new Array();
+		array[0] = dates[row];
+		for(var i = 0; i < series.length; i++){
+			array[i+1] = series[i].KpiNumbers[row];
+		}
+		kpiArray[row] = array;
+	}
+	return kpiArray;
+
+};
+
+/**
+ * Milliseconds between two polls of a running KPI job.
+ */
+var KPI_JOB_POLL_INTERVAL = 2000;
+
+/**
+ * Replaces the numbers of dates, that are not calculated yet, by null, so the chart leaves a gap.
+ * @param series the series of a KPI job in JSON format
+ */
+var markMissingPoints = function (series){
+
+	if(series == null){
+		return;
+	}
+	for(var i = 0; i < series.length; i++){
+		var missing = series[i].Missing;
+		for(var m = 0; missing != null && m < missing.length; m++){
+			series[i].KpiNumbers[missing[m]] = null;
+		}
+	}
+
+};
+
+/**
+ * Merges a poll of a KPI job into the job: the completed projects replace their partial series.
+ * @param job the KPI job in JSON format, as returned by the submission
+ * @param update the poll of the job in JSON format
+ */
+var mergeKpiJob = function (job, update){
+
+	job.State = update.State;
+	job.Completed = update.Completed;
+	job.Pending = update.Pending;
+	job.Error = update.Error;
+	var series = update.ProjectSeries;
+	markMissingPoints(series);
+	for(var i = 0; series != null && i < series.length; i++){
+		for(var j = 0; j < job.ProjectSeries.length; j++){
+			if(job.ProjectSeries[j].projectId == series[i].projectId){
+				job.ProjectSeries[j] = series[i];
+			}
+		}
+	}
+
+};
+
+/**
+ * Polls a running KPI job until it is finished and redraws the chart after each poll. Polling stops, when the gadget
+ * submits another job.
+ * @param gadget the gadget
+ * @param baseUrl url of jira instance
+ * @param job the KPI job in JSON format, as returned by the submission
+ * @param draw function drawing the job
+ */
+var pollKpiJob = function (gadget, baseUrl, job, draw){
+
+	gadget.kpiJobId = job.JobId;
+	if(gadget.kpiJobUnload == null){
+		// a reloaded or closed page doesn't leave its job running
+		gadget.kpiJobUnload = function (){
+			cancelKpiJob(gadget, baseUrl, false);
+		};
+		AJS.$(window).unload(gadget.kpiJobUnload);
+	}
+	var poll = function (){
+		if(gadget.kpiJobId != job.JobId){
+			return;
+		}
+		AJS.$.ajax({
+			url: baseUrl + "/rest/key-performance/1.0/key-performance/jobs/" + job.JobId,
+			type: "GET",
+			dataType: "json",
+			data: { completed : job.Completed },
+			success: function (update){
+				if(gadget.kpiJobId != job.JobId){
+					return;
+				}
+				mergeKpiJob(job, update);
+				if(job.State == "running"){
+					setTimeout(poll, KPI_JOB_POLL_INTERVAL);
+				} else {
+					// the finished job is removed on the server
+					gadget.kpiJobId = null;
+				}
+				draw(job);
+			},
+			error: function (){
+				job.State = "failed";
+				job.Error = "The calculation of the remaining projects is not available anymore";
+				draw(job);
+			}
+		});
+	};
+	setTimeout(poll, KPI_JOB_POLL_INTERVAL);
+
+};
+
+/**
+ * Cancels the job the gadget polls, so an abandoned job stops calculating and doesn't count against the jobs of the
+ * user. Polling stops as well.
+ * @param gadget the gadget
+ * @param baseUrl url of jira instance
+ * @param async false to send the cancellation before the page is unloaded
+ */
+var cancelKpiJob = function (gadget, baseUrl, async){
+
+	if(gadget.kpiJobId == null){
+		return;
+	}
+	AJS.$.ajax({
+		url: baseUrl + "/rest/key-performance/1.0/key-performance/jobs/" + gadget.kpiJobId,
+		type: "DELETE",
+		async: async
+	});
+	gadget.kpiJobId = null;
+
+};
+
+/**
+ * Reads the copy of a timeline kept in the browser storage.
+ * @param key the key of the requested timeline
+ * @returns the KpiColumns in JSON format, null if there is no copy or no browser storage
+ */
+var loadKpiCopy = function (key){
+
+	try{
+		var copy = window.localStorage.getItem(key);
+		return copy == null ? null : JSON.parse(copy);
+	}catch(e){
+		return null;
+	}
+
+};
+
+/**
+ * Keeps a copy of a timeline in the browser storage, so the next reload fetches only the newest dates.
+ * @param key the key of the requested timeline
+ * @param kpiColumns the complete KpiColumns in JSON format, null to remove the copy
+ */
+var storeKpiCopy = function (key, kpiColumns){
+
+	try{
+		if(kpiColumns == null){
+			window.localStorage.removeItem(key);
+		}else {
+			window.localStorage.setItem(key, JSON.stringify(kpiColumns));
+		}
+	}catch(e){
+		// the browser storage is not available or full, the next reload fetches the whole timeline
+	}
+
+};
+
+/**
+ * Merges the series of the newest dates into the series of the copy of a timeline.
+ * @param copySeries the series of the copy
+ * @param deltaSeries the fetched series
+ * @param start the index of the first date of the copy, that is kept
+ * @param end the index of the first date of the copy, that is replaced
+ * @returns the merged series, null if they are not the same projects or categories
+ */
+var mergeKpiSeries = function (copySeries, deltaSeries, start, end){
+
+	if(copySeries == null || deltaSeries == null){
+		// no series at all fit, only one of them doesn't
+		return copySeries == deltaSeries ? null : undefined;
+	}
+	if(copySeries.length != deltaSeries.length){
+		return undefined;
+	}
+	var merged = new Array();
+	for(var i = 0; i < deltaSeries.length; i++){
+		if(copySeries[i].projectId != deltaSeries[i].projectId || copySeries[i].categoryId != deltaSeries[i].categoryId){
+			return undefined;
+		}
+		merged[i] = AJS.$.extend({}, deltaSeries[i]);
+		merged[i].KpiNumbers = copySeries[i].KpiNumbers.slice(start, end).concat(deltaSeries[i].KpiNumbers);
+		merged[i].IssueCounts = copySeries[i].IssueCounts.slice(start, end).concat(deltaSeries[i].IssueCounts);
+		merged[i].Missing = null;
+	}
+	return merged;
+
+};
+
+/**
+ * Merges the newest dates into the copy of a timeline: dates of the copy before the first date of the timeline are
+ * dropped, dates from the first fetched one on are replaced. Neither the copy nor the fetched dates are modified.
+ * @param copy the copy of the timeline in JSON format, null if there is none
+ * @param delta the fetched dates as KpiColumns or KpiJob in JSON format
+ * @returns the merged timeline, null if the copy doesn't fit the fetched dates anymore
+ */
+var mergeKpiCopy = function (copy, delta){
+
+	if(copy == null || delta == null || delta.Time == null || delta.Time.length == 0){
+		return delta;
+	}
+
+	// the labels sort like the dates
+	var start = 0;
+	while(start < copy.Time.length && copy.Time[start] < delta.FirstDate){
+		start++;
+	}
+	var end = start;
+	while(end < copy.Time.length && copy.Time[end] < delta.Time[0]){
+		end++;
+	}
+	var merged = AJS.$.extend({}, delta);
+	merged.Time = copy.Time.slice(start, end).concat(delta.Time);
+	merged.ProjectSeries = mergeKpiSeries(copy.ProjectSeries, delta.ProjectSeries, start, end);
+	merged.CategorySeries = mergeKpiSeries(copy.CategorySeries, delta.CategorySeries, start, end);
+	if(merged.ProjectSeries === undefined || merged.CategorySeries === undefined){
+		return null;
+	}
+	return merged;
+
+};
+
+/**
+ * Draws the chart of a columnar JSON representation or of a KPI job.
+ * @param gadget the gadget
+ * @param kpiColumns the KpiColumns or KpiJob in JSON format
+ * @param title the title of the chart
+ */
+var drawKpiChart = function (gadget, kpiColumns, title){
+
+	gadget.getView().empty();
+	var container = AJS.$("<div id='chart_div'/>");
+	gadget.getView().append(container);
+
+	if(kpiColumns != null && kpiColumns.Time != null && (kpiColumns.ProjectSeries != null || kpiColumns.CategorySeries != null)){
+		var data = new google.visualization.DataTable();
+		// Declare columns and rows.
+		data.addColumn('string', 'Date');  // Column 0 is the x-axis, so for us it is the date
+
+		var series = getAllSeries(kpiColumns);
+		for(var i = 0; i < series.length; i++){
+			data.addColumn('number', series[i].projectKey != null ? series[i].projectKey : series[i].categoryName);
+		}
+		//all further columns represenet one project
+		//so for one date, the kpi is given for alle filtered projects
+		data.addRows(convertColumnsToArray(kpiColumns));
+
+		var width = gadgets.window.getViewportDimensions().width - 10;
+		var height = width * 2/3;
+		var chart = new google.visualization.LineChart(document.getElementById('chart_div'));
+		chart.draw(data, {width: width, height: height,title: title});
+		if(kpiColumns.State == "running" && kpiColumns.Pending != null){
+			gadget.getView().append("<p>Calculating " + kpiColumns.Pending.length + " more projects...</p>");
+		}else if(kpiColumns.Error != null){
+			gadget.getView().append("<p>" + kpiColumns.Error + "</p>");
+		}
+	}else {
+		gadget.getView().append("<p>No Data available</p>");
+	}
+
+	gadget.resize();
+
+};
 
 /**
  * This function represents the gadgets view and config screen.
@@ -80,6 +378,10 @@ function buildKpiGadget(baseUrl, title, subTitle) {
                             	type: "select",
                             	selected: gadget.getPref("interval"),
                             	options:[
+                            	         {
+                            	        	 label: "hourly",
+                           	        		 value: "hourly"
+                            	         },
                             	         {
                             	        	 label: "daily",
                            	        		 value: "daily"
@@ -95,6 +397,25 @@ function buildKpiGadget(baseUrl, title, subTitle) {
                             	         ]
 
 
+                            };
+                            var groupByPicker = {
+                            	userpref: "groupBy",
+                            	label: "Categories",
+                            	description: "Show each selected category as one summed line, or each of its projects?",
+                            	type: "select",
+                            	selected: gadget.getPref("groupBy"),
+                            	options:[
+                            	         {
+                            	        	 label: "one line per project",
+                           	        		 value: "project"
+                            	         },
+                            	         {
+                            	        	 label: "one line per category",
+                           	        		 value: "category"
+                            	         }
+                            	         ]
+
+
                             };
                             return {
                             	action: "/rest/key-performance/1.0/key-performance/validate",
@@ -113,6 +434,7 @@ function buildKpiGadget(baseUrl, title, subTitle) {
                                     projectPicker,
                                     periodPicker,
                                     intervalPicker,
+                                    groupByPicker,
                                     AJS.gadget.fields.nowConfigured()
                                 ]
                             };
@@ -135,46 +457,33 @@ function buildKpiGadget(baseUrl, title, subTitle) {
                         {
 
                     	 var gadget = this;
-                         gadget.getView().empty();
                          gadget.projectOrFilterName = "here is the test project or filter name";
 
-                         var projectsSelected = gadget.getPref('projectSelector');
-
-                         var container = AJS.$("<div id='chart_div'/>");
-                         gadget.getView().append(container);
-
-                         if(args.kpiCollection != null){
-
-                        	 var kpiCollection;
-                        	 kpiCollection = AJS.$(args.kpiCollection.KpisAtTime);
-
-	                         if(kpiCollection != null){
-		                         var data = new google.visualization.DataTable();
-		                         // Declare columns and rows.
-		                         data.addColumn('string', 'Date');  // Column 0 is the x-axis, so for us it is the date
-
-		                         var sampleProjectsForInit = kpiCollection[0].ProjectKPI;
-		                         for(i = 0; i < sampleProjectsForInit.length; i++){
-		                        	 data.addColumn('number', sampleProjectsForInit[i].projectKey);
-		                         }
-		                         //all further columns represenet one date
-		                         //so for one date, the kpi is given for alle filtered projects
-		                         data.addRows(convertJsonToArray(kpiCollection));
-
-		                         var width = gadgets.window.getViewportDimensions().width - 10;
-		                         var height = width * 2/3;
-		                         var chart = new google.visualization.LineChart(document.getElementById('chart_div'));
-                                chart.draw(data, {width: width, height: height,title: title});
-//                                chart.draw(data, {width: width, height: height, is3D: true,
-//                                legend:this.getPref("legend"), title: this.getMsg("gadget.user.activity.chart.title")});
-	                         }else {
-	                        	 gadget.getView().append("<p>No Data available</p>");
-	                         }
-                         }else {
-	                    	   gadget.getView().append("<p>No Data available</p>");
-                         }
+                         var copy = gadget.kpiCopy;
+                         var copyKey = gadget.kpiCopyKey;
+                         // merges the fetched dates into the copy and keeps the result, once it is complete
+                         var drawDelta = function (delta){
+                        	 var merged = mergeKpiCopy(copy, delta);
+                        	 if(delta != null && merged == null){
+                        		 // the projects changed, fetch the whole timeline again
+                        		 storeKpiCopy(copyKey, null);
+                        		 gadget.showView(true);
+                        		 return;
+                        	 }
+                        	 if(merged != null && (merged.JobId == null || merged.State == "done")){
+                        		 storeKpiCopy(copyKey, merged);
+                        	 }
+                        	 drawKpiChart(gadget, merged, title);
+                         };
 
-                         gadget.resize();
+                         var kpiColumns = args.kpiCollection;
+                         if(kpiColumns != null && kpiColumns.JobId != null){
+                        	 markMissingPoints(kpiColumns.ProjectSeries);
+                        	 if(kpiColumns.State == "running"){
+                        		 pollKpiJob(gadget, baseUrl, kpiColumns, drawDelta);
+                        	 }
+                         }
+                         drawDelta(kpiColumns);
 
                         },
                         args: [
@@ -182,15 +491,35 @@ function buildKpiGadget(baseUrl, title, subTitle) {
                             	key: "kpiCollection",
                             	ajaxOptions: function()
                             	{
-                            		return{
-                            			url: "/rest/key-performance/1.0/key-performance/getKpis",
-                            			data: {
-                            				projectId : gadgets.util.unescapeString(this.getPref("projectId")),
-                            				period: this.getPref("period"),
-                            				interval: this.getPref("interval"),
-                            				end : "today"
+                            		// a new request cancels the previous job, instead of leaving it running
+                            		cancelKpiJob(this, baseUrl, true);
+                            		var params = {
+                            			projectId : gadgets.util.unescapeString(this.getPref("projectId")),
+                            			period: this.getPref("period"),
+                            			interval: this.getPref("interval"),
+                            			end : "today"
+                            		};
+                            		// with a copy in the browser storage only the newest dates are fetched
+                            		this.kpiCopyKey = "kpi-chart|" + params.projectId + "|" + params.period + "|"
+                            				+ params.interval + "|" + this.getPref("groupBy");
+                            		this.kpiCopy = loadKpiCopy(this.kpiCopyKey);
+                            		if(this.kpiCopy != null && this.kpiCopy.Time != null && this.kpiCopy.Time.length > 0){
+                            			params.since = this.kpiCopy.Time[this.kpiCopy.Time.length - 1];
+                            			params.modifiedSince = this.kpiCopy.LastModified;
+                            		}
+                            		if(this.getPref("groupBy") == "category"){
+                            			params.format = "columns";
+                            			params.groupBy = this.getPref("groupBy");
+                            			return{
+                            				url: "/rest/key-performance/1.0/key-performance/getKpis",
+                            				data: params
                             			}
                             		}
+                            		// projects are submitted as job, the cached numbers are drawn at once
+                            		return{
+                            			url: "/rest/key-performance/1.0/key-performance/jobs?" + AJS.$.param(params),
+                            			type: "POST"
+                            		}
                             	}
 
                             }
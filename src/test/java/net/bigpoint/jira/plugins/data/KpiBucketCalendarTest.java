@@ -0,0 +1,166 @@
+package net.bigpoint.jira.plugins.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Tests the bucket boundaries of {@link KpiBucketCalendar}, in a time zone with daylight saving time. Europe/Berlin
+ * switches to summer time on 2026-03-29 and back on 2026-10-25.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiBucketCalendarTest {
+
+	private static final long HOUR = 3600L * 1000L;
+
+	private final KpiBucketCalendar calendar = new KpiBucketCalendar(TimeZone.getTimeZone("Europe/Berlin"));
+
+	@Test
+	public void testDailyBucketsAcrossDaylightSavingTime() {
+		List<Timestamp> spring = calendar.getStamps(3, KpiBucketCalendar.DAILY, day("2026-03-30"));
+		assertEquals(Arrays.asList("2026-03-28 23:59:59.999", "2026-03-29 23:59:59.999", "2026-03-30 23:59:59.999"),
+				format(spring));
+		assertEquals(23 * HOUR, spring.get(1).getTime() - spring.get(0).getTime());
+		assertEquals(24 * HOUR, spring.get(2).getTime() - spring.get(1).getTime());
+
+		List<Timestamp> autumn = calendar.getStamps(3, KpiBucketCalendar.DAILY, day("2026-10-26"));
+		assertEquals(Arrays.asList("2026-10-24 23:59:59.999", "2026-10-25 23:59:59.999", "2026-10-26 23:59:59.999"),
+				format(autumn));
+		assertEquals(25 * HOUR, autumn.get(1).getTime() - autumn.get(0).getTime());
+		assertEquals(24 * HOUR, autumn.get(2).getTime() - autumn.get(1).getTime());
+
+		long noon = day("2026-10-25") + 12 * HOUR;
+		assertEquals(day("2026-10-25"), calendar.getBucketStart(noon, KpiBucketCalendar.DAILY));
+		assertEquals(day("2026-10-26") - 1, calendar.getBucketEnd(noon, KpiBucketCalendar.DAILY));
+	}
+
+	@Test
+	public void testHourlyBucketsAcrossDaylightSavingTime() {
+		for(String dayOfChange : new String[] { "2026-03-29", "2026-10-25" }) {
+			long end = calendar.getBucketEnd(day(dayOfChange), KpiBucketCalendar.DAILY);
+			List<Timestamp> stamps = calendar.getStamps(1, KpiBucketCalendar.HOURLY, end);
+			// one bucket per real hour, no matter how many hours the day has
+			assertEquals(24, stamps.size());
+			assertEquals(end, stamps.get(stamps.size() - 1).getTime());
+			for(int i = 1; i < stamps.size(); i++) {
+				assertEquals(HOUR, stamps.get(i).getTime() - stamps.get(i - 1).getTime());
+			}
+		}
+	}
+
+	@Test
+	public void testWeeklyBuckets() {
+		// weeks start on Monday
+		long sunday = day("2026-10-18") + 12 * HOUR;
+		assertEquals(day("2026-10-12"), calendar.getBucketStart(sunday, KpiBucketCalendar.WEEKLY));
+		assertEquals(day("2026-10-19") - 1, calendar.getBucketEnd(sunday, KpiBucketCalendar.WEEKLY));
+		long monday = day("2026-10-19");
+		assertEquals(monday, calendar.getBucketStart(monday, KpiBucketCalendar.WEEKLY));
+
+		// the week of the change to winter time is an hour longer
+		long start = calendar.getBucketStart(day("2026-10-25"), KpiBucketCalendar.WEEKLY);
+		long end = calendar.getBucketEnd(day("2026-10-25"), KpiBucketCalendar.WEEKLY);
+		assertEquals(day("2026-10-19"), start);
+		assertEquals(7 * 24 * HOUR + HOUR, end + 1 - start);
+
+		List<Timestamp> stamps = calendar.getStamps(14, KpiBucketCalendar.WEEKLY, day("2026-10-25"));
+		assertEquals(Arrays.asList("2026-10-18 23:59:59.999", "2026-10-25 23:59:59.999"), format(stamps));
+	}
+
+	@Test
+	public void testMonthlyBuckets() {
+		assertEquals(day("2026-03-01") - 1, calendar.getBucketEnd(day("2026-02-10"), KpiBucketCalendar.MONTHLY));
+		assertEquals(day("2024-03-01") - 1, calendar.getBucketEnd(day("2024-02-29"), KpiBucketCalendar.MONTHLY));
+		assertEquals(day("2026-03-01"), calendar.getBucketStart(day("2026-03-31") + 23 * HOUR,
+				KpiBucketCalendar.MONTHLY));
+
+		List<Timestamp> stamps = calendar.getStamps(90, KpiBucketCalendar.MONTHLY, day("2026-03-31"));
+		assertEquals(Arrays.asList("2026-01-31 23:59:59.999", "2026-02-28 23:59:59.999", "2026-03-31 23:59:59.999"),
+				format(stamps));
+	}
+
+	@Test
+	public void testStampsAfter() {
+		long last = day("2026-10-30");
+		List<Timestamp> all = calendar.getStamps(20, KpiBucketCalendar.DAILY, last);
+
+		// walking through the timeline in windows yields the same buckets
+		List<Timestamp> windows = new ArrayList<Timestamp>();
+		long after = all.get(0).getTime() - 1;
+		while(true) {
+			List<Timestamp> window = calendar.getStampsAfter(after, last, KpiBucketCalendar.DAILY, 7);
+			if(window.isEmpty()) {
+				break;
+			}
+			assertTrue(window.size() <= 7);
+			windows.addAll(window);
+			after = window.get(window.size() - 1).getTime();
+		}
+		assertEquals(all, windows);
+
+		assertEquals(all.subList(1, 3), calendar.getStampsAfter(all.get(0).getTime(), last, KpiBucketCalendar.DAILY,
+				2));
+		assertTrue(calendar.getStampsAfter(all.get(all.size() - 1).getTime(), last, KpiBucketCalendar.DAILY, 7)
+				.isEmpty());
+	}
+
+	@Test
+	public void testParseDay() {
+		assertEquals("2026-10-25 00:00:00.000", format(calendar.parseDay("2026-10-25")));
+		assertEquals(Long.MIN_VALUE, calendar.parseDay("2026-02-29"));
+		assertEquals(Long.MIN_VALUE, calendar.parseDay("2026-13-01"));
+		assertEquals(Long.MIN_VALUE, calendar.parseDay("yesterday"));
+		assertEquals(Long.MIN_VALUE, calendar.parseDay(null));
+	}
+
+	@Test
+	public void testBuckets() {
+		KpiBucketCalendar.Buckets buckets = calendar.getBuckets("3", KpiBucketCalendar.DAILY, "2026-03-30");
+		assertEquals(calendar.getStamps(3, KpiBucketCalendar.DAILY, day("2026-03-30")), buckets.getStamps());
+		assertEquals(Arrays.asList("2026-03-28", "2026-03-29", "2026-03-30"), buckets.getLabels());
+		assertEquals(0, buckets.getValidFrom());
+		assertSame(buckets, calendar.getBuckets("3", KpiBucketCalendar.DAILY, "2026-03-30"));
+
+		KpiBucketCalendar.Buckets last = buckets.from(1);
+		assertEquals(Arrays.asList("2026-03-29", "2026-03-30"), last.getLabels());
+		assertEquals("2026-03-28", last.getFirstLabel());
+
+		assertTrue(calendar.isInterval(KpiBucketCalendar.HOURLY));
+		assertFalse(calendar.isInterval("yearly"));
+		assertNull(calendar.getBuckets("3", "yearly", "2026-03-30"));
+		assertNull(calendar.getBuckets("-1", KpiBucketCalendar.DAILY, "2026-03-30"));
+		assertNull(calendar.getBuckets("three", KpiBucketCalendar.DAILY, "2026-03-30"));
+		assertNull(calendar.getBuckets("3", KpiBucketCalendar.DAILY, "9999-12-31"));
+	}
+
+	private long day(String day) {
+		return calendar.parseDay(day);
+	}
+
+	private String format(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		format.setTimeZone(calendar.getTimeZone());
+		return format.format(new Timestamp(time));
+	}
+
+	private List<String> format(List<Timestamp> stamps) {
+		List<String> formatted = new ArrayList<String>();
+		for(Timestamp stamp : stamps) {
+			formatted.add(format(stamp.getTime()));
+		}
+		return formatted;
+	}
+}
@@ -0,0 +1,179 @@
+package net.bigpoint.jira.plugins.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that {@link KpiLocalStore} reads its values back after a restart, stops at a damaged record and compacts its
+ * file.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiLocalStoreTest {
+
+	// magic and version
+	private static final int HEADER_SIZE = 8;
+
+	// crc, type, project id, time, counts
+	private static final int RECORD_SIZE = 4 + 1 + 8 + 8 + 4 * SeverityCounts.SLOTS;
+
+	private static final long DAY = 24L * 3600L * 1000L;
+
+	private File directory;
+
+	private KpiLocalStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("kpi-store", "");
+		directory.delete();
+		directory.mkdirs();
+		store = new KpiLocalStore(directory, new KpiMetrics());
+	}
+
+	@After
+	public void tearDown() {
+		store.destroy();
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testReplay() {
+		List<KpiPoint> points = new ArrayList<KpiPoint>();
+		for(int day = 0; day < 10; day++) {
+			points.add(point(1, day, day));
+			points.add(point(2, day, 100 + day));
+		}
+		store.cacheValues(points);
+		// overwrite one value, delete the last days of project 1 and store one of them again
+		store.cacheValues(Arrays.asList(point(1, 2, 42)));
+		store.deleteValues(1, new Timestamp(6 * DAY));
+		store.cacheValues(Arrays.asList(point(1, 8, 88)));
+
+		reopen();
+		SeverityCounts[] project1 = read(1, 10);
+		SeverityCounts[] project2 = read(2, 10);
+		for(int day = 0; day < 10; day++) {
+			if(day == 2) {
+				assertEquals(42, project1[day].getCount(0));
+			} else if(day == 8) {
+				assertEquals(88, project1[day].getCount(0));
+			} else if(day >= 6) {
+				assertNull("day " + day, project1[day]);
+			} else {
+				assertEquals(day, project1[day].getCount(0));
+			}
+			assertEquals(100 + day, project2[day].getCount(0));
+		}
+	}
+
+	@Test
+	public void testDamagedRecordEndsFile() throws IOException {
+		List<KpiPoint> points = new ArrayList<KpiPoint>();
+		for(int day = 0; day < 5; day++) {
+			points.add(point(1, day, day));
+		}
+		store.cacheValues(points);
+		store.destroy();
+
+		// flip a bit in the counts of the third record
+		RandomAccessFile file = new RandomAccessFile(new File(directory, "kpi-cache.dat"), "rw");
+		try {
+			long position = HEADER_SIZE + 2 * RECORD_SIZE + RECORD_SIZE - 1;
+			file.seek(position);
+			int b = file.read();
+			file.seek(position);
+			file.write(b ^ 1);
+		} finally {
+			file.close();
+		}
+
+		store = new KpiLocalStore(directory, new KpiMetrics());
+		SeverityCounts[] values = read(1, 5);
+		assertEquals(0, values[0].getCount(0));
+		assertEquals(1, values[1].getCount(0));
+		assertNull(values[2]);
+		assertNull(values[3]);
+		assertNull(values[4]);
+
+		// new records replace the cut off ones
+		store.cacheValues(Arrays.asList(point(1, 3, 33)));
+		reopen();
+		values = read(1, 5);
+		assertEquals(1, values[1].getCount(0));
+		assertNull(values[2]);
+		assertEquals(33, values[3].getCount(0));
+	}
+
+	@Test
+	public void testCompaction() {
+		// about 2MB of records, that overwrite 100 values again and again
+		int rounds = (2 << 20) / RECORD_SIZE / 100;
+		for(int round = 0; round < rounds; round++) {
+			List<KpiPoint> points = new ArrayList<KpiPoint>();
+			for(int day = 0; day < 100; day++) {
+				points.add(point(1, day, round));
+			}
+			store.cacheValues(points);
+		}
+		store.deleteValues(1, new Timestamp(50 * DAY));
+
+		// without compaction, the file would have grown beyond its initial size of 1MB
+		File file = new File(directory, "kpi-cache.dat");
+		assertTrue("file size " + file.length(), file.length() <= 1 << 20);
+
+		// the values are read from the compacted file, before and after a restart
+		assertCompacted(rounds);
+		reopen();
+		assertCompacted(rounds);
+	}
+
+	private void assertCompacted(int rounds) {
+		SeverityCounts[] values = read(1, 100);
+		for(int day = 0; day < 100; day++) {
+			if(day < 50) {
+				assertEquals(rounds - 1, values[day].getCount(0));
+			} else {
+				assertNull(values[day]);
+			}
+		}
+	}
+
+	private void reopen() {
+		store.destroy();
+		store = new KpiLocalStore(directory, new KpiMetrics());
+	}
+
+	private SeverityCounts[] read(long projectId, int days) {
+		List<Timestamp> stamps = new ArrayList<Timestamp>();
+		for(int day = 0; day < days; day++) {
+			stamps.add(new Timestamp(day * DAY));
+		}
+		Map<Long, SeverityCounts[]> values = store.getCachedValues(Arrays.asList(projectId), stamps);
+		return values.get(projectId);
+	}
+
+	private KpiPoint point(long projectId, int day, int blocker) {
+		int[] counts = new int[SeverityCounts.SLOTS];
+		counts[SeverityCounts.slot(0)] = blocker;
+		return new KpiPoint(projectId, new Timestamp(day * DAY), new SeverityCounts(counts));
+	}
+}
@@ -0,0 +1,165 @@
+package net.bigpoint.jira.plugins.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the hash table, the clock eviction and the expiry of {@link KpiPointCache}.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiPointCacheTest {
+
+	private static final int PROJECTS = 8;
+
+	private static final int TIMES = 25;
+
+	@Test
+	public void testRemovalKeepsEntriesReachable() {
+		// large enough for all keys, so nothing is evicted by the clock
+		KpiPointCache cache = new KpiPointCache(PROJECTS * TIMES);
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		Random random = new Random(7);
+
+		for(int i = 0; i < 20000; i++) {
+			long projectId = random.nextInt(PROJECTS);
+			long time = random.nextInt(TIMES) * 1000L;
+			int operation = random.nextInt(10);
+			if(operation < 7) {
+				int value = random.nextInt(1000);
+				cache.put(projectId, time, counts(value));
+				expected.put(projectId + ":" + time, value);
+			} else if(operation < 9) {
+				// removes a single value, which moves the colliding entries behind it back
+				cache.evict(projectId, time);
+				for(Iterator<String> it = expected.keySet().iterator(); it.hasNext();) {
+					String[] key = it.next().split(":");
+					if(Long.parseLong(key[0]) == projectId && Long.parseLong(key[1]) >= time) {
+						it.remove();
+					}
+				}
+			} else {
+				cache.evict(projectId, (TIMES - 1) * 1000L);
+				expected.remove(projectId + ":" + (TIMES - 1) * 1000L);
+			}
+			if(i % 100 == 0) {
+				assertContent(cache, expected);
+			}
+		}
+		assertContent(cache, expected);
+	}
+
+	@Test
+	public void testClockEviction() {
+		KpiPointCache cache = new KpiPointCache(4);
+		for(int i = 0; i < 4; i++) {
+			cache.put(1, i, counts(i));
+		}
+		// a read gives the first entry a second chance, so the second one is evicted
+		assertNotNull(cache.get(1, 0));
+		cache.put(1, 4, counts(4));
+
+		assertEquals(4, cache.size());
+		assertTrue(cache.contains(1, 0));
+		assertFalse(cache.contains(1, 1));
+		assertTrue(cache.contains(1, 2));
+		assertTrue(cache.contains(1, 3));
+		assertEquals(4, cache.get(1, 4).getCount(0));
+
+		// the hand moves on to the unread entries
+		cache.put(1, 5, counts(5));
+		cache.put(1, 6, counts(6));
+		assertTrue(cache.contains(1, 0));
+		assertFalse(cache.contains(1, 2));
+		assertFalse(cache.contains(1, 3));
+
+		// the first entry lost its second chance when the hand passed it, the read one keeps it
+		cache.put(1, 7, counts(7));
+		assertFalse(cache.contains(1, 0));
+		assertTrue(cache.contains(1, 4));
+		assertEquals(4, cache.size());
+	}
+
+	@Test
+	public void testContainsDoesNotProtectFromEviction() {
+		KpiPointCache cache = new KpiPointCache(2);
+		cache.put(1, 0, counts(0));
+		cache.put(1, 1, counts(1));
+		assertTrue(cache.contains(1, 0));
+		cache.put(1, 2, counts(2));
+
+		assertFalse(cache.contains(1, 0));
+		assertTrue(cache.contains(1, 1));
+		assertTrue(cache.contains(1, 2));
+	}
+
+	@Test
+	public void testEvictFrom() {
+		KpiPointCache cache = new KpiPointCache(100);
+		for(int i = 0; i < 10; i++) {
+			cache.put(1, i, counts(i));
+			cache.put(2, i, counts(i));
+		}
+		cache.evict(1, 5);
+
+		assertEquals(15, cache.size());
+		for(int i = 0; i < 10; i++) {
+			assertEquals(i < 5, cache.contains(1, i));
+			assertTrue(cache.contains(2, i));
+		}
+	}
+
+	@Test
+	public void testExpiry() {
+		KpiPointCache cache = new KpiPointCache(10);
+		long now = System.currentTimeMillis();
+		cache.put(1, 0, counts(1), now - 1);
+		cache.put(1, 1, counts(2), now + 60000L);
+		cache.put(1, 2, counts(3));
+
+		assertFalse(cache.contains(1, 0));
+		assertNull(cache.get(1, 0));
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.get(1, 1).getCount(0));
+		assertEquals(3, cache.get(1, 2).getCount(0));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// a final value replaces the provisional one
+		cache.put(1, 0, counts(4));
+		assertEquals(4, cache.get(1, 0).getCount(0));
+	}
+
+	private void assertContent(KpiPointCache cache, Map<String, Integer> expected) {
+		assertEquals(expected.size(), cache.size());
+		for(int projectId = 0; projectId < PROJECTS; projectId++) {
+			for(int t = 0; t < TIMES; t++) {
+				long time = t * 1000L;
+				Integer value = expected.get(projectId + ":" + time);
+				if(value == null) {
+					assertFalse(cache.contains(projectId, time));
+				} else {
+					assertTrue(projectId + ":" + time, cache.contains(projectId, time));
+					assertEquals(value.intValue(), cache.get(projectId, time).getCount(0));
+				}
+			}
+		}
+	}
+
+	private SeverityCounts counts(int blocker) {
+		int[] counts = new int[SeverityCounts.SLOTS];
+		counts[SeverityCounts.slot(0)] = blocker;
+		return new SeverityCounts(counts);
+	}
+}
@@ -0,0 +1,146 @@
+package net.bigpoint.jira.plugins.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Compares the sweep of {@link KpiTimeline} with the per-timestamp loop it replaced, which checked every issue for
+ * every timestamp.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiTimelineTest {
+
+	private static final long HOUR = 3600L * 1000L;
+
+	private final KpiBucketCalendar calendar = new KpiBucketCalendar(TimeZone.getTimeZone("Europe/Berlin"));
+
+	@Test
+	public void testBoundaries() {
+		long ts = 1000L * HOUR;
+		List<long[]> issues = new ArrayList<long[]>();
+		// created at, closed at and on both sides of the timestamp
+		issues.add(new long[] { ts, KpiTimeline.NOT_CLOSED, 0 });
+		issues.add(new long[] { ts - 1, KpiTimeline.NOT_CLOSED, 1 });
+		issues.add(new long[] { ts + 1, KpiTimeline.NOT_CLOSED, 2 });
+		issues.add(new long[] { ts - HOUR, ts, 3 });
+		issues.add(new long[] { ts - HOUR, ts - 1, 4 });
+		issues.add(new long[] { ts - HOUR, ts + 1, 5 });
+		issues.add(new long[] { ts - 1, ts + 1, -1 });
+		// closed before created, never open
+		issues.add(new long[] { ts + 1, ts - 1, 0 });
+
+		long[] stamps = { ts - HOUR, ts - 1, ts, ts + 1, ts + HOUR };
+		SeverityCounts[] counts = assertSameAsLoop(issues, stamps);
+
+		assertEquals(1, counts[2].getCount(1));
+		assertEquals(0, counts[2].getCount(0));
+		assertEquals(0, counts[2].getCount(3));
+		assertEquals(1, counts[2].getCount(5));
+		assertEquals(1, counts[2].getCount(-1));
+		assertEquals(3, counts[2].getIssueCount());
+	}
+
+	@Test
+	public void testRandomIssues() {
+		Random random = new Random(42);
+		long from = 1000L * HOUR;
+		long span = 24L * 90L * HOUR;
+		List<long[]> issues = new ArrayList<long[]>();
+		for(int i = 0; i < 2000; i++) {
+			long created = from + (long) (random.nextDouble() * span);
+			long closed;
+			if(random.nextInt(3) == 0) {
+				closed = KpiTimeline.NOT_CLOSED;
+			} else {
+				closed = created + (long) (random.nextDouble() * span / 4);
+			}
+			issues.add(new long[] { created, closed, randomLevel(random) });
+		}
+		// some issues exactly on the timestamps
+		long[] stamps = new long[200];
+		for(int i = 0; i < stamps.length; i++) {
+			stamps[i] = from + i * span / stamps.length;
+		}
+		for(int i = 0; i < 100; i++) {
+			long stamp = stamps[random.nextInt(stamps.length)];
+			issues.add(new long[] { stamp, stamps[random.nextInt(stamps.length)], randomLevel(random) });
+		}
+		assertSameAsLoop(issues, stamps);
+	}
+
+	@Test
+	public void testDaylightSavingTime() {
+		// Europe/Berlin switches to summer time on 2026-03-29 and back on 2026-10-25
+		for(String end : new String[] { "2026-03-30", "2026-10-26" }) {
+			long endTime = calendar.parseDay(end);
+			for(String interval : new String[] { KpiBucketCalendar.HOURLY, KpiBucketCalendar.DAILY }) {
+				List<Timestamp> stampList = calendar.getStamps(3, interval, endTime);
+				long[] stamps = new long[stampList.size()];
+				for(int i = 0; i < stamps.length; i++) {
+					stamps[i] = stampList.get(i).getTime();
+				}
+
+				Random random = new Random(end.hashCode());
+				List<long[]> issues = new ArrayList<long[]>();
+				for(long stamp : stamps) {
+					// issues created and closed on and around the bucket ends
+					issues.add(new long[] { stamp, stamp + HOUR, randomLevel(random) });
+					issues.add(new long[] { stamp - 1, stamp, randomLevel(random) });
+					issues.add(new long[] { stamp - HOUR, stamp + 1, randomLevel(random) });
+					issues.add(new long[] { stamp + 1, KpiTimeline.NOT_CLOSED, randomLevel(random) });
+				}
+				assertSameAsLoop(issues, stamps);
+			}
+		}
+	}
+
+	private int randomLevel(Random random) {
+		return random.nextInt(SeverityCounts.SLOTS) - 1;
+	}
+
+	/**
+	 * Counts the issues with the timeline and with the per-timestamp loop and compares the results.
+	 */
+	private SeverityCounts[] assertSameAsLoop(List<long[]> issues, long[] stamps) {
+		KpiTimeline timeline = new KpiTimeline();
+		for(long[] issue : issues) {
+			timeline.addIssue(issue[0], issue[1], (int) issue[2]);
+		}
+		SeverityCounts[] counts = timeline.countsAt(stamps);
+		assertEquals(stamps.length, counts.length);
+
+		for(int i = 0; i < stamps.length; i++) {
+			int[] expected = countWithLoop(issues, stamps[i]);
+			for(int level = -1; level < SeverityCounts.SLOTS - 1; level++) {
+				assertEquals("level " + level + " at " + new Timestamp(stamps[i]), expected[SeverityCounts.slot(level)],
+						counts[i].getCount(level));
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * The counting of the per-timestamp loop: an issue is open, if it was created before the timestamp and is not
+	 * closed or was resolved after it.
+	 */
+	private int[] countWithLoop(List<long[]> issues, long ts) {
+		int[] open = new int[SeverityCounts.SLOTS];
+		for(long[] issue : issues) {
+			boolean created = issue[0] < ts;
+			boolean notClosed = issue[1] == KpiTimeline.NOT_CLOSED || issue[1] > ts;
+			if(created && notClosed) {
+				open[SeverityCounts.slot((int) issue[2])]++;
+			}
+		}
+		return open;
+	}
+}
@@ -0,0 +1,141 @@
+package net.bigpoint.jira.plugins.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests that {@link SingleFlight} runs concurrent calculations with the same key once and hands their result or
+ * failure to every caller.
+ *
+ * @author jschweizer
+ *
+ */
+public class SingleFlightTest {
+
+	private final SingleFlight<String, Object> singleFlight = new SingleFlight<String, Object>();
+
+	private final ExecutorService threads = Executors.newCachedThreadPool();
+
+	private final AtomicInteger invocations = new AtomicInteger();
+
+	private final CountDownLatch started = new CountDownLatch(1);
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		threads.shutdownNow();
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final Object result = new Object();
+		Future<Object> first = execute("key", blockingCalculation(result, null));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Future<Object> second = execute("key", blockingCalculation(new Object(), null));
+		waitUntilBlocked(second);
+		release.countDown();
+
+		assertSame(result, first.get(5, TimeUnit.SECONDS));
+		assertSame(result, second.get(5, TimeUnit.SECONDS));
+		assertEquals(1, invocations.get());
+
+		// the finished calculation is not remembered
+		Object next = new Object();
+		assertSame(next, singleFlight.execute("key", blockingCalculation(next, null)));
+		assertEquals(2, invocations.get());
+	}
+
+	@Test
+	public void testFailurePropagation() throws Exception {
+		Exception failure = new KpiComputationException("failed");
+		Future<Object> first = execute("key", blockingCalculation(null, failure));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Future<Object> second = execute("key", blockingCalculation(new Object(), null));
+		waitUntilBlocked(second);
+		release.countDown();
+
+		assertFailedWith(failure, first);
+		assertFailedWith(failure, second);
+		assertEquals(1, invocations.get());
+
+		// the failure is not remembered either
+		Object next = new Object();
+		assertSame(next, singleFlight.execute("key", blockingCalculation(next, null)));
+	}
+
+	@Test
+	public void testDifferentKeys() throws Exception {
+		Future<Object> first = execute("key", blockingCalculation(new Object(), null));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Object other = new Object();
+		assertSame(other, singleFlight.execute("other", blockingCalculation(other, null)));
+		assertEquals(2, invocations.get());
+		release.countDown();
+		first.get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return a calculation that waits for {@link #release}, the first time it is invoked
+	 */
+	private Callable<Object> blockingCalculation(final Object result, final Exception failure) {
+		return new Callable<Object>() {
+			public Object call() throws Exception {
+				if(invocations.incrementAndGet() == 1) {
+					started.countDown();
+					release.await();
+				}
+				if(failure != null) {
+					throw failure;
+				}
+				return result;
+			}
+		};
+	}
+
+	private Future<Object> execute(final String key, final Callable<Object> calculation) {
+		return threads.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return singleFlight.execute(key, calculation);
+			}
+		});
+	}
+
+	/**
+	 * Waits until the caller is blocked waiting for the running calculation. It would have run its own calculation
+	 * and finished otherwise.
+	 */
+	private void waitUntilBlocked(Future<Object> caller) throws InterruptedException {
+		// give the caller time to reach the running calculation
+		Thread.sleep(200);
+		assertTrue("the second caller finished before the first", caller.isDone() == false);
+		assertEquals(1, invocations.get());
+	}
+
+	private void assertFailedWith(Exception failure, Future<Object> caller) throws Exception {
+		try {
+			caller.get(5, TimeUnit.SECONDS);
+			fail("the calculation should have failed");
+		} catch(ExecutionException e) {
+			// the caller's own ExecutionException wraps the one of the calculation
+			Throwable cause = e.getCause();
+			assertTrue(cause instanceof ExecutionException);
+			assertSame(failure, cause.getCause());
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package net.bigpoint.jira.plugins.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import net.bigpoint.jira.plugins.data.KpiAdmissionController;
+import net.bigpoint.jira.plugins.data.KpiBucketCalendar;
+import net.bigpoint.jira.plugins.data.KpiComputationException;
+import net.bigpoint.jira.plugins.data.KpiDataProvider;
+import net.bigpoint.jira.plugins.data.KpiMetrics;
+import net.bigpoint.jira.plugins.data.SeverityCounts;
+import net.bigpoint.jira.plugins.transport.KpiExportWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that an export reads stored values, calculates the missing ones and resumes after the position passed as
+ * "after", including the position of an export that ended early.
+ *
+ * @author jschweizer
+ *
+ */
+public class KpiExportOutputTest {
+
+	private final KpiBucketCalendar calendar = new KpiBucketCalendar(TimeZone.getTimeZone("Europe/Berlin"));
+
+	private final Map<Long, String> projectKeys = new TreeMap<Long, String>();
+
+	/**
+	 * The times that are in the cache store.
+	 */
+	private final Set<Long> stored = new HashSet<Long>();
+
+	/**
+	 * The calculated times per project.
+	 */
+	private final Map<Long, List<Long>> calculated = new HashMap<Long, List<Long>>();
+
+	private long failingProject = -1;
+
+	private StubDataProvider dataProvider;
+
+	private long first;
+
+	private long last;
+
+	/**
+	 * The exported dates of each project.
+	 */
+	private List<Timestamp> stamps;
+
+	@Before
+	public void setUp() {
+		projectKeys.put(3L, "THREE");
+		projectKeys.put(1L, "ONE");
+		projectKeys.put(2L, "TWO");
+		// eight days across the change to winter time
+		first = calendar.parseDay("2026-10-20");
+		last = calendar.parseDay("2026-10-27");
+		stamps = calendar.getStampsAfter(first - 1, last, KpiBucketCalendar.DAILY, 100);
+		for(int i = 0; i < stamps.size(); i += 3) {
+			stored.add(stamps.get(i).getTime());
+		}
+		dataProvider = new StubDataProvider();
+	}
+
+	@Test
+	public void testExport() throws IOException {
+		List<String[]> rows = rows(export(null));
+		assertEquals(24, rows.size());
+		for(int i = 0; i < rows.size(); i++) {
+			String[] row = rows.get(i);
+			assertEquals(Long.toString(i / 8 + 1), row[0]);
+			long time = Long.parseLong(row[3]);
+			assertEquals(stamps.get(i % 8).getTime(), time);
+			assertEquals(stored.contains(time) == false, calculated.get(Long.parseLong(row[0])).contains(time));
+		}
+		assertEquals("TWO", rows.get(8)[1]);
+		assertEquals("2026-10-25", rows.get(5)[2]);
+		assertEquals("2026-10-26", rows.get(6)[2]);
+
+		for(long projectId = 1; projectId <= 3; projectId++) {
+			// only the missing values are calculated
+			assertEquals(5, calculated.get(projectId).size());
+		}
+	}
+
+	@Test
+	public void testResumeAfter() throws IOException {
+		List<String> all = export(null);
+		for(int row : new int[] { 1, 5, 8, 9, 16, 24 }) {
+			// the position of the row in the export, the header is line 0
+			String[] columns = all.get(row).split(",");
+			calculated.clear();
+			List<String> resumed = export(columns[0] + ":" + columns[3]);
+			assertEquals("after row " + row, all.subList(row + 1, all.size()), resumed.subList(1, resumed.size()));
+			assertEquals(all.get(0), resumed.get(0));
+		}
+
+		// the rows before the position are not calculated again
+		calculated.clear();
+		List<String> resumed = export("2:" + calendar.getBucketEnd(calendar.parseDay("2026-10-23"),
+				KpiBucketCalendar.DAILY));
+		assertEquals(1 + 4 + 8, resumed.size());
+		assertNull(calculated.get(1L));
+		assertEquals(3, calculated.get(2L).size());
+		assertEquals(5, calculated.get(3L).size());
+	}
+
+	@Test
+	public void testResumeAfterFailure() throws IOException {
+		List<String> all = export(null);
+
+		failingProject = 2;
+		List<String> failed = export(null);
+		assertEquals(all.subList(0, 9), failed.subList(0, 9));
+		assertEquals(10, failed.size());
+		String lastRow = all.get(8);
+		String[] columns = lastRow.split(",");
+		String position = columns[0] + ":" + columns[3];
+		assertEquals("# failed, resume after " + position, failed.get(9));
+
+		failingProject = -1;
+		List<String> resumed = export(position);
+		assertEquals(all.subList(9, all.size()), resumed.subList(1, resumed.size()));
+	}
+
+	@Test
+	public void testFailureBeforeFirstRow() throws IOException {
+		failingProject = 1;
+		List<String> failed = export(null);
+		assertEquals(2, failed.size());
+		assertEquals("# failed", failed.get(1));
+	}
+
+	@Test
+	public void testParsePosition() {
+		long[] position = KpiExportOutput.parsePosition("12:1793055599999");
+		assertEquals(12, position[0]);
+		assertEquals(1793055599999L, position[1]);
+		assertNull(KpiExportOutput.parsePosition("12"));
+		assertNull(KpiExportOutput.parsePosition("12:"));
+		assertNull(KpiExportOutput.parsePosition("a:b"));
+		assertNull(KpiExportOutput.parsePosition("1:2:3"));
+	}
+
+	/**
+	 * @return the lines of a csv export
+	 */
+	private List<String> export(String after) throws IOException {
+		KpiExportOutput output = new KpiExportOutput(dataProvider, calendar, new KpiAdmissionController(
+				new KpiMetrics()), "user", projectKeys, KpiBucketCalendar.DAILY, KpiExportWriter.FORMAT_CSV,
+				calendar.getBucketStart(first, KpiBucketCalendar.DAILY), last, after);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		output.write(out);
+		return Arrays.asList(out.toString("UTF-8").split("\n"));
+	}
+
+	/**
+	 * @return the columns of the rows of a csv export, without header
+	 */
+	private List<String[]> rows(List<String> lines) {
+		List<String[]> rows = new ArrayList<String[]>();
+		for(String line : lines.subList(1, lines.size())) {
+			rows.add(line.split(","));
+		}
+		return rows;
+	}
+
+	/**
+	 * Serves the stored values from {@link KpiExportOutputTest#stored} and records the calculated ones, without JIRA
+	 * and cache store.
+	 */
+	private class StubDataProvider extends KpiDataProvider {
+
+		StubDataProvider() {
+			super(null, null, null, null, null, null, null, null, null, null);
+		}
+
+		@Override
+		public SeverityCounts[] getStoredSeverityCounts(long id, List<Timestamp> stamps) {
+			SeverityCounts[] values = new SeverityCounts[stamps.size()];
+			for(int i = 0; i < values.length; i++) {
+				if(stored.contains(stamps.get(i).getTime())) {
+					values[i] = SeverityCounts.EMPTY;
+				}
+			}
+			return values;
+		}
+
+		@Override
+		public Map<Long, SeverityCounts[]> calculateSeverityCounts(Collection<Long> ids, List<Timestamp> stamps)
+				throws KpiComputationException {
+			Map<Long, SeverityCounts[]> values = new HashMap<Long, SeverityCounts[]>();
+			for(Long id : ids) {
+				if(id == failingProject) {
+					throw new KpiComputationException("failed");
+				}
+				List<Long> times = calculated.get(id);
+				if(times == null) {
+					times = new ArrayList<Long>();
+					calculated.put(id, times);
+				}
+				SeverityCounts[] projectValues = new SeverityCounts[stamps.size()];
+				for(int i = 0; i < projectValues.length; i++) {
+					times.add(stamps.get(i).getTime());
+					projectValues[i] = SeverityCounts.EMPTY;
+				}
+				values.put(id, projectValues);
+			}
+			return values;
+		}
+
+		@Override
+		public long estimateCost(Collection<Long> ids, List<Timestamp> stamps) {
+			return 0;
+		}
+	}
+}